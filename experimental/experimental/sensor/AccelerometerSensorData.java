@@ -15,6 +15,12 @@ public class AccelerometerSensorData extends SensorData
     private Axis3SensorState state;
 
 
+    public AccelerometerSensorData()
+    {
+        this( 0, 0, 0 );
+    }
+
+
     public AccelerometerSensorData( int x, int y, int z )
     {
         this.accelerationRaw = new SensorData.Axis3Sensor( x, y, z );
@@ -31,6 +37,20 @@ public class AccelerometerSensorData extends SensorData
     }
 
 
+    /**
+     * Reuse the instance for a new sample instead of creating a new one
+     *
+     * @param x The raw x value
+     * @param y The raw y value
+     * @param z The raw z value
+     */
+    public void set( int x, int y, int z )
+    {
+        this.accelerationRaw.set( x, y, z );
+        this.setTimestamp( System.nanoTime() );
+    }
+
+
     public SensorData.Axis3Sensor getAxis3Sensor()
     {
         return this.accelerationRaw;//new Vector3D( this.accelerationRaw.x, this.accelerationRaw.y, this.accelerationRaw.z );
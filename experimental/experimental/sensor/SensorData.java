@@ -4,7 +4,7 @@
  */
 package experimental.sensor;
 
-import java.util.Date;
+import se.nicklasgavelin.util.Vector3D;
 
 /**
  *
@@ -13,30 +13,52 @@ import java.util.Date;
  */
 public class SensorData
 {
-    private Date timestamp;
+    private long timestamp;
 
 
     public SensorData()
     {
-        this.timestamp = new Date();
+        this.timestamp = System.nanoTime();
     }
 
 
-    public Date getTimestamp()
+    /**
+     * Returns the time the data was sampled
+     *
+     * @return The time (System.nanoTime)
+     */
+    public long getTimestamp()
     {
         return this.timestamp;
     }
 
 
+    /**
+     * Update the sample time when the instance is reused for new data
+     *
+     * @param timestamp The time (System.nanoTime)
+     */
+    public void setTimestamp( long timestamp )
+    {
+        this.timestamp = timestamp;
+    }
+
+
     /* ************
      * INNER CLASSES
      */
-    public class Axis3Sensor
+    public static class Axis3Sensor
     {
         protected int x, y, z;
 
 
         public Axis3Sensor( int x, int y, int z )
+        {
+            this.set( x, y, z );
+        }
+
+
+        public void set( int x, int y, int z )
         {
             this.x = x;
             this.y = y;
@@ -64,15 +86,28 @@ public class SensorData
 
         public double[] normalized()
         {
-            double R = Math.sqrt(Math.pow(x, 2 ) + Math.pow(y, 2 ) + Math.pow(z, 2 ));
+            Vector3D n = this.normalized( new Vector3D() );
             return new double[]
                     {
-                        ( double ) x / R, ( double ) y / R, ( double ) z / R
+                        n.x, n.y, n.z
                     };
         }
+
+
+        /**
+         * Write the unit vector of the values to a reused vector
+         *
+         * @param out The vector to write to
+         *
+         * @return The given vector
+         */
+        public Vector3D normalized( Vector3D out )
+        {
+            return out.set( x, y, z ).normalize();
+        }
     }
 
-    public class Axis3SensorState
+    public static class Axis3SensorState
     {
         protected boolean xValid, yValid, zValid;
     }
@@ -7,6 +7,8 @@ package experimental.sensor;
 
 import se.nicklasgavelin.sphero.Robot;
 
+import se.nicklasgavelin.util.Vector3D;
+
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.Timer;
@@ -21,7 +23,9 @@ public class TouchSensor extends Timer
     private final Collection<TouchListener> listeners;
     private final Robot r;
     private static final int threshold = 800;
-    private final Collection<AccelerometerSensorData> sensordata;
+    private final Object lock = new Object();
+    private long sumX, sumY, sumZ;
+    private int samples;
     private boolean started;
     private final int eventDelay;
     private static final int DEFAULT_EVENT_DELAY = 500;
@@ -29,7 +33,6 @@ public class TouchSensor extends Timer
     public TouchSensor( Robot r, int eventDelay )
     {
         this.r = r;
-        sensordata = new LinkedList<>();
         listeners = new LinkedList<>();
         this.eventDelay = eventDelay;
     }
@@ -41,12 +44,30 @@ public class TouchSensor extends Timer
 
     public void addData( AccelerometerSensorData ax )
     {
-        synchronized(sensordata)
+        SensorData.Axis3Sensor a = ax.getAxis3Sensor();
+        addData( a.getX(), a.getY(), a.getZ() );
+    }
+
+    /**
+     * Add a raw accelerometer sample. Only the sums of the samples are
+     * kept until the next check so no objects are created per sample
+     *
+     * @param x The raw x value
+     * @param y The raw y value
+     * @param z The raw z value
+     */
+    public void addData( int x, int y, int z )
+    {
+        synchronized(lock)
         {
-            sensordata.add(ax);
+            sumX += x;
+            sumY += y;
+            sumZ += z;
+            samples++;
 
             if( !started)
             {
+                started = true;
                 schedule( new TouchCheckEvent(), eventDelay);
             }
         }
@@ -75,32 +96,21 @@ public class TouchSensor extends Timer
         @Override
         public void run()
         {
-            synchronized(sensordata)
+            synchronized(lock)
             {
-                if(sensordata.isEmpty() )
+                if(samples == 0 )
                 {
                     started = false;
                     return;
                 }
 
-                // Do something with the data
-                int dX = 0;
-                int dY = 0;
-                int dZ = 0;
-
-                for( AccelerometerSensorData s : sensordata)
-                {
-                    dX += s.getAxis3Sensor().x;
-                    dY += s.getAxis3Sensor().y;
-                    dZ += s.getAxis3Sensor().z;
-                }
-
-                dX = dX / sensordata.size();
-                dY = dY / sensordata.size();
-                dZ = dZ / sensordata.size();
+                // Average the data
+                long dX = sumX / samples;
+                long dY = sumY / samples;
+                long dZ = sumZ / samples;
 
                 // Now check if it's above our threshold
-                double k = Math.sqrt(dX*dX + dY*dY + dZ*dZ);
+                double k = Vector3D.magnitude( dX, dY, dZ );
 //                System.out.println( "k=" + k );
                 if( k > threshold)
                 {
@@ -116,7 +126,8 @@ public class TouchSensor extends Timer
                     }
                 }
 
-                sensordata.clear();
+                sumX = sumY = sumZ = 0;
+                samples = 0;
 
                 // Set started to false
                 started = false;
@@ -5,7 +5,6 @@
 
 package experimental.test;
 
-import experimental.sensor.AccelerometerSensorData;
 import experimental.sensor.TouchSensor;
 import experimental.sensor.TouchSensor.TouchListener;
 import se.nicklasgavelin.bluetooth.Bluetooth;
@@ -269,14 +268,12 @@ public class Experimental_Main implements BluetoothDiscoveryListener, RobotListe
             }
 
             DataResponse dr = ( DataResponse ) response;
-            byte[] data = dr.getSensorData();
-
-            int x = data[1] | data[0] << 8;
-            int y = data[3] | data[2] << 8;
-            int z = data[5] | data[4] << 8;
+            int x = dr.getSensorValue( 0 );
+            int y = dr.getSensorValue( 2 );
+            int z = dr.getSensorValue( 4 );
 
 //            System.out.println( "X=" + x + ", Y=" + y + ", Z=" + z );
-            s.addData(new AccelerometerSensorData(x, y, z));
+            s.addData(x, y, z);
         }
     }
 
@@ -8,6 +8,15 @@ import javax.microedition.io.Connector;
 import javax.microedition.io.StreamConnectionNotifier;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
 
 /**
  * Gives the possibility to find and connect to remote Bluetooth
@@ -19,6 +28,13 @@ import java.util.Collection;
  * for the classes. The BluetoothDiscoveryListener will receive events happening
  * in this class.
  *
+ * Devices are reported as soon as they are discovered. The services of every
+ * discovered device are searched in parallel (as many at a time as the
+ * Bluetooth stack allows) while the inquiry continues, so the devices
+ * reported when the search completes can be connected to right away.
+ * Set an address filter (for instance Robot::isValidAddress) to only report
+ * and search the devices of interest.
+ *
  * @author Nicklas Gavelin, nicklas.gavelin@gmail.com, Luleå University of Technology
  * @version 0.1alpha
  */
@@ -40,8 +56,17 @@ public class Bluetooth implements DiscoveryListener, Runnable
     private UUID uuid;
     // private String UUID_DEFAULT = "102030405060708090A0B0C0D0E0F010";
 
-    // Temporary stuff
-    private Collection<BluetoothDevice> devices;
+    // All devices seen so far (reused between discoveries) and the devices
+    // of the current discovery
+    private final Map<String, BluetoothDevice> knownDevices = new ConcurrentHashMap<>();
+    private final Map<String, BluetoothDevice> devices = new ConcurrentHashMap<>();
+    private volatile Predicate<String> addressFilter;
+
+    // Service searches of the current discovery, limited to the number of
+    // concurrent searches that the stack supports
+    private final Collection<Future<?>> serviceSearches = new CopyOnWriteArrayList<>();
+    private final Semaphore serviceSearchPermits;
+    private ExecutorService serviceSearchExecutor;
 
     /**
      * Create a Bluetooth instance that uses the build in Bluetooth
@@ -120,7 +145,7 @@ public class Bluetooth implements DiscoveryListener, Runnable
      *            instance
      */
     private Bluetooth(BluetoothDiscoveryListener listener) throws BluetoothStateException {
-        listeners = new ArrayList<>();
+        listeners = new CopyOnWriteArrayList<>();
 
         // Add the listener
         if (listener != null)
@@ -135,6 +160,37 @@ public class Bluetooth implements DiscoveryListener, Runnable
             notifyListeners(new Bluetooth.EVENT(e.getMessage(), EVENT_CODE.ERROR_BLUETOOTH_EXCEPTION));
             throw e;
         }
+
+        serviceSearchPermits = new Semaphore(getMaxServiceSearches());
+    }
+
+    /**
+     * Returns the number of service searches that the stack can perform at
+     * the same time
+     *
+     * @return The maximum number of concurrent service searches
+     */
+    private static int getMaxServiceSearches()
+    {
+        try
+        {
+            return Math.max(1, Integer.parseInt(LocalDevice.getProperty("bluetooth.sd.trans.max")));
+        }
+        catch (RuntimeException e)
+        {
+            return 1;
+        }
+    }
+
+    /**
+     * Only report and search devices with an address accepted by the given
+     * filter
+     *
+     * @param filter The address filter (null to accept all devices)
+     */
+    public void setAddressFilter(Predicate<String> filter)
+    {
+        addressFilter = filter;
     }
 
     /**
@@ -230,6 +286,23 @@ public class Bluetooth implements DiscoveryListener, Runnable
 	 * *******************
 	 */
 
+    /**
+     * Returns the devices that were found earlier and are stored in the
+     * device cache. These devices can be connected to right away without
+     * performing a discovery first.
+     *
+     * @return The cached devices
+     */
+    public Collection<BluetoothDevice> getCachedDevices()
+    {
+        Collection<BluetoothDevice> cached = new ArrayList<>();
+        Predicate<String> filter = addressFilter;
+        for (BluetoothDeviceCache.Entry entry : BluetoothDeviceCache.getInstance().getEntries())
+            if (filter == null || filter.test(entry.getAddress()))
+                cached.add(new BluetoothDevice(this, entry));
+        return cached;
+    }
+
     /**
      * Cancel an ongoing discovery event
      */
@@ -252,11 +325,9 @@ public class Bluetooth implements DiscoveryListener, Runnable
         log("Starting discovery");
         notifyListenersDiscoveryStarted();
 
-        // Clear the previous device list if there is one
-        if (devices == null)
-            devices = new ArrayList<>();
-        else
-            devices.clear();
+        // Clear the previous device list
+        devices.clear();
+        serviceSearches.clear();
 
         synchronized(local) //  : synchronize on non final variable -> may have differents threads with different instances of that variable
         {
@@ -289,8 +360,26 @@ public class Bluetooth implements DiscoveryListener, Runnable
 		 * }
 		 */
 
+        // Wait for the service searches that are still running
+        for (Future<?> search : serviceSearches)
+        {
+            try
+            {
+                search.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (ExecutionException e)
+            {
+                // Logged by the search, the device is reported anyway
+            }
+        }
+
         // Notify observers
-        notifyListeners(devices);
+        notifyListeners(new ArrayList<>(devices.values()));
     }
 
     /**
@@ -302,12 +391,68 @@ public class Bluetooth implements DiscoveryListener, Runnable
     @Override
     public void deviceDiscovered(RemoteDevice device, DeviceClass deviceClass)
     {
+        String address = device.getBluetoothAddress();
+        Predicate<String> filter = addressFilter;
+        if (filter != null && !filter.test(address))
+            return;
+
+        // The same device may be reported more than once
+        final BluetoothDevice btd = knownDevices.computeIfAbsent(address, a -> new BluetoothDevice(this, device));
+        if (devices.putIfAbsent(address, btd) != null)
+            return;
+
         log("Discovered device " + device);
-        BluetoothDevice btd = new BluetoothDevice(this, device);
-        devices.add(btd);
 
         // Notify listeners
         notifyListeners(btd);
+
+        // Search the services of the device while the inquiry continues
+        serviceSearches.add(getServiceSearchExecutor().submit(() -> {
+            try
+            {
+                btd.discover();
+            }
+            catch (Exception e)
+            {
+                error("Service search failed for " + btd.getAddress() + ": " + e.getMessage());
+            }
+        }));
+    }
+
+    /**
+     * Returns the executor running the service searches of discovered
+     * devices
+     *
+     * @return The service search executor
+     */
+    private synchronized ExecutorService getServiceSearchExecutor()
+    {
+        if (serviceSearchExecutor == null)
+            serviceSearchExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "BluetoothServiceSearch");
+                t.setDaemon(true);
+                return t;
+            });
+        return serviceSearchExecutor;
+    }
+
+    /**
+     * Wait until a service search may be started (the stack limits the
+     * number of concurrent service searches)
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    void acquireServiceSearch() throws InterruptedException
+    {
+        serviceSearchPermits.acquire();
+    }
+
+    /**
+     * Release a service search started after acquireServiceSearch
+     */
+    void releaseServiceSearch()
+    {
+        serviceSearchPermits.release();
     }
 
     /**
@@ -543,7 +688,7 @@ public class Bluetooth implements DiscoveryListener, Runnable
                 ", dAgent=" + dAgent +
                 ", listeners=" + listeners +
                 ", uuid=" + uuid +
-                ", devices=" + devices +
+                ", devices=" + devices.values() +
                 '}';
     }
 }
@@ -20,8 +20,13 @@ public class BluetoothDevice implements DiscoveryListener
 	// Internal storage
 	private RemoteDevice device;
 	private final Bluetooth bt;
-	private BluetoothService service;
-	private int activeSearch;
+	private volatile BluetoothService service;
+	// True if the service was created from the device cache
+	private volatile boolean cachedService;
+	private volatile int activeSearch;
+	// Held while a service search is performed, callbacks are received on this
+	private final Object searchLock = new Object();
+	private boolean searching;
 	private String name;
 	private String address;
 	private String connectionUrl;
@@ -63,6 +68,23 @@ public class BluetoothDevice implements DiscoveryListener
         setConnectionUrl(connectionUrl);
 	}
 
+	/**
+	 * Create a bluetooth device from an entry of the device cache. The
+	 * cached service is replaced by a new service search if connecting to
+	 * it fails.
+	 * 
+	 * @param bt The bluetooth instance
+	 * @param entry The device cache entry
+	 */
+	BluetoothDevice(Bluetooth bt, BluetoothDeviceCache.Entry entry)
+	{
+		this(bt, entry.getConnectionUrl());
+		this.cachedService = true;
+		this.activeSearch = -1;
+		if(entry.getName() != null)
+			setName(entry.getName());
+	}
+
     public void setConnectionUrl(String connectionUrl) {
         this.connectionUrl = connectionUrl;
         address = this.connectionUrl.split("://")[1].split(":")[0];
@@ -114,7 +136,14 @@ public class BluetoothDevice implements DiscoveryListener
 	 */
 	public String getName()
 	{
-		if(name == null && device != null)
+		if(name == null && device == null)
+		{
+			// Use the name that the device had when it was last seen
+			BluetoothDeviceCache.Entry entry = BluetoothDeviceCache.getInstance().get(address);
+			if(entry != null)
+				name = entry.getName();
+		}
+		else if(name == null)
 		{
 			try
 			{
@@ -190,8 +219,29 @@ public class BluetoothDevice implements DiscoveryListener
 		// Connect to the available service
 		try {
 			// Connect to the service
-			return this.service.connect();
+			BluetoothConnection c = this.service.connect();
+
+			// Remember the device so that the next connection can skip discovery
+			BluetoothDeviceCache.getInstance().put(address, getConnectionURL(), name);
+			return c;
 		} catch (IOException e) {
+			if(this.cachedService)
+			{
+				// The cached service is outdated, search for it again
+				log("Failed to connect to cached service of " + address + ", searching for services");
+				BluetoothDeviceCache.getInstance().invalidate(address);
+				this.service = null;
+				this.cachedService = false;
+				this.activeSearch = -1;
+
+				// Devices created from a cached url have no remote device to
+				// search, create one from the address
+				this.connectionUrl = null;
+				if(this.device == null)
+					this.device = new AddressedDevice(address);
+				return connect();
+			}
+
 			// Failure to connect for some reason
             System.err.println(e);
             return null;
@@ -200,34 +250,100 @@ public class BluetoothDevice implements DiscoveryListener
 
 	/**
 	 * Start with discovering services available for this Bluetooth device.
+	 * Devices found in the device cache are not searched again, their
+	 * cached service is used directly (and refreshed in the background when
+	 * old enough).
 	 * 
 	 * @throws RobotBluetoothException If failure to perform device discovert
 	 */
 	public void discover() throws RobotBluetoothException
 	{
-		// Check if we have tried with discovery earlier
-		if(activeSearch < 0)
+		if(this.service == null && this.connectionUrl == null)
 		{
+			BluetoothDeviceCache cache = BluetoothDeviceCache.getInstance();
+			BluetoothDeviceCache.Entry entry = cache.get(address);
+			if(entry != null)
+			{
+				log("Using cached service for " + address);
+				this.service = new BluetoothService(entry.getConnectionUrl());
+				this.cachedService = true;
+				if(name == null || UNKNOWN_NAME.equals(name))
+					setName(entry.getName() != null ? entry.getName() : UNKNOWN_NAME);
+
+				cache.refresh(this);
+				return;
+			}
+		}
+
+		searchServices();
+	}
+
+	/**
+	 * Search for the services of the device again and update the device
+	 * cache (used to refresh cached services)
+	 * 
+	 * @throws RobotBluetoothException If failure to perform the service search
+	 */
+	void refreshServices() throws RobotBluetoothException
+	{
+		if(this.device == null)
+			return;
+
+		this.activeSearch = -1;
+		searchServices();
+	}
+
+	/**
+	 * Perform a service search for the device (if not already done)
+	 * 
+	 * @throws RobotBluetoothException If failure to perform the service search
+	 */
+	private void searchServices() throws RobotBluetoothException
+	{
+		// Only one search at a time for this device, searches for other
+		// devices may run in parallel (up to the limit of the stack)
+		synchronized(searchLock)
+		{
+			// Check if we have tried with discovery earlier
+			if(activeSearch >= 0 || device == null)
+				return;
+
 			try
 			{
-				// See to it that we are the only one performing stuff on the bt
-				// instance.
-				synchronized(bt)
+				bt.acquireServiceSearch();
+				try
+				{
+					synchronized(this)
+					{
+						// Search for available services for this device
+						searching = true;
+						activeSearch = bt.getDiscoveryAgent().searchServices(
+								new int[] { BluetoothService.ATTR_SERVICENAME,
+										BluetoothService.ATTR_SERVICEDESC,
+										BluetoothService.ATTR_PROVIDERNAME }, new UUID[] {bt.getUUID() }, device, this);
+
+						// Lock until we are done
+						while(searching)
+							wait();
+					}
+				}
+				finally
 				{
-					// Search for available services for this device
-                    activeSearch = bt.getDiscoveryAgent().searchServices(
-                            new int[] { BluetoothService.ATTR_SERVICENAME,
-                                    BluetoothService.ATTR_SERVICEDESC,
-                                    BluetoothService.ATTR_PROVIDERNAME }, new UUID[] {bt.getUUID() }, device, this);
-
-					// Lock until we are done
-                    bt.wait();
+					bt.releaseServiceSearch();
 				}
 			}
 			catch(BluetoothStateException | InterruptedException e)
 			{
+				synchronized(this)
+				{
+					searching = false;
+				}
 				throw new RobotBluetoothException(e.getMessage());
 			}
+
+			// Remember the found service
+			if(this.service != null && !this.cachedService)
+				BluetoothDeviceCache.getInstance().put(address, this.service.getConnectionURL(), name);
         }
 	}
 
@@ -253,11 +369,14 @@ public class BluetoothDevice implements DiscoveryListener
 	@Override
 	public void serviceSearchCompleted(int transId, int respCode)
 	{
-		// Notify observers
-		synchronized(this.bt)
+		// Notify the searching thread
+		synchronized(this)
 		{
 			if(this.activeSearch == transId)
-                this.bt.notifyAll();
+			{
+				searching = false;
+				notifyAll();
+			}
 		}
 
 		// Check the response code
@@ -294,11 +413,13 @@ public class BluetoothDevice implements DiscoveryListener
 	 * @param records Discovered service records
 	 */
 	@Override
-	public void servicesDiscovered(int transId, ServiceRecord... records)
+	public synchronized void servicesDiscovered(int transId, ServiceRecord... records)
 	{
 		if(this.activeSearch == transId)
 		{
 			if(records.length > 0)
+			{
+                this.cachedService = false;
                 this.service = new BluetoothService(this, records[0]);//, this.bt);// TODO:
 																					// Will
 																					// there
@@ -306,6 +427,7 @@ public class BluetoothDevice implements DiscoveryListener
 																					// be
 																					// multiple
 																					// services???
+			}
 		}
 	}
 
@@ -346,4 +468,16 @@ public class BluetoothDevice implements DiscoveryListener
                 ", connectionUrl='" + connectionUrl + '\'' +
                 '}';
     }
+
+	/**
+	 * Remote device that is only known by its address (used to search for
+	 * the services of a device that was created from a connection url)
+	 */
+	private static final class AddressedDevice extends RemoteDevice
+	{
+		private AddressedDevice(String address)
+		{
+			super(address);
+		}
+	}
 }
@@ -0,0 +1,333 @@
+package se.nicklasgavelin.bluetooth;
+
+import se.nicklasgavelin.configuration.ProjectProperties;
+import se.nicklasgavelin.log.Logging;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Remembers the connection url and name of the devices that we have
+ * connected to, so that a known device can be connected to right away
+ * instead of performing a device inquiry and a service search first.
+ *
+ * The cache is stored on disk and survives restarts. Entries that haven't
+ * been seen for a while expire, older entries are refreshed with a service
+ * search in the background and entries that fail to connect are
+ * invalidated.
+ *
+ * The cache file, the maximum age and the refresh age are configured in
+ * the project properties.
+ */
+public class BluetoothDeviceCache
+{
+    private static BluetoothDeviceCache instance;
+
+    private final File file;
+    private final long maxAge, refreshAge;
+    private final Map<String, Entry> entries;
+    private final Set<String> refreshing;
+    private final ExecutorService refresher;
+
+    /**
+     * Create a device cache
+     *
+     * @param file The file to store the cache in (null to keep the cache in
+     *            memory only)
+     * @param maxAge The time (ms) after which an entry that hasn't been seen
+     *            expires
+     * @param refreshAge The time (ms) after which an entry is refreshed in
+     *            the background when it's used
+     */
+    public BluetoothDeviceCache(File file, long maxAge, long refreshAge)
+    {
+        this.file = file;
+        this.maxAge = maxAge;
+        this.refreshAge = refreshAge;
+        this.entries = new ConcurrentHashMap<>();
+        this.refreshing = ConcurrentHashMap.newKeySet();
+        this.refresher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "BluetoothDeviceCache");
+            t.setDaemon(true);
+            return t;
+        });
+
+        load();
+    }
+
+    /**
+     * Returns the cache configured in the project properties
+     *
+     * @return The device cache
+     */
+    public static synchronized BluetoothDeviceCache getInstance()
+    {
+        if (instance == null)
+        {
+            ProjectProperties p = ProjectProperties.getInstance();
+            String path = p.getDeviceCacheFile();
+            instance = new BluetoothDeviceCache(path.isEmpty() ? null : new File(path), p.getDeviceCacheMaxAge(), p.getDeviceCacheRefreshAge());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the cached entry for a device
+     *
+     * @param address The Bluetooth address of the device
+     *
+     * @return The entry or null if the device isn't cached (or has expired)
+     */
+    public Entry get(String address)
+    {
+        if (address == null)
+            return null;
+
+        Entry entry = entries.get(address);
+        if (entry != null && System.currentTimeMillis() - entry.lastSeen > maxAge)
+        {
+            entries.remove(address, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns all cached entries that haven't expired
+     *
+     * @return The cached entries
+     */
+    public Collection<Entry> getEntries()
+    {
+        Collection<Entry> valid = new ArrayList<>();
+        for (String address : entries.keySet())
+        {
+            Entry entry = get(address);
+            if (entry != null)
+                valid.add(entry);
+        }
+        return valid;
+    }
+
+    /**
+     * Add or update the entry of a device and mark it as seen now
+     *
+     * @param address The Bluetooth address of the device
+     * @param connectionUrl The connection url of the device
+     * @param name The name of the device (may be null)
+     */
+    public void put(String address, String connectionUrl, String name)
+    {
+        if (address == null || connectionUrl == null)
+            return;
+
+        Entry old = entries.get(address);
+        if (name == null && old != null)
+            name = old.name;
+
+        entries.put(address, new Entry(address, connectionUrl, name, System.currentTimeMillis()));
+        save();
+    }
+
+    /**
+     * Remove the entry of a device (for instance when connecting with the
+     * cached url failed)
+     *
+     * @param address The Bluetooth address of the device
+     */
+    public void invalidate(String address)
+    {
+        if (address != null && entries.remove(address) != null)
+        {
+            Logging.debug("Invalidated cached device " + address);
+            save();
+        }
+    }
+
+    /**
+     * Remove all entries
+     */
+    public void clear()
+    {
+        entries.clear();
+        save();
+    }
+
+    /**
+     * Refresh the service record of a device in the background if its entry
+     * is old enough
+     *
+     * @param device The device to refresh
+     */
+    void refresh(final BluetoothDevice device)
+    {
+        Entry entry = entries.get(device.getAddress());
+        if (entry == null || System.currentTimeMillis() - entry.lastSeen < refreshAge || !refreshing.add(device.getAddress()))
+            return;
+
+        refresher.execute(() -> {
+            try
+            {
+                device.refreshServices();
+            }
+            catch (Exception e)
+            {
+                Logging.debug("Failed to refresh cached device " + device.getAddress() + ": " + e.getMessage());
+            }
+            finally
+            {
+                refreshing.remove(device.getAddress());
+            }
+        });
+    }
+
+    /**
+     * Load the entries from the cache file
+     */
+    private void load()
+    {
+        if (file == null || !file.isFile())
+            return;
+
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file))
+        {
+            p.load(in);
+        }
+        catch (IOException e)
+        {
+            Logging.warn("Failed to load the device cache " + file + ": " + e.getMessage());
+            return;
+        }
+
+        for (String key : p.stringPropertyNames())
+        {
+            if (!key.endsWith(".url"))
+                continue;
+
+            String address = key.substring(0, key.length() - 4);
+            try
+            {
+                entries.put(address, new Entry(address, p.getProperty(key), p.getProperty(address + ".name"), Long.parseLong(p.getProperty(address + ".seen", "0"))));
+            }
+            catch (NumberFormatException e)
+            {
+                // Skip broken entries
+            }
+        }
+    }
+
+    /**
+     * Write the entries to the cache file. The file is replaced as a whole
+     * so that a crash never leaves a partially written cache.
+     */
+    private synchronized void save()
+    {
+        if (file == null)
+            return;
+
+        Properties p = new Properties();
+        for (Entry entry : entries.values())
+        {
+            p.setProperty(entry.address + ".url", entry.connectionUrl);
+            p.setProperty(entry.address + ".seen", Long.toString(entry.lastSeen));
+            if (entry.name != null)
+                p.setProperty(entry.address + ".name", entry.name);
+        }
+
+        try
+        {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null)
+                dir.mkdirs();
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp))
+            {
+                p.store(out, "Known Bluetooth devices");
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e)
+        {
+            Logging.warn("Failed to save the device cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A cached device
+     */
+    public static final class Entry
+    {
+        private final String address, connectionUrl, name;
+        private final long lastSeen;
+
+        private Entry(String address, String connectionUrl, String name, long lastSeen)
+        {
+            this.address = address;
+            this.connectionUrl = connectionUrl;
+            this.name = name;
+            this.lastSeen = lastSeen;
+        }
+
+        /**
+         * Returns the Bluetooth address of the device
+         *
+         * @return The Bluetooth address
+         */
+        public String getAddress()
+        {
+            return address;
+        }
+
+        /**
+         * Returns the connection url of the device
+         *
+         * @return The connection url
+         */
+        public String getConnectionUrl()
+        {
+            return connectionUrl;
+        }
+
+        /**
+         * Returns the name of the device
+         *
+         * @return The name or null if unknown
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Returns the time the device was last seen
+         *
+         * @return The time in ms since the epoch
+         */
+        public long getLastSeen()
+        {
+            return lastSeen;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Entry{address='" + address + "', connectionUrl='" + connectionUrl + "', name='" + name + "', lastSeen=" + lastSeen + '}';
+        }
+    }
+}
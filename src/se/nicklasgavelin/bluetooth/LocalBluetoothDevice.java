@@ -0,0 +1,131 @@
+package se.nicklasgavelin.bluetooth;
+
+import se.nicklasgavelin.sphero.exception.RobotBluetoothException;
+
+import javax.microedition.io.StreamConnection;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A device that is connected in-process instead of over Bluetooth. Data
+ * written to the connection is passed to the peer, the peer writes its
+ * answers to a pipe that is read by the connection. Used to run robots
+ * against emulated devices without a Bluetooth stack.
+ */
+public class LocalBluetoothDevice extends BluetoothDevice
+{
+    // Bytes buffered from the peer to the host before the peer blocks
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    /**
+     * The other end of a local connection
+     */
+    public interface Peer
+    {
+        /**
+         * Called for every new connection to the device
+         *
+         * @param toHost The stream to write to the host, closed when the
+         *            host disconnects
+         *
+         * @return The stream that receives the data written by the host,
+         *         closed when the host disconnects
+         *
+         * @throws IOException If the peer refuses the connection
+         */
+        OutputStream connect(OutputStream toHost) throws IOException;
+    }
+
+    private final Peer peer;
+
+    /**
+     * Create a local device
+     *
+     * @param address The address of the device
+     * @param peer The peer that is connected to
+     */
+    public LocalBluetoothDevice(String address, Peer peer)
+    {
+        super(null, "local://" + address + ":1");
+        this.peer = peer;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "Local " + getAddress();
+    }
+
+    @Override
+    public void discover()
+    {
+        // Nothing to discover
+    }
+
+    @Override
+    public BluetoothConnection connect() throws RobotBluetoothException
+    {
+        try
+        {
+            LocalPipe toHost = new LocalPipe(PIPE_CAPACITY);
+            OutputStream fromHost = peer.connect(toHost.getOutputStream());
+
+            BluetoothConnection c = new BluetoothConnection(new LocalConnection(toHost, fromHost));
+            c.open();
+            return c;
+        }
+        catch(IOException e)
+        {
+            throw new RobotBluetoothException("Failed to connect to local device " + getAddress() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stream connection over a pipe from the peer and the stream of the peer
+     */
+    private static final class LocalConnection implements StreamConnection
+    {
+        private final LocalPipe toHost;
+        private final OutputStream fromHost;
+
+        LocalConnection(LocalPipe toHost, OutputStream fromHost)
+        {
+            this.toHost = toHost;
+            this.fromHost = fromHost;
+        }
+
+        @Override
+        public InputStream openInputStream()
+        {
+            return toHost.getInputStream();
+        }
+
+        @Override
+        public DataInputStream openDataInputStream()
+        {
+            return new DataInputStream(openInputStream());
+        }
+
+        @Override
+        public OutputStream openOutputStream()
+        {
+            return fromHost;
+        }
+
+        @Override
+        public DataOutputStream openDataOutputStream()
+        {
+            return new DataOutputStream(openOutputStream());
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            toHost.close();
+            fromHost.close();
+        }
+    }
+}
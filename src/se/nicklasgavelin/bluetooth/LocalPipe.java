@@ -0,0 +1,172 @@
+package se.nicklasgavelin.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bounded in-memory byte stream between two threads. Writes block while the
+ * pipe is full, reads block while it's empty. After the pipe is closed
+ * writes fail and reads return the remaining data followed by the end of
+ * the stream.
+ *
+ * Unlike PipedInputStream the pipe doesn't depend on the writing thread
+ * staying alive, so it can be written from pooled threads.
+ */
+final class LocalPipe
+{
+    private final byte[] buffer;
+    // Guarded by this
+    private int readPosition, size;
+    private boolean closed;
+
+    private final InputStream input = new InputStream()
+    {
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[ 1 ];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return LocalPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available()
+        {
+            synchronized (LocalPipe.this)
+            {
+                return size;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            LocalPipe.this.close();
+        }
+    };
+
+    private final OutputStream output = new OutputStream()
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            LocalPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+        {
+            LocalPipe.this.close();
+        }
+    };
+
+    /**
+     * Create a pipe
+     *
+     * @param capacity The number of bytes the pipe holds before writes block
+     */
+    LocalPipe(int capacity)
+    {
+        this.buffer = new byte[ capacity ];
+    }
+
+    /**
+     * Returns the reading end of the pipe
+     *
+     * @return The input stream
+     */
+    InputStream getInputStream()
+    {
+        return input;
+    }
+
+    /**
+     * Returns the writing end of the pipe
+     *
+     * @return The output stream
+     */
+    OutputStream getOutputStream()
+    {
+        return output;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+
+        try
+        {
+            while (size == 0 && !closed)
+                wait();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading", e);
+        }
+
+        if (size == 0)
+            return -1;
+
+        int n = Math.min(len, size);
+        int first = Math.min(n, buffer.length - readPosition);
+        System.arraycopy(buffer, readPosition, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        readPosition = (readPosition + n) % buffer.length;
+        size -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            try
+            {
+                while (size == buffer.length && !closed)
+                    wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing", e);
+            }
+
+            if (closed)
+                throw new IOException("Pipe closed");
+
+            int writePosition = (readPosition + size) % buffer.length;
+            int n = Math.min(len, buffer.length - size);
+            int first = Math.min(n, buffer.length - writePosition);
+            System.arraycopy(b, off, buffer, writePosition, first);
+            System.arraycopy(b, off + first, buffer, 0, n - first);
+            size += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Close the pipe
+     */
+    synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Please read the LICENSE file that is included with the source
+ * code.
+ */
+
+package se.nicklasgavelin.configuration;
+
+/**
+ * How the robot I/O of a fleet is run
+ */
+public enum ExecutionMode
+{
+	/**
+	 * One platform thread per robot for reading, bounded pools for
+	 * writing and listener notifications
+	 */
+	PLATFORM,
+	/**
+	 * One platform thread per robot for reading (the reads are native
+	 * calls that would pin a virtual thread), virtual threads for
+	 * writing and listener notifications (falls back on PLATFORM if
+	 * the JVM does not support virtual threads)
+	 */
+	VIRTUAL
+}
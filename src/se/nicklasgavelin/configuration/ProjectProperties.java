@@ -65,7 +65,8 @@ public class ProjectProperties extends Properties
 	}
 
 	/**
-	 * Returns size of received buffer
+	 * Returns the initial and smallest size of the receive buffer, the
+	 * buffer grows with the size of the received bursts
 	 * 
 	 * @return The size of the received buffer
 	 */
@@ -74,6 +75,199 @@ public class ProjectProperties extends Properties
 		return Integer.parseInt(getProperty("sphero.socket.buffersize", "256") );
 	}
 
+	/**
+	 * Returns the time a CONTROL command may wait in the sending queue
+	 * before it is dropped
+	 * 
+	 * @return The time (ms), 0 if the commands never expire
+	 */
+	public long getControlDeadline()
+	{
+		return Long.parseLong(getProperty("sphero.queue.deadline.control", "0") );
+	}
+
+	/**
+	 * Returns the time a BULK command (macro data) may wait in the sending
+	 * queue before it is dropped
+	 * 
+	 * @return The time (ms), 0 if the commands never expire
+	 */
+	public long getBulkDeadline()
+	{
+		return Long.parseLong(getProperty("sphero.queue.deadline.bulk", "0") );
+	}
+
+	/**
+	 * Returns the largest size the receive buffer may grow to
+	 * 
+	 * @return The largest size of the received buffer
+	 */
+	public int getMaxBufferSize()
+	{
+		return Integer.parseInt(getProperty("sphero.socket.buffersize.max", "4096") );
+	}
+
+	/**
+	 * Returns the largest number of information responses that are
+	 * published to the listeners as one batch (1 publishes every response
+	 * on its own)
+	 * 
+	 * @return The largest batch size
+	 */
+	public int getReceiveBatchSize()
+	{
+		return Integer.parseInt(getProperty("sphero.socket.batchsize", "32") );
+	}
+
+	/**
+	 * Returns the number of bytes of robot memory that may be used for
+	 * cached macros
+	 * 
+	 * @return The macro cache storage size
+	 */
+	public int getMacroCacheStorageSize()
+	{
+		return Integer.parseInt(getProperty("sphero.macro.cache.storage", "512") );
+	}
+
+	/**
+	 * Returns the number of times a macro needs to be played before it is
+	 * stored on the robot
+	 * 
+	 * @return The macro cache hot count
+	 */
+	public int getMacroCacheHotCount()
+	{
+		return Integer.parseInt(getProperty("sphero.macro.cache.hotcount", "2") );
+	}
+
+	/**
+	 * Returns the file that known Bluetooth devices are stored in (empty to
+	 * keep them in memory only)
+	 * 
+	 * @return The device cache file
+	 */
+	public String getDeviceCacheFile()
+	{
+		return getProperty("sphero.bluetooth.cache.file", System.getProperty("user.home") + "/.sphero/devices.properties").replace("${user.home}", System.getProperty("user.home"));
+	}
+
+	/**
+	 * Returns the time (ms) after which a known device that hasn't been seen
+	 * is removed from the device cache
+	 * 
+	 * @return The maximum age of a cached device
+	 */
+	public long getDeviceCacheMaxAge()
+	{
+		return Long.parseLong(getProperty("sphero.bluetooth.cache.maxage", "2592000000") );
+	}
+
+	/**
+	 * Returns the time (ms) after which the service of a cached device is
+	 * refreshed in the background
+	 * 
+	 * @return The refresh age of a cached device
+	 */
+	public long getDeviceCacheRefreshAge()
+	{
+		return Long.parseLong(getProperty("sphero.bluetooth.cache.refreshage", "86400000") );
+	}
+
+	/**
+	 * Returns true if robots should reconnect automatically when the
+	 * connection is lost
+	 * 
+	 * @return True to reconnect automatically
+	 */
+	public boolean getReconnectEnabled()
+	{
+		return Boolean.parseBoolean(getProperty("sphero.reconnect.enabled", "true") );
+	}
+
+	/**
+	 * Returns the maximum number of reconnect attempts
+	 * 
+	 * @return The number of attempts
+	 */
+	public int getReconnectAttempts()
+	{
+		return Integer.parseInt(getProperty("sphero.reconnect.attempts", "8") );
+	}
+
+	/**
+	 * Returns the delay (ms) before the first reconnect attempt, the delay
+	 * is doubled for every failed attempt
+	 * 
+	 * @return The initial reconnect delay
+	 */
+	public long getReconnectInitialDelay()
+	{
+		return Long.parseLong(getProperty("sphero.reconnect.initialdelay", "200") );
+	}
+
+	/**
+	 * Returns the maximum delay (ms) between two reconnect attempts
+	 * 
+	 * @return The maximum reconnect delay
+	 */
+	public long getReconnectMaxDelay()
+	{
+		return Long.parseLong(getProperty("sphero.reconnect.maxdelay", "5000") );
+	}
+
+	/**
+	 * Returns the time (ms) between two roll commands sent by Robot.drive
+	 * 
+	 * @return The drive tick
+	 */
+	public long getDriveTick()
+	{
+		return Long.parseLong(getProperty("sphero.drive.tick", "50") );
+	}
+
+	/**
+	 * Returns how much the drive input is smoothed (0 = not at all, values
+	 * close to 1 = heavily)
+	 * 
+	 * @return The drive smoothing
+	 */
+	public double getDriveSmoothing()
+	{
+		return Double.parseDouble(getProperty("sphero.drive.smoothing", "0.5") );
+	}
+
+	/**
+	 * Returns the smallest heading change (degrees) that is sent by
+	 * Robot.drive
+	 * 
+	 * @return The heading threshold
+	 */
+	public double getDriveHeadingThreshold()
+	{
+		return Double.parseDouble(getProperty("sphero.drive.threshold.heading", "2") );
+	}
+
+	/**
+	 * Returns the smallest speed change (0-1) that is sent by Robot.drive
+	 * 
+	 * @return The speed threshold
+	 */
+	public double getDriveSpeedThreshold()
+	{
+		return Double.parseDouble(getProperty("sphero.drive.threshold.speed", "0.02") );
+	}
+
+	/**
+	 * Returns how the robot I/O is run (PLATFORM or VIRTUAL threads)
+	 * 
+	 * @return The execution mode
+	 */
+	public ExecutionMode getExecutionMode()
+	{
+		return ExecutionMode.valueOf(getProperty("sphero.execution.mode", ExecutionMode.PLATFORM.toString()) );
+	}
+
 	/**
 	 * Returns the current debug state
 	 * 
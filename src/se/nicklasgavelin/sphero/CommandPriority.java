@@ -0,0 +1,129 @@
+package se.nicklasgavelin.sphero;
+
+import se.nicklasgavelin.sphero.command.CommandMessage;
+import se.nicklasgavelin.sphero.command.RawMotorCommand;
+import se.nicklasgavelin.sphero.command.RollCommand;
+import se.nicklasgavelin.sphero.command.SaveMacroCommand;
+
+/**
+ * Priority classes of the sending queue. Every write is filled with the
+ * queued commands of the highest class first, commands of the same class
+ * are written in the order they were queued.
+ */
+public enum CommandPriority
+{
+    /**
+     * Commands that stop the robot (stopping rolls, motors off, abort
+     * macro) and forced commands, never expire. Queued commands of a lower
+     * class that were queued before a safety command and would undo it
+     * (see supersedes) are dropped when the safety command is written.
+     */
+    SAFETY,
+    /**
+     * Driving, LED and system commands
+     */
+    CONTROL,
+    /**
+     * Macro data
+     */
+    BULK;
+
+    /**
+     * Returns the default priority class of a command
+     *
+     * @param command The command
+     *
+     * @return The priority class
+     */
+    public static CommandPriority of(CommandMessage command)
+    {
+        switch (command.getCommand())
+        {
+            case ABORT_MACRO:
+                return SAFETY;
+            case ROLL:
+                return command instanceof RollCommand && ((RollCommand) command).getStopped() ? SAFETY : CONTROL;
+            case RAW_MOTOR:
+                return isMotorsOff(command) ? SAFETY : CONTROL;
+            case MACRO:
+            case SAVE_MACRO:
+                return BULK;
+            default:
+                return CONTROL;
+        }
+    }
+
+    /**
+     * Returns true if a queued command would undo a SAFETY command if it
+     * were written after it. A stop supersedes movement, an abort macro
+     * supersedes macros that are about to be played.
+     *
+     * @param safety The SAFETY command
+     * @param queued The queued command
+     *
+     * @return True if the queued command should be dropped
+     */
+    static boolean supersedes(CommandMessage safety, CommandMessage queued)
+    {
+        switch (safety.getCommand())
+        {
+            case ABORT_MACRO:
+                return isMacroPlay(queued);
+            case ROLL:
+            case RAW_MOTOR:
+                return isMovement(queued);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns true if the command moves the robot
+     *
+     * @param command The command
+     *
+     * @return True for roll, raw motor, spin and boost commands
+     */
+    static boolean isMovement(CommandMessage command)
+    {
+        switch (command.getCommand())
+        {
+            case ROLL:
+            case RAW_MOTOR:
+            case SPIN_LEFT:
+            case SPIN_RIGHT:
+            case BOOST:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns true if the command plays a macro (runs a macro, saves a
+     * temporary macro or streams macro data)
+     */
+    private static boolean isMacroPlay(CommandMessage command)
+    {
+        switch (command.getCommand())
+        {
+            case RUN_MACRO:
+            case MACRO:
+                return true;
+            case SAVE_MACRO:
+                return command instanceof SaveMacroCommand
+                        && ((SaveMacroCommand) command).getDestination() == (SaveMacroCommand.MACRO_STREAMING_DESTINATION & 0xFF);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isMotorsOff(CommandMessage command)
+    {
+        if (!(command instanceof RawMotorCommand))
+            return false;
+
+        RawMotorCommand motors = (RawMotorCommand) command;
+        return motors.getLeftSpeed() == 0 && motors.getRightSpeed() == 0;
+    }
+}
@@ -0,0 +1,83 @@
+package se.nicklasgavelin.sphero;
+
+/**
+ * The time spent on the steps of the last connection attempt of a robot:
+ * opening the Bluetooth link (including any service search) and the
+ * initialization handshake (from writing the initialization commands until
+ * all of them have been answered).
+ */
+public final class ConnectionTiming
+{
+    private final long started, linked, initialized;
+
+    /**
+     * Create a connection timing from System.nanoTime() values
+     *
+     * @param started When the connection attempt started
+     * @param linked When the link was established (0 if it failed)
+     * @param initialized When the handshake completed (0 if not completed)
+     */
+    ConnectionTiming(long started, long linked, long initialized)
+    {
+        this.started = started;
+        this.linked = linked;
+        this.initialized = initialized;
+    }
+
+    /**
+     * Returns true if the Bluetooth link was established
+     *
+     * @return True if linked
+     */
+    public boolean isLinked()
+    {
+        return linked != 0;
+    }
+
+    /**
+     * Returns true if all initialization commands have been answered
+     *
+     * @return True if initialized
+     */
+    public boolean isInitialized()
+    {
+        return initialized != 0;
+    }
+
+    /**
+     * Returns the time it took to open the Bluetooth link
+     *
+     * @return The link time in ms or -1 if the link failed
+     */
+    public long getLinkTime()
+    {
+        return isLinked() ? (linked - started) / 1000000 : -1;
+    }
+
+    /**
+     * Returns the time it took from writing the initialization commands
+     * until all of them were answered
+     *
+     * @return The handshake time in ms or -1 if not completed
+     */
+    public long getHandshakeTime()
+    {
+        return isLinked() && isInitialized() ? (initialized - linked) / 1000000 : -1;
+    }
+
+    /**
+     * Returns the total time of the connection
+     *
+     * @return The total time in ms or -1 if not completed
+     */
+    public long getTotalTime()
+    {
+        return isInitialized() ? (initialized - started) / 1000000 : -1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ConnectionTiming{link=" + getLinkTime() + "ms, handshake=" + getHandshakeTime() + "ms, total=" + getTotalTime() + "ms}";
+    }
+}
@@ -0,0 +1,102 @@
+package se.nicklasgavelin.sphero;
+
+/**
+ * Timing of the control loop of a RobotController. The latency is the time
+ * from the arrival of the sensor packet that a correction is based on until
+ * the correction has been written to the robot (including the time it
+ * waited in the sending queue), the loop time is the time spent calculating
+ * the correction.
+ */
+public final class ControlLoopMetrics
+{
+    private final long loops, corrections, staleSamples;
+    private final double meanLatency, maxLatency, meanLoopTime, maxLoopTime;
+
+    ControlLoopMetrics(long loops, long corrections, long staleSamples, double meanLatency, double maxLatency, double meanLoopTime, double maxLoopTime)
+    {
+        this.loops = loops;
+        this.corrections = corrections;
+        this.staleSamples = staleSamples;
+        this.meanLatency = meanLatency;
+        this.maxLatency = maxLatency;
+        this.meanLoopTime = meanLoopTime;
+        this.maxLoopTime = maxLoopTime;
+    }
+
+    /**
+     * Returns the number of times the loop has run
+     *
+     * @return The number of loops
+     */
+    public long getLoops()
+    {
+        return loops;
+    }
+
+    /**
+     * Returns the number of loops that sent a correction
+     *
+     * @return The number of corrections
+     */
+    public long getCorrections()
+    {
+        return corrections;
+    }
+
+    /**
+     * Returns the number of loops skipped because no sensor data younger
+     * than the maximum sample age was available
+     *
+     * @return The number of stale loops
+     */
+    public long getStaleSamples()
+    {
+        return staleSamples;
+    }
+
+    /**
+     * Returns the mean time from sensor packet to written correction
+     *
+     * @return The mean latency (ms)
+     */
+    public double getMeanLatency()
+    {
+        return meanLatency;
+    }
+
+    /**
+     * Returns the longest time from sensor packet to written correction
+     *
+     * @return The maximum latency (ms)
+     */
+    public double getMaxLatency()
+    {
+        return maxLatency;
+    }
+
+    /**
+     * Returns the mean time spent in a loop
+     *
+     * @return The mean loop time (ms)
+     */
+    public double getMeanLoopTime()
+    {
+        return meanLoopTime;
+    }
+
+    /**
+     * Returns the longest time spent in a loop
+     *
+     * @return The maximum loop time (ms)
+     */
+    public double getMaxLoopTime()
+    {
+        return maxLoopTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ControlLoopMetrics{loops=%d, corrections=%d, stale=%d, latency=%.2f/%.2fms, loopTime=%.3f/%.3fms}", loops, corrections, staleSamples, meanLatency, maxLatency, meanLoopTime, maxLoopTime);
+    }
+}
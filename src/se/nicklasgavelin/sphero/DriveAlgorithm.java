@@ -91,6 +91,34 @@ public abstract class DriveAlgorithm
         this.headingOffset = headingOffset;
     }
 
+	/**
+	 * Set the dead zone of the input coordinates, input closer to the stop
+	 * position than the dead zone is treated as the stop position (used by
+	 * the DrivePipeline)
+	 * 
+	 * @param x The dead zone of the x coordinate
+	 * @param y The dead zone of the y coordinate
+	 * @param z The dead zone of the z coordinate
+	 */
+    public void setDeadZoneDelta(double x, double y, double z) {
+        deadZoneDelta[0] = x;
+        deadZoneDelta[1] = y;
+        deadZoneDelta[2] = z;
+    }
+
+	/**
+	 * Apply the dead zone to an input coordinate
+	 * 
+	 * @param axis The coordinate (0-2 for x, y and z)
+	 * @param value The input value
+	 * 
+	 * @return The stop position if the value is inside the dead zone, the
+	 *         value otherwise
+	 */
+    double applyDeadZone(int axis, double value) {
+        return Math.abs(value - stopPosition[axis]) < deadZoneDelta[axis] ? stopPosition[axis] : value;
+    }
+
     /**
 	 * Listener class,
 	 * listens for conversion events
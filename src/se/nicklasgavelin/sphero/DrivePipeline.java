@@ -0,0 +1,234 @@
+package se.nicklasgavelin.sphero;
+
+import se.nicklasgavelin.configuration.ProjectProperties;
+import se.nicklasgavelin.log.Logging;
+import se.nicklasgavelin.sphero.command.RollCommand;
+import se.nicklasgavelin.util.Value;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Turns drive input (Robot.drive) into roll commands at a fixed rate.
+ *
+ * Input may arrive at any rate from any thread, only the latest input is
+ * kept. The input, the tick and stop share the lock of the pipeline, so no
+ * roll command is sent once stop has returned. Every tick the latest input is passed through the dead zone of the
+ * drive algorithm and smoothed, converted by the drive algorithm and sent
+ * as a roll command. Roll commands that would change the heading and speed
+ * less than the thresholds are skipped. The pipeline only ticks while there
+ * is input that has not been sent yet.
+ *
+ * The drive algorithm is run once per tick instead of once per input, so
+ * algorithms that turn a fixed amount per call (RCDriveAlgorithm) turn at a
+ * rate set by the tick.
+ */
+public class DrivePipeline
+{
+    private final Robot robot;
+    private final long tick;
+    private final double smoothing, headingThreshold, speedThreshold;
+
+    // Latest input, hasInput is false once it has been taken by the tick
+    private final double[] input;
+    private boolean hasInput;
+    // The last input is kept to continue smoothing when no new input
+    // arrives
+    private final double[] target;
+    private boolean hasTarget;
+    private final double[] smoothed;
+    private boolean hasSmoothed;
+    private final RollCommand roll;
+    private double sentHeading, sentSpeed = -1;
+    // True when the last command sent was a stop
+    private boolean stopped;
+
+    private ScheduledFuture<?> ticker;
+
+    /**
+     * Create a pipeline with the settings of the project properties
+     *
+     * @param robot The robot to drive
+     */
+    DrivePipeline(Robot robot)
+    {
+        this(robot, ProjectProperties.getInstance().getDriveTick(), ProjectProperties.getInstance().getDriveSmoothing(),
+             ProjectProperties.getInstance().getDriveHeadingThreshold(), ProjectProperties.getInstance().getDriveSpeedThreshold());
+    }
+
+    /**
+     * Create a pipeline
+     *
+     * @param robot The robot to drive
+     * @param tick The time between two roll commands (ms)
+     * @param smoothing How much of the previous input is kept every tick
+     *            (0 = no smoothing, close to 1 = heavy smoothing)
+     * @param headingThreshold The smallest heading change that is sent
+     *            (degrees)
+     * @param speedThreshold The smallest speed change that is sent (0-1)
+     */
+    DrivePipeline(Robot robot, long tick, double smoothing, double headingThreshold, double speedThreshold)
+    {
+        this.robot = robot;
+        this.tick = Math.max(1, tick);
+        this.smoothing = Value.clamp(smoothing, 0.0D, 0.99D);
+        this.headingThreshold = headingThreshold;
+        this.speedThreshold = speedThreshold;
+        this.input = new double[ DriveAlgorithm.MAX_COORDINATES ];
+        this.target = new double[ DriveAlgorithm.MAX_COORDINATES ];
+        this.smoothed = new double[ DriveAlgorithm.MAX_COORDINATES ];
+        this.roll = new RollCommand(0, 0, true);
+    }
+
+    /**
+     * Set the latest input. Doesn't wait for the robot, input that arrives
+     * before the next tick replaces the previous input.
+     *
+     * @param x X direction
+     * @param y Y direction
+     * @param z Z direction
+     */
+    public synchronized void input(double x, double y, double z)
+    {
+        input[0] = x;
+        input[1] = y;
+        input[2] = z;
+        hasInput = true;
+
+        // Start ticking if the pipeline is idle
+        if (ticker == null)
+            ticker = robot.getExecutor().schedule(this::tick, 0, tick);
+    }
+
+    /**
+     * Stop ticking until the next input
+     */
+    private void idle()
+    {
+        if (ticker != null)
+            ticker.cancel(false);
+        ticker = null;
+    }
+
+    /**
+     * Stop the pipeline and forget the current input
+     */
+    public synchronized void stop()
+    {
+        hasInput = false;
+        idle();
+        hasTarget = false;
+        hasSmoothed = false;
+        sentSpeed = -1;
+        stopped = false;
+    }
+
+    /**
+     * Send the smoothed input as a roll command
+     */
+    private synchronized void tick()
+    {
+        try
+        {
+            DriveAlgorithm algorithm = robot.getDriveAlgorithm();
+
+            if (hasInput)
+            {
+                System.arraycopy(input, 0, target, 0, target.length);
+                hasInput = false;
+                hasTarget = true;
+            }
+            else if (!hasTarget || converged(algorithm))
+            {
+                // Nothing new and the smoothed input has settled
+                idle();
+                return;
+            }
+
+            // Move the smoothed input towards the last input
+            for (int i = 0; i < smoothed.length; i++)
+            {
+                double v = algorithm.applyDeadZone(i, target[i]);
+                smoothed[i] = hasSmoothed ? smoothing * smoothed[i] + (1 - smoothing) * v : v;
+            }
+            hasSmoothed = true;
+
+            if (!robot.isConnected())
+                return;
+
+            algorithm.convert(smoothed[0], smoothed[1], smoothed[2]);
+            algorithm.adjustHeading();
+            double heading = Value.clamp(algorithm.getAdjustedHeading(), 0.0D, 359.0D);
+            double speed = algorithm.getSpeed();
+            algorithm.setAdjustedHeading(heading);
+
+            if (isStopPosition(algorithm) && speed < speedThreshold)
+            {
+                // The input was released, skip the rest of the smoothing
+                // and stop the robot in its current heading
+                for (int i = 0; i < smoothed.length; i++)
+                    smoothed[i] = algorithm.applyDeadZone(i, target[i]);
+
+                if (!stopped)
+                {
+                    stopped = true;
+                    sentSpeed = 0;
+                    robot.sendCommand(new RollCommand((float) sentHeading, 0, true));
+                }
+                return;
+            }
+
+            if (!changed(heading, speed))
+                return;
+
+            stopped = false;
+            sentHeading = heading;
+            sentSpeed = speed;
+            robot.sendCommand(roll.set((float) heading, (float) speed, false));
+        }
+        catch (RuntimeException e)
+        {
+            Logging.error("Drive tick failed", e);
+        }
+    }
+
+    /**
+     * Returns true if the last input is the stop position of the drive
+     * algorithm (after the dead zone)
+     */
+    private boolean isStopPosition(DriveAlgorithm algorithm)
+    {
+        for (int i = 0; i < target.length && i < smoothed.length; i++)
+            if (algorithm.applyDeadZone(i, target[i]) != algorithm.stopPosition[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns true if the smoothed input is close enough to the last input
+     */
+    private boolean converged(DriveAlgorithm algorithm)
+    {
+        for (int i = 0; i < smoothed.length; i++)
+            if (Math.abs(smoothed[i] - algorithm.applyDeadZone(i, target[i])) > 1e-3)
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns true if the roll command differs enough from the last one that
+     * was sent
+     */
+    private boolean changed(double heading, double speed)
+    {
+        if (sentSpeed < 0)
+            return true;
+
+        // Always send when the robot starts or stops
+        if ((speed == 0) != (sentSpeed == 0))
+            return true;
+
+        double dh = Math.abs(heading - sentHeading) % 360;
+        dh = Math.min(dh, 360 - dh);
+        return dh >= headingThreshold || Math.abs(speed - sentSpeed) >= speedThreshold;
+    }
+}
@@ -16,6 +16,10 @@ public class JoyStickDriveAlgorithm extends DriveAlgorithm
 	{
         center_x = padWidth / 2.0D;
         center_y = padHeight / 2.0D;
+
+		// The robot stops when the stick is at the center of the pad
+        stopPosition[0] = center_x;
+        stopPosition[1] = center_y;
 	}
 
 	@Override
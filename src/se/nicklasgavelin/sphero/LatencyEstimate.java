@@ -0,0 +1,95 @@
+package se.nicklasgavelin.sphero;
+
+/**
+ * The latency between the application and a robot, estimated from ping
+ * round trips. The robot has no clock that can be read, so the time it takes
+ * a command to reach and be executed by the robot is estimated as half of
+ * the shortest round trip (the round trip with the least queueing).
+ */
+public final class LatencyEstimate
+{
+    private final double minRoundTrip, meanRoundTrip, jitter;
+    private final int samples;
+
+    /**
+     * Create an estimate from round trip times
+     *
+     * @param roundTrips The round trip times (ms)
+     * @param count The number of valid round trip times
+     */
+    LatencyEstimate(double[] roundTrips, int count)
+    {
+        double min = Double.MAX_VALUE, sum = 0;
+        for (int i = 0; i < count; i++)
+        {
+            min = Math.min(min, roundTrips[i]);
+            sum += roundTrips[i];
+        }
+
+        double mean = count > 0 ? sum / count : 0, var = 0;
+        for (int i = 0; i < count; i++)
+            var += (roundTrips[i] - mean) * (roundTrips[i] - mean);
+
+        this.minRoundTrip = count > 0 ? min : 0;
+        this.meanRoundTrip = mean;
+        this.jitter = count > 1 ? Math.sqrt(var / (count - 1)) : 0;
+        this.samples = count;
+    }
+
+    /**
+     * Returns the estimated time from sending a command until the robot
+     * executes it
+     *
+     * @return The one way latency (ms)
+     */
+    public double getOneWay()
+    {
+        return minRoundTrip / 2;
+    }
+
+    /**
+     * Returns the shortest measured round trip
+     *
+     * @return The shortest round trip (ms)
+     */
+    public double getMinRoundTrip()
+    {
+        return minRoundTrip;
+    }
+
+    /**
+     * Returns the mean of the measured round trips
+     *
+     * @return The mean round trip (ms)
+     */
+    public double getMeanRoundTrip()
+    {
+        return meanRoundTrip;
+    }
+
+    /**
+     * Returns the standard deviation of the measured round trips
+     *
+     * @return The jitter (ms)
+     */
+    public double getJitter()
+    {
+        return jitter;
+    }
+
+    /**
+     * Returns the number of round trips that the estimate is based on
+     *
+     * @return The number of samples (0 if the robot never answered)
+     */
+    public int getSamples()
+    {
+        return samples;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("LatencyEstimate{oneWay=%.1fms, minRoundTrip=%.1fms, meanRoundTrip=%.1fms, jitter=%.1fms, samples=%d}", getOneWay(), minRoundTrip, meanRoundTrip, jitter, samples);
+    }
+}
@@ -1,13 +1,20 @@
 package se.nicklasgavelin.sphero;
 
+import se.nicklasgavelin.configuration.ProjectProperties;
+import se.nicklasgavelin.log.Logging;
 import se.nicklasgavelin.sphero.command.*;
 import se.nicklasgavelin.sphero.macro.MacroCommand;
 import se.nicklasgavelin.sphero.macro.MacroObject;
 import se.nicklasgavelin.sphero.macro.command.Emit;
 import se.nicklasgavelin.util.ByteArrayBuffer;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Manages transmission of Macro commands and allows for
@@ -19,12 +26,21 @@ import java.util.Collection;
  */
 class MACRO_SETTINGS
 {
+    // Emit identifiers used for streamed pieces, reserved so that emits
+    // added by the user are never taken for the end of a piece
+    private static final int FIRST_EMIT_IDENTIFIER = Emit.FIRST_RESERVED_IDENTIFIER, LAST_EMIT_IDENTIFIER = Emit.MAX_IDENTIFIER;
+
     private Robot robot_outer_arg;
-    private final Collection<MacroCommand> commands;
+    private final Deque<MacroCommand> commands;
     private final ThreadLocal<Collection<CommandMessage>> sendingQueue;
-    private final Collection<Integer> ballMemory;
+    // Pieces stored on the robot, in the order they will be played
+    private final Deque<MacroChunk> inFlight;
+    // Emit identifiers of the pieces in flight
+    private final BitSet emitsInFlight;
+    // Macros stored on the robot
+    private final MacroCache macroCache;
     private boolean macroRunning, macroStreamingEnabled;
-    private int emits;
+    private int pendingBytes, bytesInFlight, nextEmitIdentifier = FIRST_EMIT_IDENTIFIER;
 
     /**
      * Create a macro settings object
@@ -32,14 +48,16 @@ class MACRO_SETTINGS
     MACRO_SETTINGS(Robot robot_outer_arg)
     {
         this.robot_outer_arg = robot_outer_arg;
-        commands = new ArrayList<>();
+        commands = new ArrayDeque<>();
         sendingQueue = new ThreadLocal<Collection<CommandMessage>>() {
             @Override
             protected Collection<CommandMessage> initialValue() {
                 return new ArrayList<>();
             }
         };
-        ballMemory = new ArrayList<>();
+        inFlight = new ArrayDeque<>();
+        emitsInFlight = new BitSet(LAST_EMIT_IDENTIFIER + 1);
+        macroCache = new MacroCache(ProjectProperties.getInstance().getMacroCacheStorageSize(), ProjectProperties.getInstance().getMacroCacheHotCount());
         macroRunning = false;
         macroStreamingEnabled = true;
     }
@@ -47,14 +65,27 @@ class MACRO_SETTINGS
     /**
      * Stop any current macros from running
      */
-    void stopMacro()
+    synchronized void stopMacro()
     {
-        // Abort the current macro
+        // Abort the current macro, the memory is cleared when the abort is
+        // queued and here in case the queue doesn't accept commands
         robot_outer_arg.sendCommand(new AbortMacroCommand());
+        macroAborted();
+    }
 
+    /**
+     * Called when an abort macro command is queued. The streamed macro is
+     * stopped, pieces that have not been sent are forgotten and pieces that
+     * are dropped from the sending queue are not sent again.
+     */
+    synchronized void macroAborted()
+    {
         // Clear the memory
         commands.clear();
-        ballMemory.clear();
+        inFlight.clear();
+        emitsInFlight.clear();
+        pendingBytes = 0;
+        bytesInFlight = 0;
 
         // Set motorStop flag
         macroRunning = false;
@@ -63,10 +94,9 @@ class MACRO_SETTINGS
     /**
      * Stop macro from executing (finished)
      */
-    protected void stopIfFinished()
+    protected synchronized void stopIfFinished()
     {
-        emits = emits > 0 ? emits - 1 : 0;
-        if (commands.isEmpty() && macroRunning && emits == 0)
+        if (commands.isEmpty() && macroRunning && inFlight.isEmpty())
         {
             stopMacro();
 
@@ -80,13 +110,32 @@ class MACRO_SETTINGS
      *
      * @param macro The given macro object
      */
-    void playMacro(MacroObject macro)
+    synchronized void playMacro(MacroObject macro)
     {
         if (macro.getMode().equals(MacroObject.MacroObjectMode.Normal))
         {
-            // Normal macro mode
-            robot_outer_arg.sendSystemCommand(new SaveTemporaryMacroCommand(1, macro.generateMacroData()));
-            robot_outer_arg.sendSystemCommand(new RunMacroCommand(-1));
+            // Normal macro mode, macros that are played often are stored on
+            // the robot once and only need to be started afterwards. Until
+            // the save is acknowledged the macro is played as a temporary
+            // macro so that a failed save never runs a stale macro.
+            // The save and the run are queued as one group so that they stay
+            // in order in the sending queue
+            byte[] data = macro.generateMacroData();
+            List<CommandMessage> group = new ArrayList<>(3);
+            int id = macroCache.get(data);
+            if (id == MacroCache.NO_ID)
+            {
+                int saveId = macroCache.put(data);
+                if (saveId != MacroCache.NO_ID)
+                    group.add(new SaveMacroCommand(SaveMacroCommand.MacroFlagMotorControl, saveId, data));
+
+                group.add(new SaveTemporaryMacroCommand(1, data));
+                group.add(new RunMacroCommand(-1));
+            }
+            else
+                group.add(new RunMacroCommand(id));
+
+            robot_outer_arg.sendSystemCommands(group);
         }
         else
         {
@@ -100,9 +149,14 @@ class MACRO_SETTINGS
                 // Cached streaming mode
                 if (!macro.getCommands().isEmpty())
                 {
-                    // Get all macro commands localy instead
+                    // Get all macro commands localy instead (compiled so that
+                    // fewer and smaller pieces need to be sent)
                     // this.commands.clear();
-                    commands.addAll(macro.getCommands());
+                    for (MacroCommand cmd : macro.compile().getCommands())
+                    {
+                        commands.add(cmd);
+                        pendingBytes += cmd.getLength();
+                    }
 
                     macroRunning = true;
 
@@ -119,6 +173,105 @@ class MACRO_SETTINGS
         }
     }
 
+    /**
+     * Resume a streamed macro after a reconnect. The pieces stored on the
+     * robot before the connection was lost are unknown to the robot now, so
+     * they are sent again (a piece that was partly played is played again
+     * from its start).
+     *
+     * @return True if a streamed macro is resumed
+     */
+    synchronized boolean resume()
+    {
+        if (!macroRunning)
+            return false;
+
+        Iterator<MacroChunk> it = inFlight.descendingIterator();
+        while (it.hasNext())
+        {
+            List<MacroCommand> chunk = it.next().commands;
+            for (int i = chunk.size() - 1; i >= 0; i--)
+            {
+                commands.addFirst(chunk.get(i));
+                pendingBytes += chunk.get(i).getLength();
+            }
+        }
+        inFlight.clear();
+        emitsInFlight.clear();
+        bytesInFlight = 0;
+
+        emptyMacroCommandQueue();
+        return true;
+    }
+
+    /**
+     * Forget all macros stored on the robot (the robot loses them when the
+     * connection is lost)
+     */
+    synchronized void clearMacroCache()
+    {
+        macroCache.clear();
+    }
+
+    /**
+     * Called when the robot has acknowledged a saved macro, the macro is
+     * run from its id from now on
+     *
+     * @param command The acknowledged save command
+     */
+    synchronized void macroSaved(SaveMacroCommand command)
+    {
+        if (command.getDestination() != (SaveMacroCommand.MACRO_STREAMING_DESTINATION & 0xFF))
+            macroCache.saved(command.getDestination(), command.getMacroData());
+    }
+
+    /**
+     * Called when the robot failed to save a macro, the macro will be
+     * played as a temporary macro until it is stored again
+     *
+     * @param command The failed save command
+     */
+    synchronized void macroSaveFailed(SaveMacroCommand command)
+    {
+        if (command.getDestination() != (SaveMacroCommand.MACRO_STREAMING_DESTINATION & 0xFF))
+            macroCache.invalidate(command.getDestination());
+    }
+
+    /**
+     * Called when a save macro command was dropped from the sending queue
+     * without being written. A dropped macro is not stored on the robot, a
+     * dropped streamed piece is released and its commands are sent again
+     * (unless the streamed macro was stopped or aborted).
+     *
+     * @param command The dropped save command
+     */
+    synchronized void macroDropped(SaveMacroCommand command)
+    {
+        if (command.getDestination() != (SaveMacroCommand.MACRO_STREAMING_DESTINATION & 0xFF))
+        {
+            macroSaveFailed(command);
+            return;
+        }
+
+        for (Iterator<MacroChunk> it = inFlight.iterator(); it.hasNext();)
+        {
+            MacroChunk chunk = it.next();
+            if (chunk.command != command)
+                continue;
+
+            it.remove();
+            emitsInFlight.clear(chunk.emitIdentifier);
+            bytesInFlight -= chunk.size;
+            for (int i = chunk.commands.size() - 1; i >= 0; i--)
+            {
+                commands.addFirst(chunk.commands.get(i));
+                pendingBytes += chunk.commands.get(i).getLength();
+            }
+            emptyMacroCommandQueue();
+            return;
+        }
+    }
+
     /**
      * Send a command after a CachedStreaming macro has run
      *
@@ -139,68 +292,121 @@ class MACRO_SETTINGS
         sendingQueue.get().clear();
     }
 
+    /**
+     * Acknowledge that the robot has reached the end of a streamed macro
+     * piece (the robot sent an emit message with the given identifier).
+     * All pieces up to and including the acknowledged one are released from
+     * the robot memory and the freed space is filled with new pieces.
+     *
+     * @param identifier The emit identifier received from the robot
+     */
+    synchronized void acknowledge(int identifier)
+    {
+        // Pieces are played in order so an emit also acknowledges any
+        // earlier piece whose emit we missed. Identifiers of pieces that are
+        // not in flight are emits added by the user and are ignored.
+        if (!macroRunning || !emitsInFlight.get(identifier))
+            return;
+
+        MacroChunk chunk;
+        do
+        {
+            chunk = inFlight.poll();
+            emitsInFlight.clear(chunk.emitIdentifier);
+            bytesInFlight -= chunk.size;
+        }
+        while (chunk.emitIdentifier != identifier);
+
+        // Transmit any remaining macro data now that we got more memory on
+        // the device
+        emptyMacroCommandQueue();
+        stopIfFinished();
+    }
+
     /**
      * Continue emptying the macro command queue by creating new commands
-     * and sending them to the Sphero device
+     * and sending them to the Sphero device. Pieces are sent as long as the
+     * robot has room for them so that the robot always has the next piece
+     * stored when the current one finishes.
      */
     synchronized void emptyMacroCommandQueue()
     {
-        // Calculate number of free bytes that we have
-        int ballSpace = freeBallMemory(), freeBytes = ballSpace > robot_outer_arg.getRobotSettings().getMacroMaxSize() ? robot_outer_arg.getRobotSettings().getMacroMaxSize() : ballSpace, chunkSize = 0;
+        RobotSetting settings = robot_outer_arg.getRobotSettings();
+        int emitLength = MacroCommand.MACRO_COMMAND.MAC_EMIT.getLength(), endLength = 1;
 
-        // Check if we need or can create more commands
-        if (commands.isEmpty() || ballSpace <= robot_outer_arg.getRobotSettings().getMacroMinSpaceSize())
-            return;
+        while (!commands.isEmpty())
+        {
+            // Wait until the next emit identifier is released
+            if (emitsInFlight.get(nextEmitIdentifier))
+                return;
 
-        // Create our sending collection (stuff that we want to send)
-        Collection<MacroCommand> send = new ArrayList<>();
+            // Wait for a reasonable amount of free space unless the rest of
+            // the macro fits in less
+            int ballSpace = freeBallMemory();
+            if (ballSpace < Math.min(settings.getMacroMinSpaceSize(), pendingBytes + emitLength + endLength))
+                return;
 
-        // Emit marker (we will receive a message from the Sphero when this emit
-        // marker is reached)
-        Emit em = new Emit(1);
-        int emitLength = em.getLength();
+            int freeBytes = Math.min(ballSpace, settings.getMacroMaxSize()), chunkSize = emitLength;
+            Collection<MacroCommand> send = new ArrayList<>();
 
-        // Go through new commands that we want to send
-        for(MacroCommand cmd : commands)
-        {
-            // Check if we allow for the new command to be added (that we still got
-            // enough space left to add it)
-            if (freeBytes - (chunkSize + cmd.getLength() + emitLength) <= 0 || chunkSize + cmd.getLength() + emitLength > robot_outer_arg.getRobotSettings().getMacroMaxSize())
-                break;
-
-            // Add the command to the send queue and increase the space we've used
-            send.add(cmd);
-            chunkSize += cmd.getLength();
-        }
+            // Go through new commands that we want to send and add them as
+            // long as we still got enough space left
+            while (!commands.isEmpty())
+            {
+                MacroCommand cmd = commands.peek();
+                int last = commands.size() == 1 ? endLength : 0;
+                if (chunkSize + cmd.getLength() + last > freeBytes)
+                    break;
+
+                send.add(commands.poll());
+                pendingBytes -= cmd.getLength();
+                chunkSize += cmd.getLength();
+            }
 
-        // Remove the commands that we can send from the waiting command queue
-        commands.removeAll(send);
+            if (send.isEmpty())
+            {
+                // A command that will never fit in a piece would block the
+                // queue forever
+                MacroCommand cmd = commands.peek();
+                if (cmd.getLength() + emitLength + endLength > settings.getMacroMaxSize())
+                {
+                    Logging.error("Macro command too large for streaming, dropping " + cmd.getClass().getSimpleName() + " (" + cmd.getLength() + " bytes)");
+                    pendingBytes -= commands.poll().getLength();
+                    continue;
+                }
+                return;
+            }
 
-        // Add emitter
-        send.add(em);
-        chunkSize += em.getLength();
+            List<MacroCommand> played = new ArrayList<>(send);
 
-        // Create our sending buffer to add commands to
-        ByteArrayBuffer sendBuffer = new ByteArrayBuffer(chunkSize);
+            // Emit marker (we will receive a message from the Sphero when this
+            // emit marker is reached)
+            int identifier = nextEmitIdentifier;
+            nextEmitIdentifier = nextEmitIdentifier >= LAST_EMIT_IDENTIFIER ? FIRST_EMIT_IDENTIFIER : nextEmitIdentifier + 1;
+            send.add(new Emit(identifier));
 
-        // Add all commands to the buffer
-        for(MacroCommand cmd : send)
-            sendBuffer.append(cmd.getByteRepresentation());
+            if (commands.isEmpty())
+                chunkSize += endLength;
 
-        if (this.commands.isEmpty())
-            sendBuffer.append(MacroCommand.MACRO_COMMAND.MAC_END.getValue());
+            // Create our sending buffer and add all commands to it
+            ByteArrayBuffer sendBuffer = ByteArrayBuffer.acquire(chunkSize);
+            for (MacroCommand cmd : send)
+                sendBuffer.append(cmd.getByteRepresentation());
 
-        ballMemory.add(chunkSize);
+            if (commands.isEmpty())
+                sendBuffer.append(MacroCommand.MACRO_COMMAND.MAC_END.getValue());
 
-        // Send a save macro command to the Sphero with the new data
-        SaveMacroCommand svc = new SaveMacroCommand(SaveMacroCommand.MacroFlagMotorControl, SaveMacroCommand.MACRO_STREAMING_DESTINATION, sendBuffer.toByteArray());
+            byte[] chunk = sendBuffer.toByteArray();
+            sendBuffer.release();
 
-        emits++;
-        robot_outer_arg.sendSystemCommand(svc);
+            SaveMacroCommand save = new SaveMacroCommand(SaveMacroCommand.MacroFlagMotorControl, SaveMacroCommand.MACRO_STREAMING_DESTINATION, chunk);
+            inFlight.add(new MacroChunk(identifier, chunkSize, played, save));
+            emitsInFlight.set(identifier);
+            bytesInFlight += chunkSize;
 
-        // Check if we can continue creating more messages to send
-        if (!commands.isEmpty() && freeBallMemory() > robot_outer_arg.getRobotSettings().getMacroMinSpaceSize())
-            emptyMacroCommandQueue();
+            // Send a save macro command to the Sphero with the new data
+            robot_outer_arg.sendSystemCommand(save);
+        }
     }
 
     /**
@@ -210,17 +416,40 @@ class MACRO_SETTINGS
      */
     private int freeBallMemory()
     {
-        int bytesInUse = 0;
-        for (Integer aBallMemory : ballMemory) bytesInUse = bytesInUse + aBallMemory;
-
-        return robot_outer_arg.getRobotSettings().getMacroRobotStorageSize() - bytesInUse;
+        return robot_outer_arg.getRobotSettings().getMacroRobotStorageSize() - bytesInFlight;
     }
 
     public boolean getMacroRunning() {
         return macroRunning;
     }
 
-    public Collection<Integer> getBallMemory() {
-        return ballMemory;
+    /**
+     * Returns the number of macro bytes stored on the robot that have not
+     * yet been played
+     *
+     * @return The number of bytes in flight
+     */
+    public int getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    /**
+     * A streamed macro piece that is stored on the robot
+     */
+    private static final class MacroChunk
+    {
+        private final int emitIdentifier, size;
+        // The commands of the piece (without the emit), sent again on resume
+        private final List<MacroCommand> commands;
+        // The command that stores the piece on the robot
+        private final SaveMacroCommand command;
+
+        private MacroChunk(int emitIdentifier, int size, List<MacroCommand> commands, SaveMacroCommand command)
+        {
+            this.emitIdentifier = emitIdentifier;
+            this.size = size;
+            this.commands = commands;
+            this.command = command;
+        }
     }
 }
@@ -0,0 +1,227 @@
+package se.nicklasgavelin.sphero;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the macros that are stored on the robot under a user
+ * macro id. Macros are identified by their generated byte code, a macro
+ * that is played often enough is stored on the robot once and then only
+ * needs a RunMacroCommand to be played again. Stored macros are evicted in
+ * least recently used order when the ids or the storage space run out. A
+ * macro is only run from its id once the robot has acknowledged the save,
+ * until then it is played as a temporary macro.
+ *
+ * The robot loses its user macros when the connection is lost so the
+ * cache needs to be cleared on every new connection.
+ */
+class MacroCache
+{
+    /**
+     * Returned when a macro is not (and should not be) stored on the robot
+     */
+    static final int NO_ID = -1;
+
+    // User macro id range on the robot
+    private static final int FIRST_USER_MACRO_ID = 32, LAST_USER_MACRO_ID = 253;
+
+    // Number of played but not stored macros to remember
+    private static final int MAX_SEEN = 64;
+
+    private final int storage, hotCount;
+    private final Map<MacroKey, CachedMacro> cached;
+    private final Map<MacroKey, Integer> seen;
+    private final Deque<Integer> freeIds;
+    private int storedBytes;
+
+    /**
+     * Create a macro cache
+     *
+     * @param storage The number of bytes on the robot that may be used for
+     *            cached macros
+     * @param hotCount The number of times a macro needs to be played
+     *            before it is stored on the robot
+     */
+    MacroCache(int storage, int hotCount)
+    {
+        this.storage = storage;
+        this.hotCount = Math.max(1, hotCount);
+        this.cached = new LinkedHashMap<>(16, 0.75f, true);
+        this.seen = new LinkedHashMap<MacroKey, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<MacroKey, Integer> eldest) {
+                return size() > MAX_SEEN;
+            }
+        };
+        this.freeIds = new ArrayDeque<>();
+        clear();
+    }
+
+    /**
+     * Returns the id of the macro if it's stored on the robot
+     *
+     * @param data The macro byte code
+     *
+     * @return The macro id or NO_ID if the macro is not stored on the robot
+     *         or the save has not been acknowledged yet
+     */
+    synchronized int get(byte[] data)
+    {
+        CachedMacro macro = cached.get(new MacroKey(data));
+        return macro == null || !macro.saved ? NO_ID : macro.id;
+    }
+
+    /**
+     * Register that a macro is played and allocate an id for it if it has
+     * been played often enough. The caller is responsible for saving the
+     * macro on the robot under the returned id and for calling saved when
+     * the save is acknowledged.
+     *
+     * @param data The macro byte code
+     *
+     * @return The allocated macro id or NO_ID if the macro should not be
+     *         saved (it's not played often enough or it's already saved or
+     *         being saved)
+     */
+    synchronized int put(byte[] data)
+    {
+        MacroKey key = new MacroKey(data);
+        if (cached.containsKey(key))
+            return NO_ID;
+
+        Integer count = seen.get(key);
+        count = count == null ? 1 : count + 1;
+        if (count < hotCount || data.length > storage)
+        {
+            seen.put(key, count);
+            return NO_ID;
+        }
+        seen.remove(key);
+
+        // Evict the least recently used macros until there is room
+        Iterator<CachedMacro> it = cached.values().iterator();
+        while ((freeIds.isEmpty() || storedBytes + data.length > storage) && it.hasNext())
+        {
+            CachedMacro evicted = it.next();
+            it.remove();
+            storedBytes -= evicted.size;
+
+            // Reuse the evicted id first so that the stored macro is
+            // overwritten on the robot
+            freeIds.addFirst(evicted.id);
+        }
+
+        CachedMacro macro = new CachedMacro(freeIds.poll(), data.length);
+        cached.put(key, macro);
+        storedBytes += macro.size;
+
+        return macro.id;
+    }
+
+    /**
+     * Mark a macro as stored on the robot, called when the robot has
+     * acknowledged the save
+     *
+     * @param id The macro id the macro was saved to
+     * @param data The macro byte code
+     */
+    synchronized void saved(int id, byte[] data)
+    {
+        CachedMacro macro = cached.get(new MacroKey(data));
+        if (macro != null && macro.id == id)
+            macro.saved = true;
+    }
+
+    /**
+     * Remove the macro stored under the given id (used when saving the
+     * macro on the robot failed)
+     *
+     * @param id The macro id
+     */
+    synchronized void invalidate(int id)
+    {
+        Iterator<CachedMacro> it = cached.values().iterator();
+        while (it.hasNext())
+        {
+            CachedMacro macro = it.next();
+            if (macro.id == id)
+            {
+                it.remove();
+                storedBytes -= macro.size;
+                freeIds.addLast(id);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forget all stored macros
+     */
+    synchronized void clear()
+    {
+        cached.clear();
+        seen.clear();
+        freeIds.clear();
+        storedBytes = 0;
+        for (int id = FIRST_USER_MACRO_ID; id <= LAST_USER_MACRO_ID; id++)
+            freeIds.add(id);
+    }
+
+    /**
+     * Returns the number of macros stored on the robot
+     *
+     * @return The number of stored macros
+     */
+    synchronized int size()
+    {
+        return cached.size();
+    }
+
+    /**
+     * A macro stored on the robot
+     */
+    private static final class CachedMacro
+    {
+        private final int id, size;
+        private boolean saved;
+
+        private CachedMacro(int id, int size)
+        {
+            this.id = id;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Macro byte code used as a map key, compared by content
+     */
+    private static final class MacroKey
+    {
+        private final byte[] data;
+        private final int hash;
+
+        private MacroKey(byte[] data)
+        {
+            this.data = data;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof MacroKey && hash == ((MacroKey) o).hash && Arrays.equals(data, ((MacroKey) o).data);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package se.nicklasgavelin.sphero;
+
+import se.nicklasgavelin.bluetooth.BluetoothConnection;
+import se.nicklasgavelin.sphero.response.ResponseMessage;
+
+import java.io.IOException;
+
+/**
+ * Receive buffer of the stream listener. Every read fills all the free space
+ * of the buffer so a burst of packets is received with one call, the
+ * capacity follows the observed burst size: it is doubled when a read fills
+ * the buffer and halved when the largest read of a window of reads would
+ * have fit in a quarter of it. Complete packets are read directly from the
+ * backing array, incomplete data is moved to the front before the next
+ * read.
+ *
+ * @author Nicklas Gavelin
+ */
+class ReceiveBuffer
+{
+    // Number of reads before the capacity may shrink
+    private static final int SHRINK_WINDOW = 64;
+
+    private final int minCapacity, maxCapacity;
+    private byte[] data;
+    private int position, limit;
+    private int reads, largestRead;
+
+    /**
+     * Create a receive buffer
+     *
+     * @param minCapacity The initial and smallest capacity
+     * @param maxCapacity The largest capacity
+     */
+    ReceiveBuffer(int minCapacity, int maxCapacity)
+    {
+        // Must always be able to hold the largest packet
+        int largestPacket = ResponseMessage.RESPONSE_HEADER_LENGTH + Byte.MAX_VALUE;
+        this.minCapacity = Math.max(minCapacity, ResponseMessage.RESPONSE_HEADER_LENGTH);
+        this.maxCapacity = Math.max(Math.max(maxCapacity, this.minCapacity), largestPacket);
+        this.data = new byte[ this.minCapacity ];
+    }
+
+    /**
+     * Read as much as is available into the free space of the buffer,
+     * blocks until at least one byte is read
+     *
+     * @param btc The connection to read from
+     *
+     * @return The number of bytes read or -1 if the end of the stream is
+     *         reached
+     *
+     * @throws IOException If the read fails
+     */
+    int readFrom(BluetoothConnection btc) throws IOException
+    {
+        compact();
+        if (limit == data.length)
+            resize(data.length * 2);
+
+        int free = data.length - limit;
+        int read = btc.read(data, limit, free);
+        if (read <= 0)
+            return read;
+
+        limit += read;
+        adapt(read, read == free);
+        return read;
+    }
+
+    /**
+     * Returns the length of the packet at the current position
+     *
+     * @return The packet length or 0 if the packet is not complete
+     */
+    int packetLength()
+    {
+        int available = remaining();
+        if (available < ResponseMessage.RESPONSE_HEADER_LENGTH)
+            return 0;
+
+        int length = ResponseMessage.RESPONSE_HEADER_LENGTH + data[position + ResponseMessage.PAYLOAD_LENGTH_INDEX];
+        return length <= available ? length : 0;
+    }
+
+    /**
+     * Returns the number of received bytes that have not been handled
+     *
+     * @return The number of bytes
+     */
+    int remaining()
+    {
+        return limit - position;
+    }
+
+    /**
+     * Returns true if the data at the current position starts with a packet
+     * header that can be parsed, requires a complete header to be received
+     *
+     * @return True if the data starts with a valid header
+     */
+    boolean isPacketStart()
+    {
+        return data[position] == (byte) 0xFF
+                && (data[position + 1] == (byte) 0xFF || data[position + 1] == (byte) 0xFE)
+                && data[position + ResponseMessage.PAYLOAD_LENGTH_INDEX] >= 0;
+    }
+
+    /**
+     * Returns the backing array, packets start at position()
+     *
+     * @return The backing array
+     */
+    byte[] array()
+    {
+        return data;
+    }
+
+    int position()
+    {
+        return position;
+    }
+
+    /**
+     * Skip data that has been handled
+     *
+     * @param n The number of bytes to skip
+     */
+    void skip(int n)
+    {
+        position += n;
+    }
+
+    int capacity()
+    {
+        return data.length;
+    }
+
+    /**
+     * Move the unread data to the front of the buffer
+     */
+    private void compact()
+    {
+        if (position == 0)
+            return;
+
+        System.arraycopy(data, position, data, 0, limit - position);
+        limit -= position;
+        position = 0;
+    }
+
+    /**
+     * Update the capacity from the size of the latest read
+     *
+     * @param read The number of bytes read
+     * @param filled True if the read filled the buffer
+     */
+    private void adapt(int read, boolean filled)
+    {
+        if (filled)
+        {
+            // More data may be waiting, grow for the next burst
+            reads = largestRead = 0;
+            if (data.length < maxCapacity)
+                resize(data.length * 2);
+            return;
+        }
+
+        largestRead = Math.max(largestRead, read);
+        if (++reads < SHRINK_WINDOW)
+            return;
+
+        if (largestRead * 4 <= data.length && data.length > minCapacity)
+            resize(data.length / 2);
+        reads = largestRead = 0;
+    }
+
+    private void resize(int capacity)
+    {
+        int c = Math.max(minCapacity, Math.min(maxCapacity, capacity));
+        c = Math.max(c, limit);
+        if (c == data.length)
+            return;
+
+        byte[] d = new byte[ c ];
+        System.arraycopy(data, 0, d, 0, limit);
+        data = d;
+    }
+}
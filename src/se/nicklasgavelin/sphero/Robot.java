@@ -7,9 +7,9 @@ import se.nicklasgavelin.log.Logging;
 import se.nicklasgavelin.sphero.command.*;
 import se.nicklasgavelin.sphero.exception.RobotBluetoothException;
 import se.nicklasgavelin.sphero.exception.RobotInitializeConnectionFailed;
+import se.nicklasgavelin.sphero.journal.RobotJournal;
+import se.nicklasgavelin.sphero.macro.ColorTransition;
 import se.nicklasgavelin.sphero.macro.MacroObject;
-import se.nicklasgavelin.sphero.macro.command.Delay;
-import se.nicklasgavelin.sphero.macro.command.RGB;
 import se.nicklasgavelin.sphero.response.InformationResponseMessage;
 import se.nicklasgavelin.sphero.response.ResponseMessage;
 import se.nicklasgavelin.util.Value;
@@ -17,8 +17,18 @@ import se.nicklasgavelin.util.Value;
 import java.awt.*;
 import java.util.*;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 /**
  * Robot class. Mirrors the direct connection between the application
@@ -39,8 +49,9 @@ import java.util.logging.Logger;
  *         Technology
  * @version 1.2
  * 
- *          TODO: Set temporary internal values on sending commands so that we don't
- *          update them too late if we send multiple commands
+ *          The movement and led values are applied speculatively when a
+ *          command is queued (getIntendedState) and confirmed when the robot
+ *          answers (getState), see speculate.
  */
 public class Robot
 {
@@ -49,19 +60,54 @@ public class Robot
 	// Bluetooth
 	private final BluetoothDevice bt;
 	private BluetoothConnection btc;
-	private boolean connected;
+	private volatile boolean connected;
 	// Listener/writer
 	private RobotStreamListener listeningThread;
 	private RobotSendingQueue sendingTimer;
+
+	// Shared threads and the listener notification order for this robot
+	private final RobotExecutor executor;
+	private final Executor dispatcher;
+
+	// Time to wait for the last commands on shutdown (ms)
+	private static final long SHUTDOWN_TIMEOUT = 2000;
+
+	// Initialization commands that have not been answered yet
+	private final Set<CommandMessage> handshake = ConcurrentHashMap.newKeySet();
+	private volatile CountDownLatch handshakeDone = new CountDownLatch(0);
+	// Connection timing (System.nanoTime)
+	private volatile long connectStarted, linkEstablished, handshakeCompleted;
+
+	// System commands whose response is awaited
+	private final Map<CommandMessage, CompletableFuture<ResponseMessage>> awaitedResponses = new ConcurrentHashMap<>();
+
+	// Automatic reconnect
+	private volatile boolean autoReconnect = ProjectProperties.getInstance().getReconnectEnabled();
+	private ScheduledFuture<?> reconnect;
+	private int reconnectAttempt;
+	// True while a reconnect attempt is running (its future is already done)
+	private boolean reconnecting;
 	private final List<RobotListener> listeners;
 	// Other
 	private String name;
 	// Robot macro
 	private MACRO_SETTINGS macroSettings;
-	// Robot position and led color
-	private RobotMovement movement;
-	private RobotRawMovement rawMovement;
-	private RobotLED led;
+	// Robot position and led color, replaced as a whole on every change
+	private final AtomicReference<RobotState> state;
+	private final List<RobotStateListener> stateListeners;
+	// Effects of queued commands that have not been answered yet (in sending
+	// order) and the confirmed state with these effects applied
+	private final Deque<PendingEffect> pendingEffects = new ArrayDeque<>();
+	private final AtomicReference<RobotState> intendedState;
+	private volatile long nextEffectDeadline = Long.MAX_VALUE;
+	// Time to wait for a response before a speculative effect is rolled back (ms)
+	private static final long SPECULATION_TIMEOUT = 5000;
+	// Created on the first drive call
+	private volatile DrivePipeline drivePipeline;
+	// Active data streaming settings (null if no streaming is set up)
+	private volatile SetDataStreamingCommand dataStreaming;
+	// Journal of sent commands and received responses (null if not journaled)
+	private volatile RobotJournal journal;
 	// Pinger
 	private float PING_INTERVAL; // Time in milliseconds
 	// Address
@@ -96,8 +142,24 @@ public class Robot
 	 * @throws RobotBluetoothException
 	 */
 	public Robot(BluetoothDevice bt, RobotSetting rs) throws RobotBluetoothException
+	{
+		this(bt, rs, RobotExecutor.getDefault());
+	}
+
+	/**
+	 * Create a robot that uses the threads of the given executor
+	 * 
+	 * @param bt The Bluetooth device that represents the robot
+	 * @param rs The robot settings (null for the default settings)
+	 * @param executor The executor to run the robot on
+	 * 
+	 * @throws RobotBluetoothException
+	 */
+	Robot(BluetoothDevice bt, RobotSetting rs, RobotExecutor executor) throws RobotBluetoothException
 	{
 		this.bt = bt;
+		this.executor = executor;
+		this.dispatcher = executor.newDispatcher();
 
 		// Create a unique logger for this class instance
 		// this.logger = Logging.createLogger(Robot.class, Robot.logLevel,
@@ -118,9 +180,9 @@ public class Robot
         PING_INTERVAL = this.rs.getSocketPingInterval();
 
 		// Initialize the position and LEDs
-        movement = new RobotMovement(this);
-        rawMovement = new RobotRawMovement(this);
-        led = new RobotLED(this);
+        state = new AtomicReference<>(new RobotState(new RobotMovement(this), new RobotRawMovement(this), new RobotLED(this)));
+        intendedState = new AtomicReference<>(state.get());
+        stateListeners = new CopyOnWriteArrayList<>();
         macroSettings = new MACRO_SETTINGS(this);
 
 		// Discover the connection services that we can use
@@ -131,23 +193,8 @@ public class Robot
 
 		Logging.debug("Robot created successfully");
 
-		// Add system hook // FIXME shutdown hook on a thread with a thread
-		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            // Force disconnect asap!
-            try
-            {
-                // Wait for disconnect event
-                disconnect(false);
-
-                if (sendingTimer != null && sendingTimer.getWriter() != null) {
-                    sendingTimer.getWriter().join();
-                }
-            }
-            catch(InterruptedException ex)
-            {
-                Logger.getLogger(Robot.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }));
+		// Disconnect when the JVM shuts down (one hook for all robots)
+		executor.register(this);
 	}
 
 	/*
@@ -188,6 +235,323 @@ public class Robot
 		}
 	}
 
+	/**
+	 * Add a listener that is notified when the robot state changes
+	 * 
+	 * @param l The listener to add
+	 */
+	public void addStateListener(RobotStateListener l)
+	{
+		if (!stateListeners.contains(l))
+			stateListeners.add(l);
+	}
+
+	/**
+	 * Remove a state listener
+	 * 
+	 * @param l The listener to remove
+	 */
+	public void removeStateListener(RobotStateListener l)
+	{
+		stateListeners.remove(l);
+	}
+
+	/**
+	 * Publish a new state and notify the state listeners. The update is
+	 * retried if another thread published a state in the meantime.
+	 * 
+	 * @param update Creates the new state from the current state
+	 */
+	private void updateState(UnaryOperator<RobotState> update)
+	{
+		RobotState previous, current;
+		do
+		{
+			previous = state.get();
+			current = update.apply(previous);
+		}
+		while (!state.compareAndSet(previous, current));
+
+		synchronized(pendingEffects)
+		{
+			updateIntendedState();
+		}
+
+		if (!stateListeners.isEmpty())
+		{
+			final RobotState p = previous, c = current;
+			dispatcher.execute(() -> {
+				for (RobotStateListener l : stateListeners)
+					l.stateChanged(this, p, c);
+			});
+		}
+	}
+
+	/**
+	 * An effect on the robot state of a command that has been queued but not
+	 * answered yet
+	 */
+	private static final class PendingEffect
+	{
+		final CommandMessage command;
+		final int sequenceNumber;
+		final UnaryOperator<RobotState> effect;
+		final long deadline;
+
+		PendingEffect(CommandMessage command, UnaryOperator<RobotState> effect, long deadline)
+		{
+			this.command = command;
+			this.sequenceNumber = command.getSequenceNumber();
+			this.effect = effect;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Returns the effect that a command has on the robot state. The values
+	 * are read when this method is called, so the effect stays the same if
+	 * a reusable command is changed later.
+	 * 
+	 * @param command The command
+	 * 
+	 * @return The effect or null if the command doesn't change the state
+	 */
+	private static UnaryOperator<RobotState> effectOf(CommandMessage command)
+	{
+		switch (command.getCommand())
+		{
+			case ROLL:
+				if (command instanceof RollCommand)
+				{
+					RollCommand rc = (RollCommand) command;
+					float heading = rc.getHeading(), velocity = rc.getVelocity();
+					boolean stop = rc.getStopped();
+					return s -> s.with(s.getMovement().withRoll(heading, velocity, stop));
+				}
+				break;
+
+			case RAW_MOTOR:
+				if (command instanceof RawMotorCommand)
+				{
+					RawMotorCommand raw = (RawMotorCommand) command;
+					RobotRawMovement movement = new RobotRawMovement(raw.getLeftMode(), raw.getLeftSpeed(), raw.getRightMode(), raw.getRightSpeed());
+					return s -> s.with(movement);
+				}
+				break;
+
+			case ROTATION_RATE:
+				if (command instanceof RotationRateCommand)
+				{
+					float rate = ((RotationRateCommand) command).getRate();
+					return s -> s.with(s.getMovement().withRotationRate(rate));
+				}
+				break;
+
+			case RGB_LED_OUTPUT:
+				if (command instanceof RGBLEDCommand)
+				{
+					RGBLEDCommand rgb = (RGBLEDCommand) command;
+					int red = rgb.getRed(), green = rgb.getGreen(), blue = rgb.getBlue();
+					return s -> s.with(s.getLed().withRGB(red, green, blue));
+				}
+				break;
+
+			case FRONT_LED_OUTPUT:
+				if (command instanceof FrontLEDCommand)
+				{
+					float brightness = ((FrontLEDCommand) command).getBrightness();
+					return s -> s.with(s.getLed().withBrightness(brightness));
+				}
+				break;
+		}
+		return null;
+	}
+
+	/**
+	 * Apply the effect of a command to the intended state when it's queued.
+	 * The effect is confirmed when the robot answers with CODE_OK and rolled
+	 * back if the robot answers with an error or doesn't answer within
+	 * SPECULATION_TIMEOUT.
+	 * 
+	 * @param command The queued command
+	 */
+	private void speculate(CommandMessage command)
+	{
+		UnaryOperator<RobotState> effect = effectOf(command);
+		if (effect == null)
+			return;
+
+		synchronized(pendingEffects)
+		{
+			long now = System.currentTimeMillis();
+			expireEffects(now);
+			pendingEffects.add(new PendingEffect(command, effect, now + SPECULATION_TIMEOUT));
+			nextEffectDeadline = pendingEffects.peek().deadline;
+			intendedState.set(effect.apply(intendedState.get()));
+		}
+	}
+
+	/**
+	 * Remove the oldest pending effect of a command
+	 * 
+	 * @param command The answered command
+	 * 
+	 * @return The effect or null if no effect was pending for the command
+	 */
+	private PendingEffect removeEffect(CommandMessage command)
+	{
+		int sequenceNumber = command.getSequenceNumber();
+		for (Iterator<PendingEffect> it = pendingEffects.iterator(); it.hasNext();)
+		{
+			PendingEffect p = it.next();
+			if (p.command == command && p.sequenceNumber == sequenceNumber)
+			{
+				it.remove();
+				nextEffectDeadline = pendingEffects.isEmpty() ? Long.MAX_VALUE : pendingEffects.peek().deadline;
+				return p;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Confirm the effect of a command that the robot answered with CODE_OK
+	 * 
+	 * @param command The answered command
+	 */
+	private void confirmEffect(CommandMessage command)
+	{
+		synchronized(pendingEffects)
+		{
+			PendingEffect p = removeEffect(command);
+			UnaryOperator<RobotState> effect = p != null ? p.effect : effectOf(command);
+			if (effect != null)
+				updateState(effect);
+			else
+				updateIntendedState();
+		}
+	}
+
+	/**
+	 * Roll back the effect of a command that the robot answered with an
+	 * error
+	 * 
+	 * @param command The answered command
+	 */
+	void rejectEffect(CommandMessage command)
+	{
+		synchronized(pendingEffects)
+		{
+			if (removeEffect(command) != null)
+				updateIntendedState();
+		}
+	}
+
+	/**
+	 * Roll back all pending effects (the connection is gone)
+	 */
+	private void clearEffects()
+	{
+		synchronized(pendingEffects)
+		{
+			pendingEffects.clear();
+			nextEffectDeadline = Long.MAX_VALUE;
+			updateIntendedState();
+		}
+	}
+
+	/**
+	 * Roll back the effects that have not been answered in time. Must hold
+	 * the pendingEffects lock.
+	 * 
+	 * @param now The current time (ms)
+	 */
+	private void expireEffects(long now)
+	{
+		boolean expired = false;
+		while (!pendingEffects.isEmpty() && pendingEffects.peek().deadline <= now)
+		{
+			Logging.debug("No response for " + pendingEffects.peek().command + ", rolling back its effect");
+			pendingEffects.remove();
+			expired = true;
+		}
+
+		if (expired)
+		{
+			nextEffectDeadline = pendingEffects.isEmpty() ? Long.MAX_VALUE : pendingEffects.peek().deadline;
+			updateIntendedState();
+		}
+	}
+
+	/**
+	 * Apply the pending effects to the confirmed state. Must hold the
+	 * pendingEffects lock.
+	 */
+	private void updateIntendedState()
+	{
+		RobotState s = state.get();
+		for (PendingEffect p : pendingEffects)
+			s = p.effect.apply(s);
+		intendedState.set(s);
+	}
+
+	/**
+	 * Returns the state that the robot will have when all queued commands
+	 * have been executed. Unlike getState this includes the commands that
+	 * the robot has not answered yet.
+	 * 
+	 * @return The intended robot state
+	 */
+	public RobotState getIntendedState()
+	{
+		long now = System.currentTimeMillis();
+		if (now >= nextEffectDeadline)
+		{
+			synchronized(pendingEffects)
+			{
+				expireEffects(now);
+			}
+		}
+		return intendedState.get();
+	}
+
+	/**
+	 * Disconnect (without notifying about missing connections) and wait a
+	 * short while for the last commands to be written. Used when the robot
+	 * leaves its fleet.
+	 */
+	void shutdown()
+	{
+		RobotLifecycle.stop(Collections.singleton(this), SHUTDOWN_TIMEOUT);
+	}
+
+	/**
+	 * Send the safe stop commands and close the connection after they have
+	 * been written, without waiting for the writes
+	 * 
+	 * @return The sending queue to wait for or null if the robot wasn't
+	 *         connected
+	 */
+	RobotSendingQueue beginShutdown()
+	{
+		cancelReconnect();
+		RobotSendingQueue queue = sendingTimer;
+		boolean wasConnected = connected;
+		disconnect(false);
+		return wasConnected ? queue : null;
+	}
+
+	/**
+	 * Close the connection right away (when the safe stop commands could not
+	 * be written in time)
+	 */
+	void forceClose()
+	{
+		BluetoothConnection c = btc;
+		if (c != null)
+			c.stop();
+	}
+
 	/**
 	 * Notify all listeners about a device response
 	 * 
@@ -198,23 +562,34 @@ public class Robot
 	{
 		Logging.debug("Notifying listeners about device respose " + dr + " for device command " + dc);
 
-		synchronized(listeners)
-		{
-			// Go through all listeners and notify them
-			for(RobotListener r : listeners)
-				r.responseReceived(this, dr, dc);
-		}
+		dispatcher.execute(() -> {
+			synchronized(listeners)
+			{
+				// Go through all listeners and notify them
+				for(RobotListener r : listeners)
+					r.responseReceived(this, dr, dc);
+			}
+		});
 	}
 
-	void notifyListenersInformationResponse(InformationResponseMessage dir)
+	/**
+	 * Notify all listeners about a batch of information responses, the
+	 * batch is handed to the listeners with one dispatch
+	 * 
+	 * @param dirs The information responses in the order they were received
+	 */
+	void notifyListenersInformationResponses(List<InformationResponseMessage> dirs)
 	{
-		Logging.debug("Nofifying listeners about information response " + dir);
-		
-		synchronized(listeners)
-		{
-			for(RobotListener r : listeners)
-				r.informationResponseReceived(this, dir);
-		}
+		Logging.debug("Nofifying listeners about " + dirs.size() + " information responses");
+
+		List<InformationResponseMessage> batch = Collections.unmodifiableList(dirs);
+		dispatcher.execute(() -> {
+			synchronized(listeners)
+			{
+				for(RobotListener r : listeners)
+					r.informationResponsesReceived(this, batch);
+			}
+		});
 	}
 
 	/**
@@ -226,12 +601,18 @@ public class Robot
 	{
 		Logging.debug("Notifying listeners about event " + event);
 
+		RobotJournal j = journal;
+		if (j != null)
+			j.event(this, event);
+
 		// Notify all listeners
-		synchronized(listeners)
-		{
-			for(RobotListener r : listeners)
-				r.event(this, event);
-		}
+		dispatcher.execute(() -> {
+			synchronized(listeners)
+			{
+				for(RobotListener r : listeners)
+					r.event(this, event);
+			}
+		});
 	}
 
 	/**
@@ -244,18 +625,127 @@ public class Robot
         sendingTimer.cancel();
 
 		// Cancel the listening of incomming messages
-        listeningThread.stopThread();
+        listeningThread.cancel();
 
 		// Close the bluetooth connection
         btc.stop();
 
+		// Release anyone waiting for the handshake or a response
+        handshakeDone.countDown();
+        for (CompletableFuture<ResponseMessage> response : awaitedResponses.values())
+            response.cancel(false);
+        awaitedResponses.clear();
+
+		// Unanswered commands will never be answered
+        clearEffects();
+
 		// Notify about disconnect
 		if (connected)
 		{
             connected = false;
 			Logging.error("Connection closed unexpectedly for some reason, all threads have been closed down for the robot");
             notifyListenerEvent(RobotListener.EVENT_CODE.CONNECTION_CLOSED_UNEXPECTED);
+
+			if (autoReconnect)
+				scheduleReconnect();
+		}
+	}
+
+	/**
+	 * Enable or disable reconnecting automatically when the connection is
+	 * lost (enabled by default, see the sphero.reconnect properties)
+	 * 
+	 * @param autoReconnect True to reconnect automatically
+	 */
+	public void setAutoReconnect(boolean autoReconnect)
+	{
+		this.autoReconnect = autoReconnect;
+		if (!autoReconnect)
+			cancelReconnect();
+	}
+
+	/**
+	 * Schedule the next reconnect attempt, the delay doubles (with some
+	 * jitter so that a fleet doesn't reconnect all at once) for every failed
+	 * attempt
+	 */
+	private synchronized void scheduleReconnect()
+	{
+		ProjectProperties p = ProjectProperties.getInstance();
+		if (reconnecting || (reconnect != null && !reconnect.isDone()))
+			return;
+
+		if (reconnectAttempt >= p.getReconnectAttempts())
+		{
+			Logging.error("Giving up reconnecting to " + getAddress() + " after " + reconnectAttempt + " attempts");
+			reconnectAttempt = 0;
+			notifyListenerEvent(RobotListener.EVENT_CODE.CONNECTION_FAILED);
+			return;
+		}
+
+		long delay = Math.min(p.getReconnectMaxDelay(), p.getReconnectInitialDelay() << Math.min(reconnectAttempt, 20));
+		delay += ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+		reconnectAttempt++;
+
+		Logging.info("Reconnecting to " + getAddress() + " in " + delay + " ms (attempt " + reconnectAttempt + ")");
+		reconnect = executor.schedule(() -> executor.runBlocking(this::reconnect), delay);
+	}
+
+	/**
+	 * Cancel any scheduled reconnect
+	 */
+	private synchronized void cancelReconnect()
+	{
+		if (reconnect != null)
+			reconnect.cancel(false);
+		reconnect = null;
+		reconnectAttempt = 0;
+	}
+
+	/**
+	 * Try to reconnect and restore the state of the robot
+	 */
+	private void reconnect()
+	{
+		synchronized(this)
+		{
+			if (reconnect == null || connected || reconnecting)
+				return;
+			reconnecting = true;
+		}
+
+		boolean success = false;
+		try
+		{
+			internalConnect(true);
+			success = true;
+		}
+		catch(RobotBluetoothException | RobotInitializeConnectionFailed e)
+		{
+			Logging.debug("Reconnect to " + getAddress() + " failed: " + e.getMessage());
+		}
+		catch(RuntimeException e)
+		{
+			Logging.error("Reconnect to " + getAddress() + " failed", e);
+		}
+
+		synchronized(this)
+		{
+			reconnecting = false;
+
+			// Cancelled while the attempt was running
+			if (reconnect == null)
+				return;
+			reconnect = null;
+
+			// A connection lost during the attempt schedules a new attempt
+			if (success && connected)
+			{
+				reconnectAttempt = 0;
+				return;
+			}
 		}
+		scheduleReconnect();
 	}
 
 	/*
@@ -289,9 +779,11 @@ public class Robot
 	 */
 	public boolean connect(boolean throwException)
 	{
+		cancelReconnect();
+
 		try
 		{
-			return internalConnect();
+			return internalConnect(false);
 		}
 		catch(RobotBluetoothException e)
 		{
@@ -314,9 +806,11 @@ public class Robot
 	 * @throws RobotInitializeConnectionFailed If connection failed
 	 * @return True if connection succeeded
 	 */
-	private boolean internalConnect() throws RobotInitializeConnectionFailed, RobotBluetoothException
+	private boolean internalConnect(boolean resync) throws RobotInitializeConnectionFailed, RobotBluetoothException
 	{
 		Logging.debug("Trying to connect to " + getName() + ":" + getAddress());
+        connectStarted = System.nanoTime();
+        linkEstablished = handshakeCompleted = 0;
         btc = bt.connect();
 
 		// Check if we could connect to the bluetooth device
@@ -328,11 +822,12 @@ public class Robot
 
 		// We are now connected, continue with
 		// the initialization of everything else regarding the connection
+        linkEstablished = System.nanoTime();
         connected = true;
 
 		// Create a listening thread and close any old ones down
 		if (listeningThread != null)
-            listeningThread.stopThread();
+            listeningThread.cancel();
         listeningThread = new RobotStreamListener(this, btc);
         listeningThread.start();
 
@@ -341,12 +836,24 @@ public class Robot
             sendingTimer.cancel();
         sendingTimer = new RobotSendingQueue(this, btc);
 
-		// Reset the robot
-        sendSystemCommand(new AbortMacroCommand());
-        sendSystemCommand(new RollCommand(movement.getHeading(), movement.getVelocity(), movement.getStop()));
-        sendSystemCommand(new CalibrateCommand(movement.getHeading()));
-        sendSystemCommand(new FrontLEDCommand(led.getFrontLEDBrightness()));
-        sendSystemCommand(new RGBLEDCommand(getLed().getRGBColor()));
+		// Reset the robot (stored macros are lost with the connection), the
+		// commands are written at once and their responses awaited as a group
+        macroSettings.clearMacroCache();
+        RobotMovement movement = getRobotMovement();
+        List<CommandMessage> init = resync ? getResyncCommands() : Arrays.asList(
+                new AbortMacroCommand(),
+                new RollCommand(movement.getHeading(), movement.getVelocity(), movement.getStop()),
+                new CalibrateCommand(movement.getHeading()),
+                new FrontLEDCommand(getLed().getFrontLEDBrightness()),
+                new RGBLEDCommand(getLed().getRGBColor()));
+        handshakeDone = new CountDownLatch(1);
+        handshake.clear();
+        handshake.addAll(init);
+        sendingTimer.enqueue(init, true);
+
+		// Continue a streamed macro where it was interrupted
+        if (resync && macroSettings.resume())
+            Logging.debug("Resumed streamed macro on " + getAddress());
 
 		// Create our pinger
         sendSystemCommand(new PingCommand(this), PING_INTERVAL, PING_INTERVAL);
@@ -358,12 +865,164 @@ public class Robot
 		return connected;
 	}
 
+	/**
+	 * Returns the commands that restore the state of the robot after a
+	 * reconnect. The robot keeps its calibration, so only the movement, the
+	 * LEDs, the data streaming and a streamed macro are restored.
+	 * 
+	 * @return The commands to send
+	 */
+	private List<CommandMessage> getResyncCommands()
+	{
+		List<CommandMessage> init = new ArrayList<>();
+
+		// Clear any half played macro piece before it's sent again
+		if (macroSettings.getMacroRunning())
+			init.add(new AbortMacroCommand());
+
+		RobotState s = state.get();
+		init.add(new RollCommand(s.getMovement().getHeading(), s.getMovement().getVelocity(), s.getMovement().getStop()));
+		init.add(new RGBLEDCommand(s.getLed().getRGBColor()));
+		if (s.getLed().getFrontLEDBrightness() > 0)
+			init.add(new FrontLEDCommand(s.getLed().getFrontLEDBrightness()));
+
+		SetDataStreamingCommand streaming = dataStreaming;
+		if (streaming != null)
+			init.add(streaming);
+
+		return init;
+	}
+
+	/**
+	 * Wait until the robot has answered all initialization commands sent on
+	 * connect
+	 * 
+	 * @param timeout The maximum time to wait (ms)
+	 * 
+	 * @return True if the robot is connected and initialized, false
+	 *         otherwise
+	 */
+	public boolean awaitInitialized(long timeout)
+	{
+		try
+		{
+			return handshakeDone.await(timeout, TimeUnit.MILLISECONDS) && connected;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the time spent on the steps of the last connection attempt
+	 * 
+	 * @return The connection timing
+	 */
+	public ConnectionTiming getConnectionTiming()
+	{
+		return new ConnectionTiming(connectStarted, linkEstablished, handshakeCompleted);
+	}
+
+	/**
+	 * Send a system command and return the response when it's received
+	 * 
+	 * @param command The command to send
+	 * @param timeout The maximum time to wait for the response (ms)
+	 * 
+	 * @return The response (cancelled if the connection is lost, completed
+	 *         with a TimeoutException if it isn't received in time)
+	 */
+	CompletableFuture<ResponseMessage> sendAndAwait(CommandMessage command, long timeout)
+	{
+		CompletableFuture<ResponseMessage> response = new CompletableFuture<>();
+		awaitedResponses.put(command, response);
+
+		// Stop waiting when the command is answered, dropped or timed out
+		ScheduledFuture<?> expiry = executor.schedule(() -> response.completeExceptionally(new TimeoutException("No response to " + command)), timeout);
+		response.whenComplete((r, e) -> {
+			expiry.cancel(false);
+			awaitedResponses.remove(command, response);
+		});
+
+		sendSystemCommand(command);
+		return response;
+	}
+
+	/**
+	 * Called by the listener when a response to a command is received
+	 * 
+	 * @param command The command that was answered
+	 * @param response The response
+	 */
+	void responseReceived(CommandMessage command, ResponseMessage response)
+	{
+		if (!awaitedResponses.isEmpty())
+		{
+			CompletableFuture<ResponseMessage> awaited = awaitedResponses.remove(command);
+			if (awaited != null)
+				awaited.complete(response);
+		}
+
+		if (handshake.remove(command) && handshake.isEmpty())
+		{
+			handshakeCompleted = System.nanoTime();
+			handshakeDone.countDown();
+			Logging.debug("Initialized " + getAddress() + " " + getConnectionTiming());
+		}
+	}
+
+	/**
+	 * Called by the sending queue when a command is queued. The speculative
+	 * effect of the command is applied and an abort macro command ends a
+	 * streamed macro, so that its pieces are not sent again if they are
+	 * dropped from the queue.
+	 * 
+	 * @param command The queued command
+	 */
+	void commandQueued(CommandMessage command)
+	{
+		if (command.getCommand() == CommandMessage.COMMAND_MESSAGE_TYPE.ABORT_MACRO)
+			macroSettings.macroAborted();
+
+		speculate(command);
+	}
+
+	/**
+	 * Called by the sending queue when a command is dropped without being
+	 * written. The command is handled as if the robot rejected it: its
+	 * speculative effect is rolled back, anyone awaiting its response is
+	 * completed exceptionally and streamed macro data is sent again.
+	 * 
+	 * @param command The dropped command
+	 */
+	void commandDropped(CommandMessage command)
+	{
+		rejectEffect(command);
+
+		CompletableFuture<ResponseMessage> awaited = awaitedResponses.remove(command);
+		if (awaited != null)
+			awaited.completeExceptionally(new CancellationException("Dropped from the sending queue: " + command));
+
+		// The handshake continues without the dropped command
+		if (handshake.remove(command) && handshake.isEmpty())
+		{
+			handshakeCompleted = System.nanoTime();
+			handshakeDone.countDown();
+		}
+
+		if (command instanceof SaveMacroCommand)
+			macroSettings.macroDropped((SaveMacroCommand) command);
+	}
+
 	/**
 	 * Disconnect from the robot (closes all streams and Bluetooth connections,
 	 * also closes down all internal threads).
 	 */
 	public void disconnect()
 	{
+        cancelReconnect();
         disconnect(true);
 	}
 
@@ -378,6 +1037,10 @@ public class Robot
 	{
 		Logging.debug("Disconnecting from the current robot");
 
+		DrivePipeline pipeline = drivePipeline;
+		if (pipeline != null)
+			pipeline.stop();
+
 		if (connected)
 		{
 			// Close all connection
@@ -407,19 +1070,19 @@ public class Robot
             sendingTimer.cancel();
 
 			// Send a direct command to motorStop any movement (eludes the .cancel
-			// command)
-            sendingTimer.forceCommand(new AbortMacroCommand());
-            sendingTimer.forceCommand(new RollCommand(0, 0, true));
-            sendingTimer.forceCommand(new FrontLEDCommand(0));
-            sendingTimer.forceCommand(new RGBLEDCommand(Color.BLACK));
-            // Cancel the sending of new
-//            sendingTimer.cancel();
+			// command), all written at once
+            sendingTimer.forceCommands(Arrays.asList(
+                    new AbortMacroCommand(),
+                    new RollCommand(0, 0, true),
+                    new FrontLEDCommand(0),
+                    new RGBLEDCommand(Color.BLACK)));
 
             // Cancel the listening of incomming messages
-            listeningThread.stopThread();
+            listeningThread.cancel();
+            clearEffects();
 
-            // Close the bluetooth connection
-            btc.stop();
+            // Close the bluetooth connection when the commands are written
+            sendingTimer.closeAfterWritten();
 
             // Notify about disconnect
             Logging.error("Connection closed unexpectedly for some reason, all threads have been closed down for the robot");
@@ -443,6 +1106,35 @@ public class Robot
         sendingTimer.enqueue(command, false);
 	}
 
+	/**
+	 * Send a command with a given priority class. Commands of a higher class
+	 * are written before any queued commands of a lower class.
+	 * 
+	 * @param command The command to send
+	 * @param priority The priority class of the command
+	 * @param deadline The time the command may wait in the sending queue
+	 *            before it is dropped (ms), 0 for the deadline of the class
+	 *            (sphero.queue.deadline.*). SAFETY commands are never
+	 *            dropped
+	 */
+	public void sendCommand(CommandMessage command, CommandPriority priority, long deadline)
+	{
+        sendingTimer.enqueue(command, false, priority, deadline);
+	}
+
+	/**
+	 * Send a command and get told when it has been written to the robot
+	 * 
+	 * @param command The command to send
+	 * @param written Called on the writer thread once the command has been
+	 *            written to the connection, not called if the command is
+	 *            dropped
+	 */
+	void sendCommand(CommandMessage command, Runnable written)
+	{
+        sendingTimer.enqueue(command, written);
+	}
+
 	/**
 	 * Enqueue a command to be sent after a macro has finished execution
 	 * 
@@ -499,6 +1191,17 @@ public class Robot
         sendingTimer.enqueue(command, true);
 	}
 
+	/**
+	 * Send several system commands that are written in order, in the
+	 * sending queue lane of the highest priority class of the commands
+	 * 
+	 * @param commands The commands to send
+	 */
+    void sendSystemCommands(Collection<? extends CommandMessage> commands)
+	{
+        sendingTimer.enqueue(commands, true);
+	}
+
 	/**
 	 * Send a system command after a given delay
 	 * 
@@ -542,7 +1245,7 @@ public class Robot
 			{
 				// Stop any active listening thread
 				if (listeningThread != null)
-                    listeningThread.stopThread();
+                    listeningThread.cancel();
 
 				// Stop any active sending timer thread
 				if (sendingTimer != null)
@@ -565,17 +1268,15 @@ public class Robot
 		switch (command.getCommand())
 		{
 		/*
-		 * Roll command, update internal values
+		 * Commands that change the robot state, the effect that was applied
+		 * speculatively when the command was sent is now confirmed
 		 */
 			case ROLL:
-                if (command instanceof RollCommand) {
-                    RollCommand rc = (RollCommand) command;
-
-                    // Set new values
-                    movement.setHeading(rc.getHeading());
-                    movement.setVelocity(rc.getVelocity());
-                    movement.setStop(rc.getStopped());
-                }
+			case RAW_MOTOR:
+			case ROTATION_RATE:
+			case RGB_LED_OUTPUT:
+			case FRONT_LED_OUTPUT:
+                confirmEffect(command);
 				break;
 
 			case SPIN_LEFT:
@@ -586,29 +1287,6 @@ public class Robot
 				// TODO: Movements are stopped other than for some special commands
 				break;
 
-			case RAW_MOTOR:
-                if (command instanceof RawMotorCommand) {
-                    RawMotorCommand raw = (RawMotorCommand) command;
-                    rawMovement.setLeftMotorMode(raw.getLeftMode());
-                    rawMovement.setRightMotorMode(raw.getRightMode());
-                    rawMovement.setLeftMotorSpeed(raw.getLeftSpeed());
-                    rawMovement.setRightMotorSpeed(raw.getRightSpeed());
-                }
-				break;
-
-			/*
-			 * Rotation rate.
-			 * TODO: Does it have some effect on the robot? Havn't seen any
-			 * definite
-			 * effects when performed
-			 */
-			case ROTATION_RATE:
-                if (command instanceof RotationRateCommand) {
-                    RotationRateCommand rrc = (RotationRateCommand) command;
-                    movement.setRotationRate(rrc.getRate());
-                }
-				break;
-
 			case JUMP_TO_BOOTLOADER:
 			case GO_TO_SLEEP:
 				// Graceful disconnect as we will loose the connection when
@@ -617,24 +1295,6 @@ public class Robot
 
 				break;
 
-			case RGB_LED_OUTPUT:
-                if (command instanceof RGBLEDCommand) {
-                    RGBLEDCommand rgb = (RGBLEDCommand) command;
-
-                    // Update led values
-                    led.setRed(rgb.getRed());
-                    led.setGreen(rgb.getGreen());
-                    led.setBlue(rgb.getBlue());
-                }
-				break;
-
-			case FRONT_LED_OUTPUT:
-                if (command instanceof FrontLEDCommand) {
-                    FrontLEDCommand flc = (FrontLEDCommand) command;
-                    led.setBrightness(flc.getBrightness());
-                }
-				break;
-
 			/*
 			 * Havn't seen any effect of this command
 			 */
@@ -666,10 +1326,18 @@ public class Robot
             case MACRO:
                 break;
             case SAVE_MACRO:
+                if (command instanceof SaveMacroCommand)
+                    macroSettings.macroSaved((SaveMacroCommand) command);
                 break;
             case ABORT_MACRO:
                 break;
             case SET_DATA_STREAMING:
+                if (command instanceof SetDataStreamingCommand) {
+                    SetDataStreamingCommand sds = (SetDataStreamingCommand) command;
+
+                    // Remember the streaming layout so that received data can be decoded
+                    dataStreaming = sds.getMask() == SetDataStreamingCommand.DATA_STREAMING_MASKS.OFF ? null : sds;
+                }
                 break;
             case CUSTOM_PING:
                 break;
@@ -777,102 +1445,23 @@ public class Robot
 	 */
 	public void rgbTransition(int fRed, int fGreen, int fBlue, int tRed, int tGreen, int tBlue, int steps, int dDelay)
 	{
-        // Hue, saturation, intensity
-		float[] fHSB = Color.RGBtoHSB(fRed, fGreen, fBlue, null);
-		float[] tHSB = Color.RGBtoHSB(tRed, tGreen, tBlue, null);
-
-		float hDif = Math.abs(fHSB[0] - tHSB[0]);
-		float sDif = Math.abs(fHSB[1] - tHSB[1]);
-		float iDif = Math.abs(fHSB[2] - tHSB[2]);
-
-		boolean iHue = fHSB[0] < tHSB[0];
-		boolean iSat = fHSB[1] < tHSB[1];
-		boolean iInt = fHSB[2] < tHSB[2];
-
-		float incHue = hDif / steps;
-		float incSat = sDif / steps;
-		float incInt = iDif / steps;
-
-		Color c;
-		float[] n = new float[ 3 ];
-
-		// Create macro
-		MacroObject mo = new MacroObject();
-
-		// Go through all steps
-		for(int i = 0; i < steps; i++)
-		{
-			// Calculate hue saturation and intensity
-			n[0] = iHue ? fHSB[0] + i * incHue : fHSB[0] - i * incHue;
-			n[1] = iSat ? fHSB[1] + i * incSat : fHSB[1] - i * incSat;
-			n[2] = iInt ? fHSB[2] + i * incInt : fHSB[2] - i * incInt;
-
-			// Get new color
-			int ik = Color.HSBtoRGB(Value.clamp(n[0], 0, 1), Value.clamp(n[1], 0, 1), Value.clamp(n[2], 0, 1));
-			c = new Color(ik);
-
-			// Add new RGB commands
-			mo.addCommand(new RGB(c, 0));
-			mo.addCommand(new Delay(dDelay));
-		}
-
-		// Set streaming as we don't know if we can fit all macro commands in one message
-		mo.setMode(MacroObject.MacroObjectMode.CachedStreaming);
-
-		// Send macro to the Sphero device
-        sendCommand(mo);
-	}
-	
-	private void createFromToColorMacroObject(MacroObject mo, Color from, Color to, int steps, int dDelay)
-	{
-        // Hue, saturation, intensity
-		float[] fHSB = Color.RGBtoHSB(from.getRed(), from.getGreen(), from.getBlue(), null);
-		float[] tHSB = Color.RGBtoHSB(to.getRed(), to.getGreen(), to.getBlue(), null);
-
-		float hDif = Math.abs(fHSB[0] - tHSB[0]);
-		float sDif = Math.abs(fHSB[1] - tHSB[1]);
-		float iDif = Math.abs(fHSB[2] - tHSB[2]);
-
-		boolean iHue = fHSB[0] < tHSB[0];
-		boolean iSat = fHSB[1] < tHSB[1];
-		boolean iInt = fHSB[2] < tHSB[2];
-
-		float incHue = hDif / steps;
-		float incSat = sDif / steps;
-		float incInt = iDif / steps;
-
-		Color c;
-		float[] n = new float[ 3 ];
-
-		// Go through all steps
-		for(int i = 0; i < steps; i++)
-		{
-			// Calculate hue saturation and intensity
-			n[0] = iHue ? fHSB[0] + i * incHue : fHSB[0] - i * incHue;
-			n[1] = iSat ? fHSB[1] + i * incSat : fHSB[1] - i * incSat;
-			n[2] = iInt ? fHSB[2] + i * incInt : fHSB[2] - i * incInt;
-
-			// Get new color
-			int ik = Color.HSBtoRGB(Value.clamp(n[0], 0, 1), Value.clamp(n[1], 0, 1), Value.clamp(n[2], 0, 1));
-			c = new Color(ik);
-
-			// Add new RGB commands
-			mo.addCommand(new RGB(c, 0));
-			mo.addCommand(new Delay(dDelay));
-		}
+		// Transitions are precompiled and shared between robots
+        sendCommand(ColorTransition.get(new Color(fRed, fGreen, fBlue), new Color(tRed, tGreen, tBlue), steps, dDelay).toMacroObject());
 	}
 
+	/**
+	 * Creates a transition from one color to another and back again. Each
+	 * direction takes half of the steps with half of the delay between the
+	 * color shifts.
+	 * 
+	 * @param from The color to go from (and return to)
+	 * @param to The color to go to
+	 * @param steps The total number of steps
+	 * @param dDelay Delay between the color shifts
+	 */
 	public void rgbBreath(Color from, Color to, int steps, int dDelay)
 	{
-		MacroObject mo = new MacroObject();
-        createFromToColorMacroObject(mo, from, to, steps/2, dDelay/2);
-        createFromToColorMacroObject(mo, to, from, steps/2, dDelay/2);
-
-		// Set streaming as we don't know if we can fit all macro commands in one message
-		mo.setMode(MacroObject.MacroObjectMode.CachedStreaming);
-
-		// Send macro to the Sphero device
-        sendCommand(mo);
+        sendCommand(ColorTransition.breath(from, to, steps, dDelay).toMacroObject());
 	}
 	
 	/**
@@ -949,6 +1538,7 @@ public class Robot
 	 */
 	public void resetHeading()
 	{
+        RobotMovement movement = getRobotMovement();
         sendCommand(new RollCommand(0.0F, movement.getVelocity(), movement.getStop()));
         sendCommand(new CalibrateCommand(0.0F));
 	}
@@ -960,7 +1550,7 @@ public class Robot
 	 */
 	public void setHeadingOffset(double offset)
 	{
-        movement.getDriveAlgorithm().setHeadingOffset(offset);
+        getDriveAlgorithm().setHeadingOffset(offset);
 	}
 
 	/**
@@ -997,7 +1587,9 @@ public class Robot
 	}
 
 	/**
-	 * Drive in a direction
+	 * Drive in a direction. May be called at any rate, the input is smoothed
+	 * and sent as roll commands at the rate of the drive pipeline (see
+	 * DrivePipeline).
 	 * 
 	 * @param x X direction
 	 * @param y Y direction
@@ -1005,15 +1597,27 @@ public class Robot
 	 */
 	public void drive(double x, double y, double z)
 	{
-		// Convert the values to the correct ones depending on the given algorithm
-        movement.getDriveAlgorithm().convert(x, y, z);
-        movement.getDriveAlgorithm().adjustHeading();
-
-		// Cap the value
-        movement.getDriveAlgorithm().setAdjustedHeading(Value.clamp(movement.getDriveAlgorithm().getAdjustedHeading(), 0.0D, 359.0D));
+        getDrivePipeline().input(x, y, z);
+	}
 
-		// Send the command
-        roll((float) movement.getDriveAlgorithm().getAdjustedHeading(), (float) movement.getDriveAlgorithm().getSpeed());
+	/**
+	 * Returns the pipeline that turns Robot.drive input into roll commands
+	 * 
+	 * @return The drive pipeline
+	 */
+	public DrivePipeline getDrivePipeline()
+	{
+		DrivePipeline pipeline = drivePipeline;
+		if (pipeline == null)
+		{
+			synchronized(this)
+			{
+				if (drivePipeline == null)
+					drivePipeline = new DrivePipeline(this);
+				pipeline = drivePipeline;
+			}
+		}
+		return pipeline;
 	}
 
 	/**
@@ -1024,6 +1628,7 @@ public class Robot
 	public void boost(float timeInterval)
 	{
 		// Create commands to send
+		RobotMovement movement = getRobotMovement();
 		RollCommand boost = new RollCommand(movement.getHeading(), 1F, false);
 		RollCommand resetBoost = new RollCommand(movement.getHeading(), movement.getVelocity(), movement.getStop());
 
@@ -1037,7 +1642,7 @@ public class Robot
 	 */
 	public void stopMotors()
 	{
-        sendCommand(new RollCommand(movement.getHeading(), 0.0F, true));
+        sendCommand(new RollCommand(getRobotMovement().getHeading(), 0.0F, true));
 	}
 
 	/**
@@ -1048,7 +1653,7 @@ public class Robot
 	 */
 	public boolean isStopped()
 	{
-		return !movement.getStop();
+		return !getRobotMovement().getStop();
 	}
 
 	/**
@@ -1058,7 +1663,7 @@ public class Robot
 	 */
 	public void setDriveAlgorithm(DriveAlgorithm algorithm)
 	{
-        movement.setDriveAlgorithm(algorithm);
+        updateState(s -> s.with(s.getMovement().withDriveAlgorithm(algorithm)));
 	}
 
 	/**
@@ -1069,7 +1674,7 @@ public class Robot
 	 */
 	public DriveAlgorithm getDriveAlgorithm()
 	{
-		return movement.getDriveAlgorithm();
+		return getRobotMovement().getDriveAlgorithm();
 	}
 
 	/*
@@ -1192,7 +1797,7 @@ public class Robot
 	 */
 	public RobotLED getLed()
 	{
-		return led;
+		return getIntendedState().getLed();
 	}
 
 	/**
@@ -1202,7 +1807,50 @@ public class Robot
 	 */
 	public RobotMovement getRobotMovement()
 	{
-		return movement;
+		return getIntendedState().getMovement();
+	}
+
+	/**
+	 * Returns a consistent snapshot of the movement, raw movement and led
+	 * values of the robot that the robot has confirmed
+	 * 
+	 * @return The confirmed robot state
+	 */
+	public RobotState getState()
+	{
+		return state.get();
+	}
+
+	/**
+	 * Record all commands sent to and all responses and events received from
+	 * the robot in a journal. The journal may be shared by several robots.
+	 * 
+	 * @param journal The journal or null to stop journaling
+	 */
+	public void setJournal(RobotJournal journal)
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Returns the journal of the robot
+	 * 
+	 * @return The journal or null if the robot isn't journaled
+	 */
+	public RobotJournal getJournal()
+	{
+		return journal;
+	}
+
+	/**
+	 * Returns the data streaming command that is currently active on the
+	 * robot or null if no data streaming is active.
+	 * 
+	 * @return The active data streaming command or null
+	 */
+	public SetDataStreamingCommand getDataStreaming()
+	{
+		return dataStreaming;
 	}
 
 	/**
@@ -1212,9 +1860,13 @@ public class Robot
 	 */
 	public RobotRawMovement getRobotRawMovement()
 	{
-		return rawMovement;
+		return getIntendedState().getRawMovement();
 	}
 
+    RobotExecutor getExecutor() {
+        return executor;
+    }
+
     public RobotStreamListener getListeningThread() {
         return listeningThread;
     }
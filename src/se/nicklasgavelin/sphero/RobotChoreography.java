@@ -0,0 +1,198 @@
+package se.nicklasgavelin.sphero;
+
+import se.nicklasgavelin.log.Logging;
+import se.nicklasgavelin.sphero.command.PingCommand;
+import se.nicklasgavelin.sphero.command.RunMacroCommand;
+import se.nicklasgavelin.sphero.command.SaveTemporaryMacroCommand;
+import se.nicklasgavelin.sphero.macro.MacroObject;
+import se.nicklasgavelin.sphero.response.ResponseMessage;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a macro on several robots at the same time. Every robot gets its
+ * own segment of the show, the segments are stored on the robots before
+ * the start and only a short RunMacroCommand is sent at the start. The run
+ * commands are sent earlier to robots with a longer latency (estimated
+ * with ping round trips) so that the robots start within a few milliseconds
+ * of each other.
+ *
+ * Usage:
+ * <pre>
+ * RobotChoreography show = new RobotChoreography();
+ * show.add(robot1, segment1).add(robot2, segment2);
+ * show.calibrate(10, 2000);
+ * show.stage(2000);
+ * show.start(100);
+ * </pre>
+ * The segments are stored as the temporary macro of each robot, so nothing
+ * else should play a macro on the robots between stage and start.
+ */
+public class RobotChoreography
+{
+    private final Map<Robot, MacroObject> segments;
+    private final Map<Robot, LatencyEstimate> latencies;
+
+    /**
+     * Create an empty choreography
+     */
+    public RobotChoreography()
+    {
+        segments = new LinkedHashMap<>();
+        latencies = new LinkedHashMap<>();
+    }
+
+    /**
+     * Set the segment that a robot plays
+     *
+     * @param robot The robot
+     * @param segment The macro to play (must fit in a single macro)
+     *
+     * @return This choreography
+     */
+    public synchronized RobotChoreography add(Robot robot, MacroObject segment)
+    {
+        segments.put(robot, segment);
+        return this;
+    }
+
+    /**
+     * Estimate the latency of every robot by sending pings to all robots at
+     * the same time
+     *
+     * @param samples The number of pings per robot
+     * @param timeout The maximum time to wait for each round of pings (ms)
+     *
+     * @return The latency of every robot
+     */
+    public synchronized Map<Robot, LatencyEstimate> calibrate(int samples, long timeout)
+    {
+        Map<Robot, double[]> roundTrips = new LinkedHashMap<>();
+        Map<Robot, Integer> counts = new LinkedHashMap<>();
+        for (Robot robot : segments.keySet())
+        {
+            roundTrips.put(robot, new double[ samples ]);
+            counts.put(robot, 0);
+        }
+
+        for (int i = 0; i < samples; i++)
+        {
+            Map<Robot, CompletableFuture<Long>> pings = new LinkedHashMap<>();
+            for (Robot robot : segments.keySet())
+                if (robot.isConnected())
+                {
+                    final long sent = System.nanoTime();
+                    pings.put(robot, robot.sendAndAwait(new PingCommand(robot), timeout).thenApply(r -> System.nanoTime() - sent));
+                }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            for (Map.Entry<Robot, CompletableFuture<Long>> ping : pings.entrySet())
+            {
+                try
+                {
+                    long rtt = ping.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    int n = counts.get(ping.getKey());
+                    roundTrips.get(ping.getKey())[n] = rtt / 1e6;
+                    counts.put(ping.getKey(), n + 1);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                catch (Exception e)
+                {
+                    Logging.debug("Ping to " + ping.getKey().getAddress() + " failed: " + e);
+                }
+            }
+        }
+
+        latencies.clear();
+        for (Robot robot : segments.keySet())
+            latencies.put(robot, new LatencyEstimate(roundTrips.get(robot), counts.get(robot)));
+        return Collections.unmodifiableMap(new LinkedHashMap<>(latencies));
+    }
+
+    /**
+     * Store the segments on the robots
+     *
+     * @param timeout The maximum time to wait for the robots (ms)
+     *
+     * @return True if every robot stored its segment
+     */
+    public synchronized boolean stage(long timeout)
+    {
+        Map<Robot, CompletableFuture<ResponseMessage>> saves = new LinkedHashMap<>();
+        for (Map.Entry<Robot, MacroObject> segment : segments.entrySet())
+            if (segment.getKey().isConnected())
+                saves.put(segment.getKey(), segment.getKey().sendAndAwait(new SaveTemporaryMacroCommand(1, segment.getValue().generateMacroData()), timeout));
+
+        boolean staged = saves.size() == segments.size();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (Map.Entry<Robot, CompletableFuture<ResponseMessage>> save : saves.entrySet())
+        {
+            try
+            {
+                ResponseMessage response = save.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (response.getResponseCode() != ResponseMessage.RESPONSE_CODE.CODE_OK)
+                {
+                    Logging.error("Failed to stage segment on " + save.getKey().getAddress() + ": " + response.getResponseCode());
+                    staged = false;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            catch (Exception e)
+            {
+                Logging.error("Failed to stage segment on " + save.getKey().getAddress() + ": " + e);
+                staged = false;
+            }
+        }
+        return staged;
+    }
+
+    /**
+     * Start the staged segments. The run command of each robot is sent its
+     * estimated latency before the start time.
+     *
+     * @param leadTime The time until the start (ms), needs to be longer than
+     *            the longest latency
+     *
+     * @return The start time (System.nanoTime)
+     */
+    public synchronized long start(long leadTime)
+    {
+        long startTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leadTime);
+
+        for (final Robot robot : segments.keySet())
+        {
+            LatencyEstimate latency = latencies.get(robot);
+            long offset = latency == null ? 0 : (long) (latency.getOneWay() * 1e6);
+            long delay = Math.max(0, startTime - offset - System.nanoTime());
+
+            if (latency != null && offset > TimeUnit.MILLISECONDS.toNanos(leadTime))
+                Logging.warn("Lead time shorter than the latency of " + robot.getAddress() + ", the robot will start late");
+
+            robot.getExecutor().schedule(() -> robot.sendSystemCommand(new RunMacroCommand(-1)), delay, TimeUnit.NANOSECONDS);
+        }
+
+        return startTime;
+    }
+
+    /**
+     * Returns the latencies estimated by the last calibration
+     *
+     * @return The latency of every robot
+     */
+    public synchronized Map<Robot, LatencyEstimate> getLatencies()
+    {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(latencies));
+    }
+}
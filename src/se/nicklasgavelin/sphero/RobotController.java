@@ -0,0 +1,365 @@
+package se.nicklasgavelin.sphero;
+
+import se.nicklasgavelin.log.Logging;
+import se.nicklasgavelin.sphero.command.CommandMessage;
+import se.nicklasgavelin.sphero.command.RawMotorCommand;
+import se.nicklasgavelin.sphero.command.RollCommand;
+import se.nicklasgavelin.sphero.command.SetDataStreamingCommand;
+import se.nicklasgavelin.sphero.command.SetDataStreamingCommand.DATA_STREAMING_MASKS;
+import se.nicklasgavelin.sphero.response.InformationResponseMessage;
+import se.nicklasgavelin.sphero.response.ResponseMessage;
+import se.nicklasgavelin.sphero.response.information.DataResponse;
+import se.nicklasgavelin.util.PIDController;
+import se.nicklasgavelin.util.Value;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closed loop heading and speed control for a single robot. The measured
+ * heading (IMU yaw) and wheel speed (motor back EMF) are taken from the
+ * data streaming responses of the robot. A control loop runs at a fixed
+ * rate on the robot scheduler and corrects the difference between the
+ * target and the measured values with one PID controller for the heading
+ * and a feed forward plus PID controller for the speed.
+ *
+ * In ROLL mode the corrections are sent as roll commands (the heading
+ * correction is added to the target heading), in RAW_MOTOR mode as raw
+ * motor commands (the heading correction is the difference between the
+ * wheels).
+ *
+ * Only the latest sensor frame is used. Frames older than the maximum
+ * sample age are not used at all, the loop then holds the last command, so
+ * a correction is never based on data older than the maximum sample age.
+ *
+ * Usage:
+ * <pre>
+ * RobotController controller = new RobotController( robot, RobotController.Mode.ROLL, 20 );
+ * robot.addListener( controller );
+ * robot.sendCommand( new SetDataStreamingCommand( 8, 1, RobotController.CONTROLLER_MASK, 0 ) );
+ * controller.start();
+ * controller.setTarget( 90, 0.5 );
+ * </pre>
+ */
+public class RobotController implements RobotListener
+{
+    /**
+     * How the corrections are sent to the robot
+     */
+    public enum Mode
+    {
+        ROLL, RAW_MOTOR
+    }
+
+    /**
+     * The sensor mask that contains all channels used by the controller
+     */
+    public static final int CONTROLLER_MASK = DATA_STREAMING_MASKS.IMU.YAW.FILTERED
+            | DATA_STREAMING_MASKS.MOTOR_BACK_EMF.ALL.FILTERED;
+
+    // Default gains, the heading output is in degrees and the speed output
+    // is a speed (0-1)
+    private static final double HEADING_KP = 0.6, HEADING_KI = 0.1, HEADING_KD = 0.02, MAX_HEADING_CORRECTION = 45;
+    private static final double SPEED_KP = 0.5, SPEED_KI = 0.3, SPEED_KD = 0, MAX_SPEED_CORRECTION = 0.3;
+    // Back EMF of a wheel at full speed
+    private static final double DEFAULT_EMF_FULL_SCALE = 300;
+
+    private final Robot robot;
+    private final Mode mode;
+    private final long period;
+    private final PIDController headingPid, speedPid;
+    private volatile double feedForward = 1, emfFullScale = DEFAULT_EMF_FULL_SCALE;
+    private volatile long maxSampleAge;
+
+    // Set point
+    private volatile double targetHeading, targetSpeed;
+
+    // Latest measurement, written by the listener thread, guarded by
+    // sampleLock
+    private final Object sampleLock = new Object();
+    private boolean hasSample;
+    private double sampleYaw, sampleSpeed;
+    private long sampleReceived;
+    // Channel offsets for the last seen mask (listener thread)
+    private int lastMask = DATA_STREAMING_MASKS.OFF, frameLength, yawOffset, leftEmfOffset, rightEmfOffset;
+
+    // Loop state (scheduler thread)
+    private final RollCommand roll;
+    private final RawMotorCommand raw;
+    private long lastLoop;
+    private ScheduledFuture<?> loop;
+    // Arrival of the sensor packet of the last correction, read when the
+    // correction has been written
+    private volatile long correctionReceived;
+    private final Runnable correctionWritten;
+
+    // Metrics, guarded by this
+    private long loops, corrections, written, staleSamples;
+    private double latencySum, maxLatency, loopTimeSum, maxLoopTime;
+
+    /**
+     * Create a controller with the default gains
+     *
+     * @param robot The robot to control
+     * @param mode How the corrections are sent
+     * @param period The time between two corrections (ms)
+     */
+    public RobotController(Robot robot, Mode mode, long period)
+    {
+        this(robot, mode, period,
+             new PIDController(HEADING_KP, HEADING_KI, HEADING_KD, MAX_HEADING_CORRECTION),
+             new PIDController(SPEED_KP, SPEED_KI, SPEED_KD, MAX_SPEED_CORRECTION));
+    }
+
+    /**
+     * Create a controller
+     *
+     * @param robot The robot to control
+     * @param mode How the corrections are sent
+     * @param period The time between two corrections (ms)
+     * @param headingPid The heading controller (input degrees, output
+     *            degrees)
+     * @param speedPid The speed controller (input and output 0-1)
+     */
+    public RobotController(Robot robot, Mode mode, long period, PIDController headingPid, PIDController speedPid)
+    {
+        this.robot = robot;
+        this.mode = mode;
+        this.period = Math.max(1, period);
+        this.headingPid = headingPid;
+        this.speedPid = speedPid;
+        this.maxSampleAge = 3 * this.period;
+        this.roll = new RollCommand(0, 0, true);
+        this.raw = new RawMotorCommand(RawMotorCommand.MOTOR_MODE.FORWARD, 0, RawMotorCommand.MOTOR_MODE.FORWARD, 0);
+        this.correctionWritten = this::written;
+    }
+
+    /**
+     * Set the heading and speed to hold
+     *
+     * @param heading The target heading (degrees, 0-360)
+     * @param speed The target speed (0-1)
+     */
+    public void setTarget(double heading, double speed)
+    {
+        this.targetHeading = ((heading % 360) + 360) % 360;
+        this.targetSpeed = Value.clamp(speed, 0.0D, 1.0D);
+    }
+
+    /**
+     * Set the weight of the target speed in the speed output (feed forward),
+     * 1 by default
+     *
+     * @param feedForward The feed forward gain
+     */
+    public void setFeedForward(double feedForward)
+    {
+        this.feedForward = feedForward;
+    }
+
+    /**
+     * Set the back EMF of a wheel that corresponds to full speed
+     *
+     * @param emfFullScale The back EMF at full speed
+     */
+    public void setEmfFullScale(double emfFullScale)
+    {
+        this.emfFullScale = emfFullScale;
+    }
+
+    /**
+     * Set the age after which a sensor frame is no longer used, three
+     * periods by default
+     *
+     * @param maxSampleAge The maximum sample age (ms)
+     */
+    public void setMaxSampleAge(long maxSampleAge)
+    {
+        this.maxSampleAge = maxSampleAge;
+    }
+
+    /**
+     * Start the control loop
+     */
+    public synchronized void start()
+    {
+        if (loop != null)
+            return;
+
+        headingPid.reset();
+        speedPid.reset();
+        lastLoop = 0;
+        loop = robot.getExecutor().scheduleAtFixedRate(this::loop, period);
+    }
+
+    /**
+     * Stop the control loop, the robot keeps executing the last command
+     */
+    public synchronized void stop()
+    {
+        if (loop != null)
+            loop.cancel(false);
+        loop = null;
+    }
+
+    /**
+     * Returns the timing of the control loop
+     *
+     * @return The control loop metrics
+     */
+    public synchronized ControlLoopMetrics getMetrics()
+    {
+        return new ControlLoopMetrics(loops, corrections, staleSamples,
+                written > 0 ? latencySum / written : 0, maxLatency,
+                loops > 0 ? loopTimeSum / loops : 0, maxLoopTime);
+    }
+
+    /**
+     * Calculate and send one correction
+     */
+    private void loop()
+    {
+        long start = System.nanoTime();
+        try
+        {
+            if (!robot.isConnected())
+                return;
+
+            boolean measured;
+            double yaw, speed;
+            long received;
+            synchronized (sampleLock)
+            {
+                measured = hasSample;
+                yaw = sampleYaw;
+                speed = sampleSpeed;
+                received = sampleReceived;
+            }
+
+            if (!measured || start - received > TimeUnit.MILLISECONDS.toNanos(maxSampleAge))
+            {
+                record(start, true, true);
+                return;
+            }
+
+            double dt = lastLoop == 0 ? period / 1000.0 : (start - lastLoop) / 1e9;
+            lastLoop = start;
+
+            // Heading error in -180 to 180 degrees
+            double headingError = ((targetHeading - yaw) % 360 + 540) % 360 - 180;
+            double headingOutput = headingPid.update(headingError, dt);
+            double speedOutput = Value.clamp(feedForward * targetSpeed + speedPid.update(targetSpeed - speed, dt), 0.0D, 1.0D);
+
+            CommandMessage correction;
+            if (mode == Mode.ROLL)
+            {
+                double heading = ((targetHeading + headingOutput) % 360 + 360) % 360;
+                correction = roll.set((float) heading, (float) speedOutput, false);
+            }
+            else
+            {
+                // Turn by driving the wheels at different speeds
+                double turn = headingOutput / 180.0;
+                double left = Value.clamp(speedOutput + turn, -1.0D, 1.0D), right = Value.clamp(speedOutput - turn, -1.0D, 1.0D);
+                correction = raw.set(left < 0 ? RawMotorCommand.MOTOR_MODE.REVERSE : RawMotorCommand.MOTOR_MODE.FORWARD, (int) (Math.abs(left) * 255),
+                                     right < 0 ? RawMotorCommand.MOTOR_MODE.REVERSE : RawMotorCommand.MOTOR_MODE.FORWARD, (int) (Math.abs(right) * 255));
+            }
+
+            correctionReceived = received;
+            robot.sendCommand(correction, correctionWritten);
+            record(start, false, false);
+        }
+        catch (RuntimeException e)
+        {
+            Logging.error("Control loop failed", e);
+        }
+    }
+
+    /**
+     * Update the metrics after a loop
+     *
+     * @param start The start of the loop (System.nanoTime)
+     * @param skipped True if no correction was sent
+     * @param stale True if the loop was skipped due to old sensor data
+     */
+    private synchronized void record(long start, boolean skipped, boolean stale)
+    {
+        double loopTime = (System.nanoTime() - start) / 1e6;
+        loops++;
+        loopTimeSum += loopTime;
+        maxLoopTime = Math.max(maxLoopTime, loopTime);
+
+        if (stale)
+            staleSamples++;
+
+        if (!skipped)
+            corrections++;
+    }
+
+    /**
+     * Update the latency when a correction has been written to the robot,
+     * runs on the writer of the robot
+     */
+    private void written()
+    {
+        double latency = (System.nanoTime() - correctionReceived) / 1e6;
+        synchronized (this)
+        {
+            written++;
+            latencySum += latency;
+            maxLatency = Math.max(maxLatency, latency);
+        }
+    }
+
+    @Override
+    public void informationResponseReceived(Robot r, InformationResponseMessage response)
+    {
+        if (r != robot || !(response instanceof DataResponse))
+            return;
+
+        long received = System.nanoTime();
+        SetDataStreamingCommand streaming = robot.getDataStreaming();
+        if (streaming == null)
+            return;
+
+        int mask = streaming.getMask();
+        if (mask != lastMask)
+        {
+            lastMask = mask;
+            frameLength = DataResponse.getFrameLength(mask);
+            yawOffset = DataResponse.getChannelOffset(mask, DATA_STREAMING_MASKS.IMU.YAW.FILTERED);
+            leftEmfOffset = DataResponse.getChannelOffset(mask, DATA_STREAMING_MASKS.MOTOR_BACK_EMF.LEFT.FILTERED);
+            rightEmfOffset = DataResponse.getChannelOffset(mask, DATA_STREAMING_MASKS.MOTOR_BACK_EMF.RIGHT.FILTERED);
+        }
+
+        DataResponse data = (DataResponse) response;
+        int length = data.getSensorDataLength();
+        if (yawOffset < 0 || leftEmfOffset < 0 || rightEmfOffset < 0 || frameLength == 0 || length < frameLength)
+            return;
+
+        // Use the last frame of the packet
+        int frame = (length / frameLength - 1) * frameLength;
+        int yaw = data.getSensorValue(frame + yawOffset);
+        double emf = (data.getSensorValue(frame + leftEmfOffset) + data.getSensorValue(frame + rightEmfOffset)) / 2.0;
+
+        synchronized (sampleLock)
+        {
+            sampleYaw = yaw < 0 ? yaw + 360 : yaw;
+            sampleSpeed = Math.abs(emf) / emfFullScale;
+            sampleReceived = received;
+            hasSample = true;
+        }
+    }
+
+    @Override
+    public void responseReceived(Robot r, ResponseMessage response, CommandMessage dc)
+    {
+    }
+
+    @Override
+    public void event(Robot r, EVENT_CODE code)
+    {
+        if (r == robot && code != EVENT_CODE.CONNECTION_ESTABLISHED && code != EVENT_CODE.MACRO_DONE)
+            stop();
+    }
+}
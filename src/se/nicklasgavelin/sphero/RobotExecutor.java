@@ -0,0 +1,360 @@
+package se.nicklasgavelin.sphero;
+
+import se.nicklasgavelin.configuration.ExecutionMode;
+import se.nicklasgavelin.configuration.ProjectProperties;
+import se.nicklasgavelin.log.Logging;
+import se.nicklasgavelin.util.SerialExecutor;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by a group of robots. Instead of every robot owning a
+ * timer thread and a writer thread the robots share
+ * <ul>
+ * <li>one scheduler for delayed and periodic commands</li>
+ * <li>a pool that writes queued commands to the robots</li>
+ * <li>a pool that notifies the robot listeners</li>
+ * </ul>
+ * Robots are stopped on JVM shutdown by the RobotLifecycle.
+ * Work for a single robot is always run in order (see SerialExecutor).
+ *
+ * Every robot has a platform thread for its blocking reads. The reads are
+ * native calls into the Bluetooth stack that would pin the carrier of a
+ * virtual thread, so they are never run on virtual threads. In PLATFORM
+ * mode the pools are bounded, in VIRTUAL mode the writes, listener
+ * notifications and connects run on virtual threads (if the JVM supports
+ * them, platform threads are used otherwise) so that the robots do not
+ * need a pool thread each for that work.
+ *
+ * Robots that are not part of a RobotFleet use the default executor,
+ * configured by the sphero.execution.mode property.
+ */
+class RobotExecutor
+{
+    // Maximum time to wait for the threads on shutdown (ms)
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    private static RobotExecutor defaultExecutor;
+
+    private final ExecutionMode mode;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService writers, dispatchers, blocking, readers;
+    private final Set<Robot> robots;
+
+    /**
+     * Create an executor with the given number of writer and listener
+     * threads
+     *
+     * @param threads The number of threads in each pool (PLATFORM mode)
+     * @param mode The execution mode
+     */
+    RobotExecutor(int threads, ExecutionMode mode)
+    {
+        ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, factory("RobotScheduler", true));
+        stpe.setRemoveOnCancelPolicy(true);
+        scheduler = stpe;
+        robots = ConcurrentHashMap.newKeySet();
+
+        // Readers keep the JVM alive as long as a robot is connected
+        readers = perTaskExecutor(factory("RobotStreamListener", false));
+
+        ThreadFactory virtual = mode == ExecutionMode.VIRTUAL ? virtualFactory("Robot") : null;
+        if (virtual == null)
+        {
+            if (mode == ExecutionMode.VIRTUAL)
+                Logging.warn("Virtual threads are not supported by this JVM, using platform threads");
+
+            this.mode = ExecutionMode.PLATFORM;
+            writers = Executors.newFixedThreadPool(Math.max(1, threads), factory("RobotWriter", true));
+            dispatchers = Executors.newFixedThreadPool(Math.max(1, threads), factory("RobotDispatcher", true));
+            blocking = Executors.newCachedThreadPool(factory("RobotConnect", true));
+        }
+        else
+        {
+            this.mode = ExecutionMode.VIRTUAL;
+            writers = perTaskExecutor(virtual);
+            dispatchers = perTaskExecutor(virtual);
+            blocking = perTaskExecutor(virtual);
+        }
+    }
+
+    /**
+     * Returns the executor shared by all robots that are not part of a
+     * fleet
+     *
+     * @return The default executor
+     */
+    static synchronized RobotExecutor getDefault()
+    {
+        if (defaultExecutor == null)
+            defaultExecutor = new RobotExecutor(Math.min(4, Runtime.getRuntime().availableProcessors()), ProjectProperties.getInstance().getExecutionMode());
+        return defaultExecutor;
+    }
+
+    /**
+     * Create a thread factory for platform threads with the given name
+     * prefix
+     *
+     * @param name The thread name prefix
+     * @param daemon True to create daemon threads
+     *
+     * @return The thread factory
+     */
+    private static ThreadFactory factory(final String name, final boolean daemon)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(daemon);
+            return t;
+        };
+    }
+
+    /**
+     * Create a thread factory for virtual threads. Looked up by reflection
+     * as virtual threads are only available on newer JVMs.
+     *
+     * @param name The thread name prefix
+     *
+     * @return The thread factory or null if virtual threads are not
+     *         supported
+     */
+    private static ThreadFactory virtualFactory(String name)
+    {
+        try
+        {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Create an executor that starts a new thread for every task
+     *
+     * @param factory The thread factory
+     *
+     * @return The executor
+     */
+    private static ExecutorService perTaskExecutor(ThreadFactory factory)
+    {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>(), factory);
+    }
+
+    /**
+     * Returns the execution mode actually used
+     *
+     * @return The execution mode
+     */
+    ExecutionMode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Register a robot so that it's disconnected when the JVM shuts down
+     *
+     * @param robot The robot to register
+     */
+    void register(Robot robot)
+    {
+        robots.add(robot);
+        RobotLifecycle.getInstance().register(robot);
+    }
+
+    /**
+     * Unregister a robot
+     *
+     * @param robot The robot to unregister
+     */
+    void unregister(Robot robot)
+    {
+        robots.remove(robot);
+        RobotLifecycle.getInstance().unregister(robot);
+    }
+
+    /**
+     * Disconnect all registered robots in parallel and wait for the last
+     * commands to be written
+     *
+     * @param timeout The maximum time to wait for all robots (ms)
+     */
+    void disconnectAll(long timeout)
+    {
+        RobotLifecycle.stop(robots, timeout);
+    }
+
+    /**
+     * Create an executor that runs queued writes for a single robot in order
+     *
+     * @return A new serial executor using the shared writer threads
+     */
+    Executor newWriter()
+    {
+        return new SerialExecutor(writers);
+    }
+
+    /**
+     * Create an executor that notifies the listeners of a single robot in
+     * order
+     *
+     * @return A new serial executor using the shared listener threads
+     */
+    Executor newDispatcher()
+    {
+        return new SerialExecutor(dispatchers);
+    }
+
+    /**
+     * Create a pool for connecting robots in parallel, the pool needs to be
+     * shut down by the caller
+     *
+     * @param threads The maximum number of concurrent connections
+     *
+     * @return The connection pool
+     */
+    ExecutorService newConnectPool(int threads)
+    {
+        ThreadFactory virtual = mode == ExecutionMode.VIRTUAL ? virtualFactory("RobotConnect") : null;
+        return Executors.newFixedThreadPool(Math.max(1, threads), virtual != null ? virtual : factory("RobotConnect", true));
+    }
+
+    /**
+     * Run a task that blocks for a longer time (such as opening a
+     * connection) without holding up the writers or the scheduler
+     *
+     * @param task The task to run
+     */
+    void runBlocking(Runnable task)
+    {
+        blocking.execute(task);
+    }
+
+    /**
+     * Run a task after a delay
+     *
+     * @param task The task to run
+     * @param delay The delay in milliseconds
+     *
+     * @return The scheduled task
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay)
+    {
+        return schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task after a delay
+     *
+     * @param task The task to run
+     * @param delay The delay
+     * @param unit The unit of the delay
+     *
+     * @return The scheduled task
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        return scheduler.schedule(task, delay, unit);
+    }
+
+    /**
+     * Run a task periodically
+     *
+     * @param task The task to run
+     * @param initialDelay The delay before the first run in milliseconds
+     * @param period The delay between the end of one run and the start of
+     *            the next in milliseconds
+     *
+     * @return The scheduled task
+     */
+    ScheduledFuture<?> schedule(Runnable task, long initialDelay, long period)
+    {
+        return scheduler.scheduleWithFixedDelay(task, initialDelay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task at a fixed rate, the period is measured from the start of
+     * one run to the start of the next
+     *
+     * @param task The task to run
+     * @param period The time between the start of two runs in milliseconds
+     *
+     * @return The scheduled task
+     */
+    ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long period)
+    {
+        return scheduler.scheduleAtFixedRate(task, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start the blocking read loop of a robot on a platform thread of its
+     * own. The reader is interrupted when the returned future is cancelled
+     * or the executor shuts down.
+     *
+     * @param reader The read loop
+     *
+     * @return The future of the read loop
+     */
+    Future<?> startReader(Runnable reader)
+    {
+        return readers.submit(reader);
+    }
+
+    /**
+     * Disconnect all robots and stop the shared threads, waiting for the
+     * readers, writers and listener notifications to finish. Must not be
+     * called on the default executor.
+     */
+    synchronized void shutdown()
+    {
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+
+        disconnectAll(SHUTDOWN_TIMEOUT / 2);
+        for (Robot robot : robots)
+            unregister(robot);
+
+        // No new delayed commands, let queued writes and notifications finish
+        scheduler.shutdownNow();
+        blocking.shutdownNow();
+        writers.shutdown();
+        dispatchers.shutdown();
+
+        // Readers blocked on a closed connection are released by the
+        // interrupt or by the connection failing
+        readers.shutdownNow();
+
+        try
+        {
+            if (!readers.awaitTermination(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                Logging.warn("Robot readers did not stop on shutdown");
+            if (!writers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                writers.shutdownNow();
+            if (!dispatchers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                dispatchers.shutdownNow();
+        }
+        catch (InterruptedException e)
+        {
+            writers.shutdownNow();
+            dispatchers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package se.nicklasgavelin.sphero;
+
+import se.nicklasgavelin.bluetooth.BluetoothDevice;
+import se.nicklasgavelin.configuration.ExecutionMode;
+import se.nicklasgavelin.configuration.ProjectProperties;
+import se.nicklasgavelin.log.Logging;
+import se.nicklasgavelin.sphero.command.CommandMessage;
+import se.nicklasgavelin.sphero.exception.RobotBluetoothException;
+import se.nicklasgavelin.sphero.macro.MacroObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * A group of robots that share their threads. All robots of a fleet use
+ * one scheduler, a bounded pool of writer threads and a bounded pool of
+ * listener threads, and are disconnected by a single shutdown hook.
+ * Commands may be broadcast to every connected robot of the fleet.
+ *
+ * Usage:
+ * <pre>
+ * RobotFleet fleet = new RobotFleet();
+ * for (BluetoothDevice d : devices)
+ *     fleet.add(d);
+ * fleet.connectAll();
+ * fleet.broadcast(new RGBLEDCommand(Color.RED));
+ * ...
+ * fleet.shutdown();
+ * </pre>
+ */
+public class RobotFleet
+{
+    // Default number of robots connected at the same time and the time to
+    // wait for all of them (ms)
+    private static final int CONNECT_PARALLELISM = 4;
+    private static final long CONNECT_TIMEOUT = 30000;
+
+    private final RobotExecutor executor;
+    private final Map<String, Robot> robots;
+
+    /**
+     * Create a fleet with one writer and one listener thread per available
+     * processor
+     */
+    public RobotFleet()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a fleet with the given number of writer and listener threads
+     *
+     * @param threads The number of threads in each shared pool
+     */
+    public RobotFleet(int threads)
+    {
+        this(threads, ProjectProperties.getInstance().getExecutionMode());
+    }
+
+    /**
+     * Create a fleet with the given execution mode
+     *
+     * @param threads The number of threads in each shared pool (only used
+     *            in PLATFORM mode)
+     * @param mode The execution mode
+     */
+    public RobotFleet(int threads, ExecutionMode mode)
+    {
+        executor = new RobotExecutor(threads, mode);
+        robots = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the execution mode used by the fleet (PLATFORM if VIRTUAL
+     * was requested but is not supported)
+     *
+     * @return The execution mode
+     */
+    public ExecutionMode getExecutionMode()
+    {
+        return executor.getMode();
+    }
+
+    /**
+     * Create a robot for the given device and add it to the fleet. A robot
+     * that is already part of the fleet is returned as is.
+     *
+     * @param bt The Bluetooth device of the robot
+     *
+     * @return The robot
+     *
+     * @throws RobotBluetoothException
+     */
+    public Robot add(BluetoothDevice bt) throws RobotBluetoothException
+    {
+        return add(bt, null);
+    }
+
+    /**
+     * Create a robot for the given device and add it to the fleet. A robot
+     * that is already part of the fleet is returned as is.
+     *
+     * @param bt The Bluetooth device of the robot
+     * @param rs The robot settings (null for the default settings)
+     *
+     * @return The robot
+     *
+     * @throws RobotBluetoothException
+     */
+    public synchronized Robot add(BluetoothDevice bt, RobotSetting rs) throws RobotBluetoothException
+    {
+        Robot robot = robots.get(bt.getAddress());
+        if (robot == null)
+        {
+            robot = new Robot(bt, rs, executor);
+            robots.put(bt.getAddress(), robot);
+        }
+        return robot;
+    }
+
+    /**
+     * Disconnect a robot and remove it from the fleet
+     *
+     * @param robot The robot to remove
+     *
+     * @return True if the robot was part of the fleet
+     */
+    public boolean remove(Robot robot)
+    {
+        if (!robots.remove(robot.getAddress(), robot))
+            return false;
+
+        robot.shutdown();
+        executor.unregister(robot);
+        return true;
+    }
+
+    /**
+     * Returns the robot with the given address
+     *
+     * @param address The Bluetooth address of the robot
+     *
+     * @return The robot or null if no such robot is part of the fleet
+     */
+    public Robot getRobot(String address)
+    {
+        return robots.get(address);
+    }
+
+    /**
+     * Returns all robots of the fleet
+     *
+     * @return An unmodifiable snapshot of the robots
+     */
+    public Collection<Robot> getRobots()
+    {
+        return Collections.unmodifiableCollection(new ArrayList<>(robots.values()));
+    }
+
+    /**
+     * Returns the number of robots in the fleet
+     *
+     * @return The number of robots
+     */
+    public int size()
+    {
+        return robots.size();
+    }
+
+    /**
+     * Connect all robots that are not yet connected, a few at a time, and
+     * wait for them to be initialized
+     *
+     * @return The number of robots that are connected and have finished
+     *         their initialization
+     */
+    public int connectAll()
+    {
+        connectAll(CONNECT_PARALLELISM, CONNECT_TIMEOUT);
+
+        int connected = 0;
+        for (Robot robot : robots.values())
+            if (robot.awaitInitialized(0))
+                connected++;
+        return connected;
+    }
+
+    /**
+     * Connect all robots that are not yet connected. The links are opened in
+     * parallel (at most parallelism at a time), every robot writes its
+     * initialization commands at once and the responses of all robots are
+     * then awaited together.
+     *
+     * @param parallelism The maximum number of links opened at the same time
+     * @param timeout The maximum time to wait for all robots (ms)
+     *
+     * @return The connection timing of every robot that a connection was
+     *         attempted for, including robots whose link or initialization
+     *         failed (check with Robot.awaitInitialized)
+     */
+    public Map<Robot, ConnectionTiming> connectAll(int parallelism, long timeout)
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        Map<Robot, Future<Boolean>> links = new LinkedHashMap<>();
+
+        ExecutorService pool = executor.newConnectPool(parallelism);
+        try
+        {
+            for (final Robot robot : robots.values())
+                if (!robot.isConnected())
+                    links.put(robot, pool.submit(() -> robot.connect()));
+
+            // Wait for the links
+            for (Map.Entry<Robot, Future<Boolean>> link : links.entrySet())
+            {
+                try
+                {
+                    link.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                catch (ExecutionException | TimeoutException e)
+                {
+                    Logging.error("Failed to connect " + link.getKey().getAddress(), e);
+                }
+            }
+
+            // Wait for the handshakes
+            for (Robot robot : links.keySet())
+                if (robot.isConnected())
+                    robot.awaitInitialized(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        Map<Robot, ConnectionTiming> timing = new LinkedHashMap<>();
+        for (Robot robot : links.keySet())
+            timing.put(robot, robot.getConnectionTiming());
+        return timing;
+    }
+
+    /**
+     * Disconnect all robots (the robots remain in the fleet)
+     */
+    public void disconnectAll()
+    {
+        for (Robot robot : robots.values())
+            robot.disconnect();
+    }
+
+    /**
+     * Send a command to every connected robot. Every robot is sent its own
+     * copy of the command (see CommandMessage.copy), so the robots don't
+     * share a sequence number and the command may be changed afterwards.
+     *
+     * @param command The command to send
+     */
+    public void broadcast(CommandMessage command)
+    {
+        for (Robot robot : robots.values())
+            if (robot.isConnected())
+                robot.sendCommand(command.copy());
+    }
+
+    /**
+     * Send a macro to every connected robot
+     *
+     * @param macro The macro to send
+     */
+    public void broadcast(MacroObject macro)
+    {
+        for (Robot robot : robots.values())
+            if (robot.isConnected())
+                robot.sendCommand(macro);
+    }
+
+    /**
+     * Perform an action for every robot of the fleet
+     *
+     * @param action The action to perform
+     */
+    public void forEach(Consumer<Robot> action)
+    {
+        robots.values().forEach(action);
+    }
+
+    /**
+     * Disconnect all robots and stop the threads of the fleet, waiting
+     * (a limited time) for all reads, writes and listener notifications to
+     * finish. The fleet can not be used after this.
+     */
+    public void shutdown()
+    {
+        robots.clear();
+        executor.shutdown();
+    }
+}
@@ -6,22 +6,36 @@ import java.awt.*;
  * Manages the RGB and LED brightness information to prevent
  * storing this directly in objects in the Robot instance.
  *
+ * Instances are immutable snapshots, the robot publishes a new instance
+ * every time a LED command is sent (see Robot.getState).
+ *
  * @author Nicklas Gavelin
  */
-public class RobotLED
+public final class RobotLED
 {
-    private Robot robot_outer_arg;
     // Internal values
-    private int red, green, blue;
-    private float brightness;
+    private final int red, green, blue;
+    private final float brightness;
 
     /**
-     * Create a new robot led object
+     * Create a new robot led object with the default values of the robot
+     * settings
      */
     RobotLED(Robot robot_outer_arg)
     {
-        this.robot_outer_arg = robot_outer_arg;
-        reset();
+        // White color (default for connected devices) and the front led off
+        this(robot_outer_arg.getRobotSettings().getLedRGB().getRed(),
+             robot_outer_arg.getRobotSettings().getLedRGB().getGreen(),
+             robot_outer_arg.getRobotSettings().getLedRGB().getBlue(),
+             robot_outer_arg.getRobotSettings().getLedBrightness());
+    }
+
+    private RobotLED(int red, int green, int blue, float brightness)
+    {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+        this.brightness = brightness;
     }
 
     /**
@@ -74,37 +88,23 @@ public class RobotLED
         return brightness;
     }
 
-    /**
-     * Resets the internal values to default values
-     */
-    private void reset()
-    {
-        // Set white color (default for connected devices)
-        red = robot_outer_arg.getRobotSettings().getLedRGB().getRed();
-        green = robot_outer_arg.getRobotSettings().getLedRGB().getGreen();
-        blue = robot_outer_arg.getRobotSettings().getLedRGB().getBlue();
-
-        // Reset the ledBrightness to 0 (off)
-        brightness = robot_outer_arg.getRobotSettings().getLedBrightness();
-    }
-
-    public void setBrightness(float brightness) {
-        this.brightness = brightness;
-    }
-
-    public void setBlue(int blue) {
-        this.blue = blue;
+    public int getGreen() {
+        return green;
     }
 
-    public void setGreen(int green) {
-        this.green = green;
+    RobotLED withRGB(int red, int green, int blue)
+    {
+        return new RobotLED(red, green, blue, brightness);
     }
 
-    public int getGreen() {
-        return green;
+    RobotLED withBrightness(float brightness)
+    {
+        return new RobotLED(red, green, blue, brightness);
     }
 
-    public void setRed(int red) {
-        this.red = red;
+    @Override
+    public String toString()
+    {
+        return "RobotLED{red=" + red + ", green=" + green + ", blue=" + blue + ", brightness=" + brightness + "}";
     }
 }
@@ -0,0 +1,123 @@
+package se.nicklasgavelin.sphero;
+
+import se.nicklasgavelin.log.Logging;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stops robots when they leave a fleet, when an executor shuts down or when
+ * the JVM exits. A single shutdown hook is used for all robots (independent
+ * of the executor they use).
+ *
+ * Robots are stopped in parallel: every robot first gets its safe stop
+ * commands (abort macro, stop rolling, lights off) queued as a single write
+ * followed by the closing of its connection, after that the coordinator
+ * waits for all robots against one shared deadline. Robots that have not
+ * written their last commands when the deadline passes have their
+ * connection closed right away.
+ */
+final class RobotLifecycle
+{
+    // Maximum time to stop all robots when the JVM shuts down (ms)
+    private static final long STOP_TIMEOUT = 2000;
+
+    private static final RobotLifecycle instance = new RobotLifecycle();
+
+    private final Set<Robot> robots;
+    private Thread shutdownHook;
+
+    private RobotLifecycle()
+    {
+        robots = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Returns the coordinator
+     *
+     * @return The coordinator
+     */
+    static RobotLifecycle getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Register a robot so that it's stopped when the JVM shuts down
+     *
+     * @param robot The robot to register
+     */
+    synchronized void register(Robot robot)
+    {
+        robots.add(robot);
+
+        if (shutdownHook == null)
+        {
+            shutdownHook = new Thread(this::stopAll, "RobotShutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+    }
+
+    /**
+     * Unregister a robot
+     *
+     * @param robot The robot to unregister
+     */
+    void unregister(Robot robot)
+    {
+        robots.remove(robot);
+    }
+
+    /**
+     * Stop all registered robots
+     */
+    void stopAll()
+    {
+        stop(robots, STOP_TIMEOUT);
+    }
+
+    /**
+     * Stop robots in parallel
+     *
+     * @param robots The robots to stop
+     * @param timeout The maximum time to wait for all robots (ms)
+     *
+     * @return True if all robots wrote their safe stop commands in time
+     */
+    static boolean stop(Collection<Robot> robots, long timeout)
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        // Queue the safe stop and the close on every robot before waiting
+        // for any of them
+        Map<Robot, RobotSendingQueue> stopping = new LinkedHashMap<>();
+        for (Robot robot : robots)
+        {
+            try
+            {
+                RobotSendingQueue queue = robot.beginShutdown();
+                if (queue != null)
+                    stopping.put(robot, queue);
+            }
+            catch (RuntimeException e)
+            {
+                Logging.error("Failed to stop " + robot.getAddress(), e);
+            }
+        }
+
+        boolean stopped = true;
+        for (Map.Entry<Robot, RobotSendingQueue> robot : stopping.entrySet())
+        {
+            if (!robot.getValue().awaitWritten(Math.max(1, deadline - System.currentTimeMillis())))
+            {
+                Logging.warn("Timed out stopping " + robot.getKey().getAddress() + ", closing the connection");
+                robot.getKey().forceClose();
+                stopped = false;
+            }
+        }
+        return stopped;
+    }
+}
@@ -4,6 +4,8 @@ import se.nicklasgavelin.sphero.command.CommandMessage;
 import se.nicklasgavelin.sphero.response.ResponseMessage;
 import se.nicklasgavelin.sphero.response.InformationResponseMessage;
 
+import java.util.List;
+
 /**
  * Interface for listening on a robot.
  * You need to perform Robot.addListener to listen for robot events
@@ -46,4 +48,18 @@ public interface RobotListener
 	 * @param response The response itself
 	 */
     void informationResponseReceived(Robot r, InformationResponseMessage response);
+
+	/**
+	 * Called with the information responses that were received together
+	 * (a burst of streamed sensor data). Calls informationResponseReceived
+	 * for every response unless overridden to handle the whole batch.
+	 * 
+	 * @param r The robot the messages were received for
+	 * @param responses The responses in the order they were received
+	 */
+    default void informationResponsesReceived(Robot r, List<InformationResponseMessage> responses)
+    {
+        for (InformationResponseMessage response : responses)
+            informationResponseReceived(r, response);
+    }
 }
@@ -5,25 +5,40 @@ package se.nicklasgavelin.sphero;
  * All the internal values may be accessed with the get methods that are
  * available.
  *
+ * Instances are immutable snapshots, the robot publishes a new instance
+ * every time a movement command is sent (see Robot.getState).
+ *
  * @author Nicklas Gavelin
  */
-public class RobotMovement
+public final class RobotMovement
 {
-    private Robot robot_outer_arg;
     // The current values
-    private float heading, velocity, rotationRate;
-    private boolean stop = true;
+    private final float heading, velocity, rotationRate;
+    private final boolean stop;
     // The current drive algorithm that is used for calculating velocity
     // and motorHeading when running .drive no Robot
-    private DriveAlgorithm algorithm;
+    private final DriveAlgorithm algorithm;
 
     /**
-     * Create a new robot movement object
+     * Create a new robot movement object with the default values of the
+     * robot settings
      */
     RobotMovement(Robot robot_outer_arg)
     {
-        this.robot_outer_arg = robot_outer_arg;
-        reset();
+        this(robot_outer_arg.getRobotSettings().getMotorHeading(),
+             robot_outer_arg.getRobotSettings().getMotorStartSpeed(),
+             robot_outer_arg.getRobotSettings().getMotorRotationRate(),
+             robot_outer_arg.getRobotSettings().getMotorStop(),
+             new RCDriveAlgorithm());
+    }
+
+    private RobotMovement(float heading, float velocity, float rotationRate, boolean stop, DriveAlgorithm algorithm)
+    {
+        this.heading = heading;
+        this.velocity = velocity;
+        this.rotationRate = rotationRate;
+        this.stop = stop;
+        this.algorithm = algorithm;
     }
 
     /**
@@ -79,37 +94,24 @@ public class RobotMovement
         return algorithm;
     }
 
-    /**
-     * Resets all values of the class instance.
-     * Will NOT send any commands to the robot, this has to be
-     * done manually! BE SURE TO DO IT!
-     */
-    private void reset()
+    RobotMovement withRoll(float heading, float velocity, boolean stop)
     {
-        heading = robot_outer_arg.getRobotSettings().getMotorHeading();
-        velocity = robot_outer_arg.getRobotSettings().getMotorStartSpeed();
-        rotationRate = robot_outer_arg.getRobotSettings().getMotorRotationRate();
-        stop = robot_outer_arg.getRobotSettings().getMotorStop();
-        algorithm = new RCDriveAlgorithm();
+        return new RobotMovement(heading, velocity, rotationRate, stop, algorithm);
     }
 
-    public void setDriveAlgorithm(DriveAlgorithm driveAlgorithm) {
-        this.algorithm = driveAlgorithm;
-    }
-
-    public void setRotationRate(float rotationRate) {
-        this.rotationRate = rotationRate;
-    }
-
-    public void setHeading(float heading) {
-        this.heading = heading;
+    RobotMovement withRotationRate(float rotationRate)
+    {
+        return new RobotMovement(heading, velocity, rotationRate, stop, algorithm);
     }
 
-    public void setVelocity(float velocity) {
-        this.velocity = velocity;
+    RobotMovement withDriveAlgorithm(DriveAlgorithm driveAlgorithm)
+    {
+        return new RobotMovement(heading, velocity, rotationRate, stop, driveAlgorithm);
     }
 
-    public void setStop(boolean stop) {
-        this.stop = stop;
+    @Override
+    public String toString()
+    {
+        return "RobotMovement{heading=" + heading + ", velocity=" + velocity + ", rotationRate=" + rotationRate + ", stop=" + stop + "}";
     }
 }
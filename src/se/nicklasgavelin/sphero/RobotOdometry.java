@@ -0,0 +1,256 @@
+package se.nicklasgavelin.sphero;
+
+import se.nicklasgavelin.sphero.command.CommandMessage;
+import se.nicklasgavelin.sphero.command.SetDataStreamingCommand;
+import se.nicklasgavelin.sphero.command.SetDataStreamingCommand.DATA_STREAMING_MASKS;
+import se.nicklasgavelin.sphero.response.InformationResponseMessage;
+import se.nicklasgavelin.sphero.response.ResponseMessage;
+import se.nicklasgavelin.sphero.response.information.DataResponse;
+
+/**
+ * Dead-reckoning odometry for a single robot. Listens to the data
+ * streaming responses of the robot and integrates every received sensor
+ * frame into a position and velocity estimate.
+ *
+ * The heading is taken from the IMU yaw channel, the velocity is
+ * calculated by blending the wheel speed (motor back EMF) with the
+ * integrated forward acceleration (complementary filter). Channels that
+ * are not part of the active streaming mask are simply skipped, the
+ * commanded heading is used if no yaw is streamed.
+ *
+ * The integration state is kept in a fixed number of fields and is only
+ * touched by the listening thread of the robot, every integrated frame
+ * publishes a new immutable RobotPose that may be read from any thread
+ * by calling getPose().
+ *
+ * Usage:
+ * <pre>
+ * RobotOdometry odometry = new RobotOdometry( robot );
+ * robot.addListener( odometry );
+ * robot.sendCommand( new SetDataStreamingCommand( 10, 1, mask, 0 ) );
+ * ...
+ * RobotPose pose = odometry.getPose();
+ * </pre>
+ */
+public class RobotOdometry implements RobotListener
+{
+    /**
+     * The internal sample rate of the robot sensors (Hz), the streaming
+     * divisor divides this rate
+     */
+    public static final double SENSOR_SAMPLE_RATE = 400.0;
+
+    /**
+     * The sensor mask that contains all channels used by the odometry
+     */
+    public static final int ODOMETRY_MASK = DATA_STREAMING_MASKS.IMU.YAW.FILTERED
+            | DATA_STREAMING_MASKS.ACCELEROMETER.Y.FILTERED
+            | DATA_STREAMING_MASKS.MOTOR_BACK_EMF.ALL.FILTERED;
+
+    // Default conversion factors
+    private static final double DEFAULT_EMF_SCALE = 0.0035, DEFAULT_ACCELERATION_SCALE = 9.81 / 4096.0, DEFAULT_WHEEL_WEIGHT = 0.98;
+
+    private final Robot robot;
+    private volatile RobotPose pose = RobotPose.ORIGIN;
+    private volatile boolean resetRequested = false;
+
+    // Conversion settings
+    private volatile double emfScale = DEFAULT_EMF_SCALE, accelerationScale = DEFAULT_ACCELERATION_SCALE, wheelWeight = DEFAULT_WHEEL_WEIGHT;
+
+    // Integration state (only used by the listening thread)
+    private double x, y, velocity;
+    private long samples;
+
+    // Channel offsets for the last seen mask
+    private int lastMask = DATA_STREAMING_MASKS.OFF, frameLength, yawOffset, accelerationOffset, leftEmfOffset, rightEmfOffset;
+
+    /**
+     * Create an odometry for the given robot. The odometry needs to be
+     * added as a listener to the robot to receive any sensor data.
+     *
+     * @param robot The robot to calculate the odometry for
+     */
+    public RobotOdometry(Robot robot)
+    {
+        this.robot = robot;
+    }
+
+    /**
+     * Returns the latest pose estimate. Never blocks and never returns
+     * null.
+     *
+     * @return The latest pose estimate
+     */
+    public RobotPose getPose()
+    {
+        return pose;
+    }
+
+    /**
+     * Resets the position and velocity to zero. The reset is performed
+     * before the next sensor frame is integrated.
+     */
+    public void reset()
+    {
+        resetRequested = true;
+        pose = RobotPose.ORIGIN;
+    }
+
+    /**
+     * Set the factor converting a filtered back EMF value into a wheel
+     * speed in meters per second
+     *
+     * @param emfScale The back EMF conversion factor
+     */
+    public void setEmfScale(double emfScale)
+    {
+        this.emfScale = emfScale;
+    }
+
+    /**
+     * Set the factor converting a filtered accelerometer value into an
+     * acceleration in meters per second squared
+     *
+     * @param accelerationScale The accelerometer conversion factor
+     */
+    public void setAccelerationScale(double accelerationScale)
+    {
+        this.accelerationScale = accelerationScale;
+    }
+
+    /**
+     * Set the weight of the wheel speed in the complementary filter (0-1).
+     * A higher value trusts the back EMF more, a lower value trusts the
+     * integrated acceleration more.
+     *
+     * @param wheelWeight The wheel speed weight (0-1)
+     */
+    public void setWheelWeight(double wheelWeight)
+    {
+        this.wheelWeight = Math.max(0, Math.min(1, wheelWeight));
+    }
+
+    @Override
+    public void informationResponseReceived(Robot r, InformationResponseMessage response)
+    {
+        if (r != robot || !(response instanceof DataResponse))
+            return;
+
+        SetDataStreamingCommand streaming = robot.getDataStreaming();
+        if (streaming == null)
+            return;
+
+        int mask = streaming.getMask();
+        if (mask != lastMask)
+            updateOffsets(mask);
+
+        if (resetRequested)
+        {
+            resetRequested = false;
+            x = y = velocity = 0;
+            samples = 0;
+        }
+
+        DataResponse data = (DataResponse) response;
+        int length = data.getSensorDataLength();
+        double dt = Math.max(1, streaming.getDivisor()) / SENSOR_SAMPLE_RATE;
+        double heading = pose.getHeading();
+
+        // A packet may contain several frames, integrate all of them
+        for (int frame = 0; frameLength > 0 && frame + frameLength <= length; frame += frameLength)
+        {
+            heading = readHeading(data, frame);
+            velocity = readVelocity(data, frame, dt);
+
+            double rad = Math.toRadians(heading);
+            x += velocity * Math.sin(rad) * dt;
+            y += velocity * Math.cos(rad) * dt;
+            samples++;
+        }
+
+        pose = new RobotPose(x, y, heading, velocity, samples, System.nanoTime());
+    }
+
+    @Override
+    public void responseReceived(Robot r, ResponseMessage response, CommandMessage dc)
+    {
+    }
+
+    @Override
+    public void event(Robot r, EVENT_CODE code)
+    {
+    }
+
+    /**
+     * Calculate the channel offsets for a new streaming mask
+     *
+     * @param mask The new streaming mask
+     */
+    private void updateOffsets(int mask)
+    {
+        lastMask = mask;
+        frameLength = DataResponse.getFrameLength(mask);
+        yawOffset = DataResponse.getChannelOffset(mask, DATA_STREAMING_MASKS.IMU.YAW.FILTERED);
+        accelerationOffset = DataResponse.getChannelOffset(mask, DATA_STREAMING_MASKS.ACCELEROMETER.Y.FILTERED);
+        leftEmfOffset = DataResponse.getChannelOffset(mask, DATA_STREAMING_MASKS.MOTOR_BACK_EMF.LEFT.FILTERED);
+        rightEmfOffset = DataResponse.getChannelOffset(mask, DATA_STREAMING_MASKS.MOTOR_BACK_EMF.RIGHT.FILTERED);
+    }
+
+    /**
+     * Read the heading from a frame, falls back on the commanded heading
+     * if no yaw is streamed
+     *
+     * @param data The sensor data response
+     * @param frame The offset of the frame
+     *
+     * @return The heading in degrees (0-360)
+     */
+    private double readHeading(DataResponse data, int frame)
+    {
+        if (yawOffset < 0)
+            return robot.getRobotMovement().getHeading();
+
+        // Yaw is given as -180 to 180 degrees
+        int yaw = data.getSensorValue(frame + yawOffset);
+        return yaw < 0 ? yaw + 360 : yaw;
+    }
+
+    /**
+     * Calculate the new velocity estimate from a frame
+     *
+     * @param data The sensor data response
+     * @param frame The offset of the frame
+     * @param dt The time between two frames (seconds)
+     *
+     * @return The new velocity estimate
+     */
+    private double readVelocity(DataResponse data, int frame, double dt)
+    {
+        double predicted = velocity;
+        if (accelerationOffset >= 0)
+            predicted += data.getSensorValue(frame + accelerationOffset) * accelerationScale * dt;
+
+        if (leftEmfOffset < 0 && rightEmfOffset < 0)
+            return predicted;
+
+        // Average the streamed wheels
+        double emf = 0;
+        int wheels = 0;
+        if (leftEmfOffset >= 0)
+        {
+            emf += data.getSensorValue(frame + leftEmfOffset);
+            wheels++;
+        }
+        if (rightEmfOffset >= 0)
+        {
+            emf += data.getSensorValue(frame + rightEmfOffset);
+            wheels++;
+        }
+        double measured = emf / wheels * emfScale;
+
+        if (accelerationOffset < 0)
+            return measured;
+
+        return wheelWeight * measured + (1 - wheelWeight) * predicted;
+    }
+}
@@ -0,0 +1,109 @@
+package se.nicklasgavelin.sphero;
+
+/**
+ * Immutable snapshot of the estimated robot position and motion as
+ * calculated by the RobotOdometry. A new snapshot is published for
+ * every integrated sensor frame so a snapshot may be kept and read
+ * without any synchronization.
+ *
+ * Positions are given in meters relative to the position where the
+ * odometry was started (or last reset), the heading is given in degrees.
+ */
+public final class RobotPose
+{
+    /**
+     * Pose at the origin, used before any sensor data has been received
+     */
+    public static final RobotPose ORIGIN = new RobotPose(0, 0, 0, 0, 0, 0);
+
+    private final double x, y, heading, velocity;
+    private final long samples, timestamp;
+
+    /**
+     * Create a pose snapshot
+     *
+     * @param x The x position (meters)
+     * @param y The y position (meters)
+     * @param heading The heading (degrees, 0-360)
+     * @param velocity The estimated velocity (meters per second)
+     * @param samples The number of sensor frames integrated so far
+     * @param timestamp The System.nanoTime() value when the snapshot was
+     *            created
+     */
+    RobotPose(double x, double y, double heading, double velocity, long samples, long timestamp)
+    {
+        this.x = x;
+        this.y = y;
+        this.heading = heading;
+        this.velocity = velocity;
+        this.samples = samples;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns the x position in meters
+     *
+     * @return The x position
+     */
+    public double getX()
+    {
+        return x;
+    }
+
+    /**
+     * Returns the y position in meters
+     *
+     * @return The y position
+     */
+    public double getY()
+    {
+        return y;
+    }
+
+    /**
+     * Returns the heading in degrees (0-360)
+     *
+     * @return The heading
+     */
+    public double getHeading()
+    {
+        return heading;
+    }
+
+    /**
+     * Returns the estimated velocity in meters per second
+     *
+     * @return The estimated velocity
+     */
+    public double getVelocity()
+    {
+        return velocity;
+    }
+
+    /**
+     * Returns the number of sensor frames that have been integrated
+     * into this pose
+     *
+     * @return The number of integrated sensor frames
+     */
+    public long getSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * Returns the System.nanoTime() timestamp of the snapshot
+     *
+     * @return The snapshot timestamp in nanoseconds
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RobotPose{x=" + x + ", y=" + y + ", heading=" + heading + ", velocity=" + velocity + ", samples=" + samples + '}';
+    }
+}
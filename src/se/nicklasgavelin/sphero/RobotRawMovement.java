@@ -8,22 +8,33 @@ import se.nicklasgavelin.sphero.command.RawMotorCommand;
  * these use direct commends to the engines instead of pre-defined
  * commands.
  *
+ * Instances are immutable snapshots, the robot publishes a new instance
+ * every time a raw motor command is sent (see Robot.getState).
+ *
  * @author Nicklas Gavelin
  */
-public class RobotRawMovement
+public final class RobotRawMovement
 {
-    private Robot robot_outer_arg;
     // Holds motor speed and mode (Forward, Reverse)
-    private int leftMotorSpeed, rightMotorSpeed;
-    private RawMotorCommand.MOTOR_MODE leftMotorMode, rightMotorMode;
+    private final int leftMotorSpeed, rightMotorSpeed;
+    private final RawMotorCommand.MOTOR_MODE leftMotorMode, rightMotorMode;
 
     /**
-     * Create a new raw robot movement
+     * Create a new raw robot movement with the default values of the robot
+     * settings
      */
     RobotRawMovement(Robot robot_outer_arg)
     {
-        this.robot_outer_arg = robot_outer_arg;
-        reset();
+        this(robot_outer_arg.getRobotSettings().getMotorMode(), robot_outer_arg.getRobotSettings().getMotorStartSpeed(),
+             robot_outer_arg.getRobotSettings().getMotorMode(), robot_outer_arg.getRobotSettings().getMotorStartSpeed());
+    }
+
+    RobotRawMovement(RawMotorCommand.MOTOR_MODE leftMotorMode, int leftMotorSpeed, RawMotorCommand.MOTOR_MODE rightMotorMode, int rightMotorSpeed)
+    {
+        this.leftMotorMode = leftMotorMode;
+        this.leftMotorSpeed = leftMotorSpeed;
+        this.rightMotorMode = rightMotorMode;
+        this.rightMotorSpeed = rightMotorSpeed;
     }
 
     /**
@@ -66,30 +77,9 @@ public class RobotRawMovement
         return rightMotorMode;
     }
 
-    /**
-     * Resets the internal values.
-     * WARNING: WILL NOT SEND _ANY_ COMMANDS TO THE SPHERO DEVICE, THIS
-     * HAS TO BE DONE MANUALLY!
-     */
-    private void reset()
+    @Override
+    public String toString()
     {
-        leftMotorSpeed = rightMotorSpeed = robot_outer_arg.getRobotSettings().getMotorStartSpeed();
-        leftMotorMode = rightMotorMode = robot_outer_arg.getRobotSettings().getMotorMode();
-    }
-
-    public void setRightMotorSpeed(int rightMotorSpeed) {
-        this.rightMotorSpeed = rightMotorSpeed;
-    }
-
-    public void setLeftMotorSpeed(int leftMotorSpeed) {
-        this.leftMotorSpeed = leftMotorSpeed;
-    }
-
-    public void setRightMotorMode(RawMotorCommand.MOTOR_MODE rightMotorMode) {
-        this.rightMotorMode = rightMotorMode;
-    }
-
-    public void setLeftMotorMode(RawMotorCommand.MOTOR_MODE leftMotorMode) {
-        this.leftMotorMode = leftMotorMode;
+        return "RobotRawMovement{left=" + leftMotorMode + " " + leftMotorSpeed + ", right=" + rightMotorMode + " " + rightMotorSpeed + "}";
     }
 }
@@ -1,35 +1,70 @@
 package se.nicklasgavelin.sphero;
 
 import se.nicklasgavelin.bluetooth.BluetoothConnection;
+import se.nicklasgavelin.configuration.ProjectProperties;
 import se.nicklasgavelin.log.Logging;
 import se.nicklasgavelin.sphero.command.CommandMessage;
-import se.nicklasgavelin.util.ByteArrayBuffer;
+import se.nicklasgavelin.sphero.journal.RobotJournal;
 import se.nicklasgavelin.util.Pair;
 
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles the sending of commands to the active robot.
- * Manages multiple queues (one timer and one sending queue). The
- * sending queue is for sending direct messages and the timer queue
- * is used to schedule commands to be sent after a certain delay
- * or with periodic transmissions.
+ * Commands are queued and written by a writer task running on the
+ * threads shared by all robots of the RobotExecutor, delayed and periodic
+ * commands are scheduled on the shared scheduler.
+ *
+ * Every CommandPriority class has its own queue. A write is filled with
+ * the commands of the highest class first, so a safety stop is not held up
+ * by a flood of LED updates. CONTROL and BULK user commands that have
+ * waited longer than their deadline are dropped instead of written. A
+ * macro run is queued behind macro data that is still waiting, so a save
+ * followed by a run is written in the order it was sent.
  *
  * @author Nicklas Gavelin
  */
-class RobotSendingQueue extends Timer
+class RobotSendingQueue
 {
+    // Maximum number of bytes written at once
+    private static final int MAX_WRITE_SIZE = 256;
+
     private Robot robot_outer_arg;
     // Internal storage
-    private boolean stop, stopAccepting;
+    private volatile boolean stop, stopAccepting;
     private final BluetoothConnection btc;
+    private final RobotExecutor executor;
     // Writer & queue that the writer uses
-    private Writer writer;
-    private final BlockingQueue<Pair<CommandMessage, Boolean>> sendingQueue;
+    private final Executor writer;
+    private final Lane[] lanes;
+    // Number of commands queued so far, orders commands across the lanes
+    private final AtomicLong queued;
+    // Delayed and periodic commands that have not yet been cancelled
+    private final Set<ScheduledFuture<?>> scheduled;
+    // Commands are encoded into this buffer, only used by the writer
+    private ByteBuffer sendingBuffer;
+    // Callbacks of the commands in the sending buffer, only used by the
+    // writer
+    private final List<Runnable> written;
+    // The write task and whether it has been handed to the writer and not
+    // started yet, guarded by the writer lock
+    private final Runnable writeTask;
+    private boolean writePending;
 
     /**
      * Create a robot stream writer for a specific Bluetooth connection
@@ -40,31 +75,91 @@ class RobotSendingQueue extends Timer
     {
         this.robot_outer_arg = robot_outer_arg;
         this.btc = btc;
-        sendingQueue = new LinkedBlockingQueue<>();
-        writer = new Writer();
+        executor = robot_outer_arg.getExecutor();
+        ProjectProperties properties = ProjectProperties.getInstance();
+        lanes = new Lane[] {
+                new Lane(0),
+                new Lane(properties.getControlDeadline()),
+                new Lane(properties.getBulkDeadline())
+        };
+        queued = new AtomicLong();
+        writer = executor.newWriter();
+        scheduled = ConcurrentHashMap.newKeySet();
+        sendingBuffer = ByteBuffer.allocate(MAX_WRITE_SIZE);
+        written = new ArrayList<>();
+        writeTask = this::write;
+    }
+
+    /**
+     * Commands of one priority class waiting to be written
+     */
+    private static final class Lane
+    {
+        final Queue<Queued> commands = new ConcurrentLinkedQueue<>();
+        // Time a command may wait (ns), 0 if the commands never expire
+        final long deadline;
 
-        startWriter();
+        Lane(long deadline)
+        {
+            this.deadline = TimeUnit.MILLISECONDS.toNanos(Math.max(0, deadline));
+        }
     }
 
     /**
-     * Start the writer thread.
-     * The writer will motorStop at the same time as the RobotSendinQueue is
-     * stopped.
+     * A command waiting to be written. Once written the same object waits
+     * for the response in the stream listener as the pair of the command
+     * and its system command flag.
      */
-    private void startWriter()
+    private static final class Queued extends Pair<CommandMessage, Boolean>
     {
-        writer.start();
+        final CommandPriority priority;
+        final long order, expires;
+        // Called once the command has been written, may be null
+        final Runnable written;
+
+        Queued(CommandMessage command, boolean systemCommand, CommandPriority priority, long order, long expires, Runnable written)
+        {
+            super(command, systemCommand);
+            this.priority = priority;
+            this.written = written;
+            this.order = order;
+            this.expires = expires;
+        }
     }
 
     /**
      * Forces a command to be sent even if the stopAccepting flag
-     * is set to true. The command sent will be a system command
+     * is set to true. The command sent will be a system command of the
+     * SAFETY class
      *
      * @param command The command to enqueue
      */
     public void forceCommand(CommandMessage command)
     {
-        sendingQueue.add(new Pair<>(command, true));
+        add(command, true, CommandPriority.SAFETY, 0, null);
+        scheduleWrite();
+    }
+
+    /**
+     * Forces several commands to be sent together (in a single write if they
+     * fit in MAX_WRITE_SIZE) even if the stopAccepting flag is set to true
+     *
+     * @param commands The commands to enqueue
+     */
+    public void forceCommands(Collection<? extends CommandMessage> commands)
+    {
+        for (CommandMessage command : commands)
+            add(command, true, CommandPriority.SAFETY, 0, null);
+        scheduleWrite();
+    }
+
+    /**
+     * Close the connection once all commands queued before this call have
+     * been written
+     */
+    public void closeAfterWritten()
+    {
+        writer.execute(btc::stop);
     }
 
     /**
@@ -78,17 +173,94 @@ class RobotSendingQueue extends Timer
      */
     public void enqueue(CommandMessage command, boolean systemCommand)
     {
-        synchronized(sendingQueue)
+        enqueue(command, systemCommand, priorityOf(command), 0);
+    }
+
+    /**
+     * Returns the priority class of a command queued without an explicit
+     * class. A macro run is queued behind pending macro data so that a run
+     * sent after a save is not written before the macro is saved.
+     *
+     * @param command The command
+     *
+     * @return The priority class to queue the command in
+     */
+    private CommandPriority priorityOf(CommandMessage command)
+    {
+        if (command.getCommand() == CommandMessage.COMMAND_MESSAGE_TYPE.RUN_MACRO
+                && !lanes[CommandPriority.BULK.ordinal()].commands.isEmpty())
+            return CommandPriority.BULK;
+        return CommandPriority.of(command);
+    }
+
+    /**
+     * Enqueue a single command with a given priority class
+     *
+     * @param command The command to send
+     * @param systemCommand True if the command is a system command, false
+     *            otherwise
+     * @param priority The priority class of the command
+     * @param deadline The time the command may wait before it is dropped
+     *            (ms), 0 for the deadline of the priority class. Ignored for
+     *            SAFETY commands
+     */
+    public void enqueue(CommandMessage command, boolean systemCommand, CommandPriority priority, long deadline)
+    {
+        enqueue(command, systemCommand, priority, deadline, null);
+    }
+
+    /**
+     * Enqueue a single user command and get told when it has been written
+     *
+     * @param command The command to send
+     * @param written Called on the writer after the write that contains the
+     *            command has been flushed to the connection (not called if
+     *            the command is dropped or the write fails)
+     */
+    public void enqueue(CommandMessage command, Runnable written)
+    {
+        enqueue(command, false, priorityOf(command), 0, written);
+    }
+
+    private void enqueue(CommandMessage command, boolean systemCommand, CommandPriority priority, long deadline, Runnable written)
+    {
+        if (!stop && !stopAccepting)
         {
-            try
+            robot_outer_arg.commandQueued(command);
+            journalQueued(command);
+            add(command, systemCommand, priority, deadline, written);
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Enqueue several commands to be written together (in a single write if
+     * they fit in MAX_WRITE_SIZE). The commands are queued in order in the
+     * highest priority class of any of the commands
+     *
+     * @param commands The commands to send
+     * @param systemCommand True if the commands are system commands, false
+     *            otherwise
+     */
+    public void enqueue(Collection<? extends CommandMessage> commands, boolean systemCommand)
+    {
+        if (!stop && !stopAccepting)
+        {
+            CommandPriority priority = CommandPriority.BULK;
+            for (CommandMessage command : commands)
             {
-                if (!stop && !stopAccepting)
-                    sendingQueue.put(new Pair<>(command, systemCommand));
+                CommandPriority p = priorityOf(command);
+                if (p.compareTo(priority) < 0)
+                    priority = p;
             }
-            catch(InterruptedException e)
+
+            for (CommandMessage command : commands)
             {
-                System.err.println("InterruptedException from: " + Thread.currentThread() + ": " + e);
+                robot_outer_arg.commandQueued(command);
+                journalQueued(command);
+                add(command, systemCommand, priority, 0, null);
             }
+            scheduleWrite();
         }
     }
 
@@ -132,49 +304,83 @@ class RobotSendingQueue extends Timer
      * @param initialDelay The initial delay for sending
      * @param periodLength The period length between transmissions
      */
-    public void enqueue(CommandMessage command, boolean systemCommand, float initialDelay, float periodLength)
+    public void enqueue(final CommandMessage command, final boolean systemCommand, float initialDelay, float periodLength)
     {
         if (!stop && !stopAccepting)
-            schedule(new CommandTask(new Pair<>(command, systemCommand)), (long) initialDelay, (long) periodLength);
+            track(executor.schedule(() -> enqueue(command, systemCommand), (long) initialDelay, (long) periodLength));
     }
 
     /**
-     * Enqueue an already existing command task to run at a certain initial
-     * delay and
-     * a certain period length
+     * Enqueue a single command to be sent after a specific delay
      *
-     * @param task The task to run after the timer runs
-     * @param delay The delay before running the task in milliseconds
+     * @param command The command to send
+     * @param delay The delay to send after (in ms)
+     * @param systemCommand True if the command is a system command, false
+     *            otherwise
      */
-    private void enqueue(CommandTask task, float delay)
+    public void enqueue(final CommandMessage command, float delay, final boolean systemCommand)
     {
         if (!stop && !stopAccepting)
-            schedule(task, (long) delay);
+            track(executor.schedule(() -> enqueue(command, systemCommand), (long) delay));
     }
 
     /**
-     * Enqueue a single command to be sent after a specific delay
+     * Add a command to the lane of its priority class
      *
-     * @param command The command to send
-     * @param delay The delay to send after (in ms)
-     * @param systemCommand True if the command is a system command, false
-     *            otherwise
+     * @param command The command
+     * @param systemCommand True if the command is a system command
+     * @param priority The priority class
+     * @param deadline The time the command may wait (ms), 0 for the
+     *            deadline of the priority class
+     * @param written Called when the command has been written or null
      */
-    public void enqueue(CommandMessage command, float delay, boolean systemCommand)
+    private void add(CommandMessage command, boolean systemCommand, CommandPriority priority, long deadline, Runnable written)
     {
-        if (!stop && !stopAccepting)
-            schedule(new CommandTask(new Pair<>(command, systemCommand)), (long) delay);
+        // System commands (handshake, pings, macro data) never expire
+        Lane lane = lanes[priority.ordinal()];
+        long wait = deadline > 0 ? TimeUnit.MILLISECONDS.toNanos(deadline) : lane.deadline;
+        long expires = wait > 0 && priority != CommandPriority.SAFETY && !systemCommand ? System.nanoTime() + wait : Long.MAX_VALUE;
+        lane.commands.add(new Queued(command, systemCommand, priority, queued.getAndIncrement(), expires, written));
+    }
+
+    /**
+     * Hand the write task to the writer unless it is already waiting there,
+     * a waiting write also writes the commands that were queued after it
+     * was handed over
+     */
+    private void scheduleWrite()
+    {
+        synchronized (writeTask)
+        {
+            if (!writePending)
+            {
+                writePending = true;
+                writer.execute(writeTask);
+            }
+        }
     }
 
     /**
-     * Stops the current timer. Will not be possible to restart it once
-     * this method is run!
+     * Remember a scheduled command so that it can be cancelled
+     *
+     * @param future The scheduled command
+     */
+    private void track(ScheduledFuture<?> future)
+    {
+        scheduled.removeIf(Future::isDone);
+        scheduled.add(future);
+    }
+
+    /**
+     * Stops all delayed and periodic commands and stops accepting new
+     * commands. Forced commands are still sent.
      */
-    @Override
     public void cancel()
     {
         stopAccepting = true;
-        super.cancel();
+        for (ScheduledFuture<?> future : scheduled)
+            future.cancel(false);
+        scheduled.clear();
     }
 
     /**
@@ -183,159 +389,222 @@ class RobotSendingQueue extends Timer
     public void stopAll()
     {
         stop = true;
-    }
-
-    public Thread getWriter() {
-        return writer;
+        cancel();
     }
 
     /**
-     * Handles the transmission of a single command
+     * Wait until all commands queued before this call have been written
      *
-     * @author Nicklas Gavelin
+     * @param timeout The maximum time to wait (ms)
+     *
+     * @return True if the commands have been written, false on timeout
      */
-    private class CommandTask extends TimerTask
+    public boolean awaitWritten(long timeout)
     {
-        // Storage of the command to send
-        private Pair<CommandMessage, Boolean> execute;
-        private int repeat;
-        private float delay;
-        private boolean repeating;
-
-        /**
-         * Create a command task to send a command
-         *
-         * @param execute The command together with a boolean value
-         *            describing if it's a system message or not
-         */
-        private CommandTask(Pair<CommandMessage, Boolean> execute)
+        CountDownLatch written = new CountDownLatch(1);
+        writer.execute(written::countDown);
+        try
         {
-            this.execute = execute;
+            return written.await(timeout, TimeUnit.MILLISECONDS);
         }
-
-        /**
-         * Create a command task with a repeated number of runs
-         *
-         * @param execute The command to execute
-         * @param delay The delay between the commands
-         * @param repeat The number of repeats to perform (-1 for infinite
-         *            repeats)
-         */
-        private CommandTask(Pair<CommandMessage, Boolean> execute, float delay, int repeat)
+        catch (InterruptedException e)
         {
-            this(execute);
-            this.repeat = repeat;
-            this.delay = delay;
-
-            if (repeat != -1) // Infinite command, will be sent until the end of
-                // time!
-                repeating = true;
+            Thread.currentThread().interrupt();
+            return false;
         }
+    }
 
-        @Override
-        public void run()
+    /**
+     * Record a queued command in the journal of the robot
+     *
+     * @param command The queued command
+     */
+    private void journalQueued(CommandMessage command)
+    {
+        RobotJournal journal = robot_outer_arg.getJournal();
+        if (journal != null)
+            journal.commandQueued(robot_outer_arg, command);
+    }
+
+    /**
+     * Returns true if no command is waiting to be written
+     */
+    private boolean isEmpty()
+    {
+        for (Lane lane : lanes)
+            if (!lane.commands.isEmpty())
+                return false;
+        return true;
+    }
+
+    /**
+     * Write all queued commands to the robot. Always runs on the writer of
+     * the robot so that commands are written (and registered for responses)
+     * in order. Commands are combined into writes of at most
+     * MAX_WRITE_SIZE bytes and encoded directly into the sending buffer,
+     * every write is filled with the commands of the highest priority class
+     * first.
+     */
+    private void write()
+    {
+        // Commands queued from now on need another write
+        synchronized (writeTask)
         {
-            // Enqueue the command directly to the writer
-            enqueue(execute.getFirst(), execute.getSecond());
+            writePending = false;
+        }
 
-            // Check if we want to repeat the command
-            if (repeating)
+        RobotJournal journal = robot_outer_arg.getJournal();
+        while (!stop && !isEmpty())
+        {
+            try
             {
-                if (repeat == -1 || --repeat > 0)
-                    enqueue(this, delay);
+                // Add as many messages as we can to the sending buffer
+                // A lower class may not take the place of a command of a
+                // higher class that did not fit, stop at the first full lane
+                long now = System.nanoTime();
+                for (Lane lane : lanes)
+                    if (fill(lane, now, journal))
+                        break;
+
+                // Everything that was queued had expired
+                if (sendingBuffer.position() == 0)
+                    continue;
+
+                // Write to socket
+                Logging.debug("Sending " + sendingBuffer.position() + " bytes");
+                btc.write(sendingBuffer.array(), 0, sendingBuffer.position());
+                btc.flush();
+
+                for (Runnable callback : written)
+                {
+                    try
+                    {
+                        callback.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        Logging.error("Written callback failed", e);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // Close unexpectedly
+                if (robot_outer_arg.isConnected())
+                    Logging.fatal("Writing thread closed down unexpectedly", e);
+                robot_outer_arg.connectionClosedUnexpected();
+                return;
+            }
+            finally
+            {
+                written.clear();
+                sendingBuffer.clear();
+                if (sendingBuffer.capacity() != MAX_WRITE_SIZE)
+                    sendingBuffer = ByteBuffer.allocate(MAX_WRITE_SIZE);
             }
         }
     }
 
     /**
-     * Handles all transmissions to the Sphero device.
+     * Add the commands of a lane to the sending buffer until the buffer is
+     * full, expired commands are dropped
      *
-     * @author Nicklas Gavelin
+     * @param lane The lane to take commands from
+     * @param now The current time (System.nanoTime)
+     * @param journal The journal of the robot or null
+     *
+     * @return True if the buffer is full (the next command of the lane did
+     *         not fit), false if the lane is empty
      */
-    private class Writer extends Thread
+    private boolean fill(Lane lane, long now, RobotJournal journal)
     {
-        @Override
-        public void run()
+        Queued q;
+        while ((q = lane.commands.peek()) != null)
         {
-            ByteArrayBuffer sendingBuffer = new ByteArrayBuffer(256);
+            if (q.expires != Long.MAX_VALUE && q.expires - now <= 0)
+            {
+                lane.commands.remove();
+                drop(q, "expired");
+                continue;
+            }
 
-            // Run until we manually motorStop the thread or
-            // a connection error occurs.
-            while(!stop)
+            CommandMessage command = q.getFirst();
+            int start = sendingBuffer.position();
+            try
             {
-                try
-                {
-                    // Fetch a message from the sending queue and append the data of that packet to our
-                    // sending buffer. We will then try to add more data to our sending buffer.
-                    Pair<CommandMessage, Boolean> p = sendingQueue.take(); // FIXME #4
+                int length = command.getPacketLength();
+                if (start > 0 && start + length > MAX_WRITE_SIZE)
+                    return true;
 
-                    // Append message to sending buffer
-                    sendingBuffer.append(p.getFirst().getPacket(), 0, p.getFirst().getPacketLength());
+                // Packets larger than the buffer are written on their own
+                if (length > sendingBuffer.capacity())
+                    sendingBuffer = ByteBuffer.allocate(length);
 
-                    // Add command to listening queue
-                    robot_outer_arg.getListeningThread().enqueue(p);
-                    // sent.add(p);
+                command.writeTo(sendingBuffer);
+            }
+            catch (RuntimeException e)
+            {
+                // A command that can not be encoded would block the lane for
+                // every following write, drop it and keep on writing
+                sendingBuffer.position(start);
+                lane.commands.remove();
+                Logging.error("Failed to encode " + command, e);
+                drop(q, "failed to encode");
+                continue;
+            }
 
-                    Logging.debug("Queueing " + p.getFirst());
+            // Commands queued before a safety command would undo it
+            if (q.priority == CommandPriority.SAFETY)
+                dropSupersededBy(q);
 
-                    // Lock until we have sent our messages in-case someone
-                    // else tries to do access our sendingQueue at the same time (enqueue)
-                    synchronized(sendingQueue)
-                    {
-                        try
-                        {
-                            // We will try to send as much as we can
-                            if (!sendingQueue.isEmpty())
-                            {
-                                // Go through all the messages that we can
-                                for(int i = 0; i < sendingQueue.size(); i++)
-                                {
-                                    Pair<CommandMessage, Boolean> c = sendingQueue.peek();
-
-                                    // Peek at the the rest of the messages
-                                    int length = c.getFirst().getPacketLength();
-
-                                    // Check that we have enough space to add the next
-                                    // message to, if not
-                                    // send what we got and continue later on
-                                    if (sendingBuffer.length() - length < 0)
-                                        break;
-
-                                    // Enqueue the next command
-                                    sendingBuffer.append(c.getFirst().getPacket(), 0, c.getFirst().getPacketLength());
-                                    robot_outer_arg.getListeningThread().enqueue(c);
-                                    // sent.add(c);
-                                    sendingQueue.remove();
-
-                                    Logging.debug("Queueing " + c.getFirst());
-                                }
-                            }
-
-                            // Write to socket
-                            Logging.debug("Sending " + sendingBuffer);
-                            btc.write(sendingBuffer.toByteArray());
-                            btc.flush();
-
-                            // update(sent);
-                        }
-                        catch(IOException e)
-                        {
-                            // Close unexpectedly
-                            if (robot_outer_arg.isConnected())
-                                Logging.fatal("Writing thread closed down unexpectedly", e);
-                            robot_outer_arg.connectionClosedUnexpected();
-                        }
-                        finally
-                        {
-                            sendingBuffer.clear();
-                        }
-                    }
-                }
-                catch(InterruptedException e)
+            if (journal != null)
+                journal.commandWritten(robot_outer_arg, sendingBuffer.array(), start, sendingBuffer.position() - start);
+            robot_outer_arg.getListeningThread().enqueue(q);
+            if (q.written != null)
+                written.add(q.written);
+            lane.commands.remove();
+
+            Logging.debug("Queueing " + command);
+        }
+        return false;
+    }
+
+    /**
+     * Drop the commands of the lower classes that were queued before a
+     * safety command and would undo it
+     *
+     * @param safety The safety command that is written
+     */
+    private void dropSupersededBy(Queued safety)
+    {
+        for (int i = CommandPriority.CONTROL.ordinal(); i < lanes.length; i++)
+        {
+            for (Iterator<Queued> it = lanes[i].commands.iterator(); it.hasNext();)
+            {
+                Queued q = it.next();
+                if (q.order > safety.order)
+                    break;
+
+                if (CommandPriority.supersedes(safety.getFirst(), q.getFirst()))
                 {
-                    System.err.println("interruptedException: "+ Thread.currentThread());
-                } // Nothing important, just continue on
+                    it.remove();
+                    drop(q, "superseded by " + safety.getFirst());
+                }
             }
         }
     }
+
+    /**
+     * Drop a queued command without writing it, the robot handles it as if
+     * the robot rejected it (see Robot.commandDropped)
+     *
+     * @param q The dropped command
+     * @param reason The reason for the log
+     */
+    private void drop(Queued q, String reason)
+    {
+        CommandMessage command = q.getFirst();
+        Logging.debug("Dropping " + command + ", " + reason);
+        robot_outer_arg.commandDropped(command);
+    }
 }
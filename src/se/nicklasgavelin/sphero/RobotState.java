@@ -0,0 +1,73 @@
+package se.nicklasgavelin.sphero;
+
+/**
+ * A consistent snapshot of the movement, raw movement and LED values of a
+ * robot. The robot publishes a new snapshot through a single reference every
+ * time a command changes one of the values, so a snapshot never mixes values
+ * from before and after a command and can be read from any thread without
+ * locking.
+ */
+public final class RobotState
+{
+    private final RobotMovement movement;
+    private final RobotRawMovement rawMovement;
+    private final RobotLED led;
+
+    RobotState(RobotMovement movement, RobotRawMovement rawMovement, RobotLED led)
+    {
+        this.movement = movement;
+        this.rawMovement = rawMovement;
+        this.led = led;
+    }
+
+    /**
+     * Returns the movement values
+     *
+     * @return The robot movement
+     */
+    public RobotMovement getMovement()
+    {
+        return movement;
+    }
+
+    /**
+     * Returns the raw motor values
+     *
+     * @return The raw movement
+     */
+    public RobotRawMovement getRawMovement()
+    {
+        return rawMovement;
+    }
+
+    /**
+     * Returns the LED values
+     *
+     * @return The robot led
+     */
+    public RobotLED getLed()
+    {
+        return led;
+    }
+
+    RobotState with(RobotMovement movement)
+    {
+        return new RobotState(movement, rawMovement, led);
+    }
+
+    RobotState with(RobotRawMovement rawMovement)
+    {
+        return new RobotState(movement, rawMovement, led);
+    }
+
+    RobotState with(RobotLED led)
+    {
+        return new RobotState(movement, rawMovement, led);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RobotState{" + movement + ", " + rawMovement + ", " + led + "}";
+    }
+}
@@ -0,0 +1,18 @@
+package se.nicklasgavelin.sphero;
+
+/**
+ * Interface for listening on changes of the robot state.
+ * You need to perform Robot.addStateListener to listen for changes
+ */
+public interface RobotStateListener
+{
+	/**
+	 * Called when a command changes the state of the robot. Called in order
+	 * from the listener thread of the robot.
+	 * 
+	 * @param r The robot that changed
+	 * @param previous The state before the change
+	 * @param current The state after the change
+	 */
+    void stateChanged(Robot r, RobotState previous, RobotState current);
+}
@@ -4,27 +4,25 @@
  */
 package se.nicklasgavelin.sphero.command;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
  * @author Nicklas Gavelin, nicklas.gavelin@gmail.com, Luleå University of
  * Technology
  */
-public class CommandMessage
+public class CommandMessage implements Cloneable
 {
     /* Static values */
-    private static int nSeq;
+    private static final AtomicInteger nSeq = new AtomicInteger();
 
     /* Static indicies */
     private static final byte COMMAND_PREFIX = -1;
     private static final int CHECKSUM_LENGTH = 1,
-            INDEX_START_1 = 0,
-            INDEX_START_2 = 1,
             INDEX_DEVICE_ID = 2,
-            INDEX_COMMAND = 3,
-            INDEX_COMMAND_SEQUENCE_NO = 4,
-            INDEX_COMMAND_DATA_LENGTH = 5, COMMAND_HEADER_LENGTH = 6;
+            COMMAND_HEADER_LENGTH = 6;
 
     /* Internal storage */
     private Date timestamp;
@@ -46,11 +44,11 @@ public class CommandMessage
      *
      * @return The internal sequence number
      */
-    public int getSequenceNumber()
+    public synchronized int getSequenceNumber()
     {
         if ( !this.seqSet)
         {
-            this.seqNum = nSeq++;
+            this.seqNum = nSeq.getAndIncrement();
             this.seqSet = true;
         }
 
@@ -58,6 +56,29 @@ public class CommandMessage
     }
 
 
+    /**
+     * Returns a copy of the command with its own packet and sequence
+     * number, used to send the same command to several robots. The values
+     * of the command are copied, arrays are shared.
+     *
+     * @return The copy
+     */
+    public synchronized CommandMessage copy()
+    {
+        try
+        {
+            CommandMessage copy = ( CommandMessage ) super.clone();
+            copy.packet = null;
+            copy.seqSet = false;
+            return copy;
+        }
+        catch ( CloneNotSupportedException e )
+        {
+            throw new AssertionError( e );
+        }
+    }
+
+
     /**
      * Returns the command type
      *
@@ -75,13 +96,90 @@ public class CommandMessage
      *
      * @return The packet data
      */
-    public byte[] getPacket()
+    public synchronized byte[] getPacket()
     {
         if (this.packet == null )
             this.packet = packetize();
         return this.packet;
     }
 
+
+    /**
+     * Write the complete packet (header, data and checksum) to the buffer
+     * without creating the packet array. Commands that only implement
+     * getPacketData and commands whose packet has already been created by
+     * getPacket copy the cached packet instead.
+     * WILL SET THE SEQUENCE NUMBER DURING THE FIRST CALL!
+     *
+     * @param buffer The buffer to write to, needs at least getPacketLength
+     *               bytes remaining
+     *
+     * @return The number of bytes written
+     *
+     * @throws java.nio.BufferOverflowException If the packet doesn't fit
+     */
+    public synchronized int writeTo( ByteBuffer buffer )
+    {
+        byte[] p = this.packet;
+        if ( p == null && getPacketDataLength() < 0 )
+            p = getPacket();
+
+        if ( p != null )
+        {
+            buffer.put( p );
+            return p.length;
+        }
+
+        return write( buffer, getPacketDataLength(), null );
+    }
+
+
+    /**
+     * Write the packet to the buffer
+     *
+     * @param buffer The buffer to write to
+     * @param data_length The length of the packet data
+     * @param data The packet data or null to write it with writePacketData
+     *
+     * @return The number of bytes written
+     */
+    private int write( ByteBuffer buffer, int data_length, byte[] data )
+    {
+        int start = buffer.position();
+
+        buffer.put( COMMAND_PREFIX );
+        buffer.put( COMMAND_PREFIX );
+        buffer.put( this.command.getDeviceId() );
+        buffer.put( this.command.getCommandId() );
+        buffer.put( ( byte ) this.getSequenceNumber() );
+        buffer.put( getCommandLength( data_length ) );
+        if ( data != null )
+            buffer.put( data );
+        else
+            writePacketData( buffer );
+
+        // Checksum of everything but the prefix
+        byte checksum = 0;
+        for ( int i = start + INDEX_DEVICE_ID; i < buffer.position(); i++ )
+            checksum = ( byte ) (checksum + buffer.get( i ));
+        buffer.put( ( byte ) ~checksum );
+
+        return buffer.position() - start;
+    }
+
+
+    /**
+     * Must be called by commands that change their values after creation so
+     * that the next write uses the new values. The next write also takes a
+     * new sequence number, so that the response to every send of a reused
+     * command can be told apart.
+     */
+    protected synchronized void invalidatePacket()
+    {
+        this.packet = null;
+        this.seqSet = false;
+    }
+
     /**
      * Returns the length of the command
      *
@@ -106,15 +204,45 @@ public class CommandMessage
     }
 
 
+    /**
+     * Returns the length of the packet data. Commands that override
+     * writePacketData must override this method as well, the default
+     * implementation returns -1 and the packet is created once from
+     * getPacketData and cached.
+     *
+     * @return The length of the packet data or -1 if writePacketData is not
+     *         implemented
+     */
+    protected int getPacketDataLength()
+    {
+        return -1;
+    }
+
+
+    /**
+     * Write the packet data to the buffer without creating the data array,
+     * commands that are sent often override this method (and
+     * getPacketDataLength) to write their values directly
+     *
+     * @param buffer The buffer to write to
+     */
+    protected void writePacketData( ByteBuffer buffer )
+    {
+    }
+
+
     /**
      * Returns the complete packet length including header, checksum and data
      * length
      *
      * @return The packet length
      */
-    public int getPacketLength()
+    public synchronized int getPacketLength()
     {
-        return this.getPacket().length;
+        int data_length = this.packet == null ? getPacketDataLength() : -1;
+        if ( data_length < 0 )
+            return getPacket().length;
+        return data_length + COMMAND_HEADER_LENGTH + CHECKSUM_LENGTH;
     }
 
 
@@ -125,47 +253,17 @@ public class CommandMessage
      */
     protected byte[] packetize()
     {
-        byte[] data = getPacketData();
-
-        int data_length = data != null ? data.length : 0;
-        int packet_length = data_length + COMMAND_HEADER_LENGTH + CHECKSUM_LENGTH;
-
-        byte[] buffer = new byte[ packet_length ];
-        byte checksum = 0;
-
-        buffer[INDEX_START_1] = COMMAND_PREFIX;
-        buffer[INDEX_START_2] = COMMAND_PREFIX;
-
-        byte device_id = this.command.getDeviceId();
-        checksum = ( byte ) (checksum + device_id);
-        buffer[INDEX_DEVICE_ID] = device_id;
-
-        byte cmd = this.command.getCommandId();
-        checksum = ( byte ) (checksum + cmd);
-        buffer[INDEX_COMMAND] = cmd;
-
-        int sequenceNumber = this.getSequenceNumber();
-        checksum = ( byte ) (checksum + sequenceNumber);
-        buffer[INDEX_COMMAND_SEQUENCE_NO] = ( byte ) sequenceNumber;
-
-        byte response_length = getCommandLength( data_length );
-        checksum = ( byte ) (checksum + response_length);
-        buffer[INDEX_COMMAND_DATA_LENGTH] = response_length;
-
-        // Check if we need to calculate the checksum for the data we have added
-        if ( data != null )
+        int data_length = getPacketDataLength();
+        byte[] data = null;
+        if ( data_length < 0 )
         {
-            // Calculate the checksum for the data (also add the data to the array)
-            for ( int i = 0; i < data_length; i++ )
-            {
-                buffer[i + COMMAND_HEADER_LENGTH] = data[i];
-                checksum = ( byte ) (checksum + data[i]);
-            }
+            data = getPacketData();
+            data_length = data != null ? data.length : 0;
         }
 
-        buffer[packet_length - CHECKSUM_LENGTH] = (byte)~checksum;
-
-        return buffer;
+        ByteBuffer buffer = ByteBuffer.allocate( data_length + COMMAND_HEADER_LENGTH + CHECKSUM_LENGTH );
+        write( buffer, data_length, data );
+        return buffer.array();
     }
 
 
@@ -296,6 +394,25 @@ public class CommandMessage
                     return dc;
             return null;
         }
+
+
+        /**
+         * Returns the first device command with the given command and device
+         * id. Commands that share their ids with another command (SPIN_LEFT,
+         * SPIN_RIGHT, CUSTOM_PING) are never returned.
+         *
+         * @param commandId The command id
+         * @param deviceId  The device id
+         *
+         * @return The device command or null if no command has the ids
+         */
+        public static CommandMessage.COMMAND_MESSAGE_TYPE valueOf( byte commandId, byte deviceId )
+        {
+            for ( CommandMessage.COMMAND_MESSAGE_TYPE dc : CommandMessage.COMMAND_MESSAGE_TYPE.values() )
+                if ( dc.getCommandId() == commandId && dc.getDeviceId() == deviceId )
+                    return dc;
+            return null;
+        }
     }
 
 
@@ -2,6 +2,8 @@ package se.nicklasgavelin.sphero.command;
 
 import se.nicklasgavelin.util.Value;
 
+import java.nio.ByteBuffer;
+
 /**
  * A command to modify the brightness of the front LED on the Sphero robot.
  * The brightness must be set to 0-1
@@ -29,7 +31,7 @@ public class FrontLEDCommand extends CommandMessage
 	 * 
 	 * @return The brightness value
 	 */
-	public float getBrightness()
+	public synchronized float getBrightness()
 	{
 		return brightness;
 	}
@@ -39,9 +41,10 @@ public class FrontLEDCommand extends CommandMessage
 	 * 
 	 * @param brightness The new brightness
 	 */
-	public void setBrightness( float brightness )
+	public synchronized void setBrightness( float brightness )
 	{
 		this.brightness = brightness;
+		this.invalidatePacket();
 	}
 
 	@Override
@@ -52,4 +55,16 @@ public class FrontLEDCommand extends CommandMessage
 
 		return data;
 	}
+
+	@Override
+	protected int getPacketDataLength()
+	{
+		return 1;
+	}
+
+	@Override
+	protected void writePacketData( ByteBuffer buffer )
+	{
+		buffer.put( (byte) (int) ( 255.0D * brightness) );
+	}
 }
@@ -3,9 +3,11 @@ package se.nicklasgavelin.sphero.command;
 import se.nicklasgavelin.util.Value;
 
 import java.awt.*;
+import java.nio.ByteBuffer;
 
 /**
  * Command to adjust the color displayed by the RGB LED on the Sphero.
+ * The color may be changed with set so that a single instance can be reused.
  * 
  * @author Nicklas Gavelin, nicklas.gavelin@gmail.com, Luleå University of
  *         Technology
@@ -26,9 +28,7 @@ public class RGBLEDCommand extends CommandMessage
 	public RGBLEDCommand( int red, int green, int blue )
 	{
 		super( COMMAND_MESSAGE_TYPE.RGB_LED_OUTPUT );
-		this.red = (byte) Value.clamp( red, 0, 255 );
-		this.green = (byte) Value.clamp( green, 0, 255 );
-		this.blue = (byte) Value.clamp( blue, 0, 255 );
+		this.set( red, green, blue );
 	}
 
 	/**
@@ -41,12 +41,32 @@ public class RGBLEDCommand extends CommandMessage
 		this( c.getRed(), c.getGreen(), c.getBlue() );
 	}
 
+	/**
+	 * Change the color of the command. Takes effect the next time the
+	 * command is written.
+	 * 
+	 * @param red The new red value
+	 * @param green The new green value
+	 * @param blue The new blue value
+	 * 
+	 * @return This command
+	 */
+	public synchronized RGBLEDCommand set( int red, int green, int blue )
+	{
+		this.red = (byte) Value.clamp( red, 0, 255 );
+		this.green = (byte) Value.clamp( green, 0, 255 );
+		this.blue = (byte) Value.clamp( blue, 0, 255 );
+		this.invalidatePacket();
+
+		return this;
+	}
+
 	/**
 	 * Returns the red value
 	 * 
 	 * @return The red value
 	 */
-	public int getRed()
+	public synchronized int getRed()
 	{
 		return red;
 	}
@@ -56,7 +76,7 @@ public class RGBLEDCommand extends CommandMessage
 	 * 
 	 * @return The green value
 	 */
-	public int getGreen()
+	public synchronized int getGreen()
 	{
 		return green;
 	}
@@ -66,7 +86,7 @@ public class RGBLEDCommand extends CommandMessage
 	 * 
 	 * @return The blue value
 	 */
-	public int getBlue()
+	public synchronized int getBlue()
 	{
 		return blue;
 	}
@@ -81,4 +101,16 @@ public class RGBLEDCommand extends CommandMessage
 
 		return data;
 	}
+
+	@Override
+	protected int getPacketDataLength()
+	{
+		return 3;
+	}
+
+	@Override
+	protected void writePacketData( ByteBuffer buffer )
+	{
+		buffer.put( red ).put( green ).put( blue );
+	}
 }
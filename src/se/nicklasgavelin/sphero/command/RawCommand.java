@@ -0,0 +1,56 @@
+package se.nicklasgavelin.sphero.command;
+
+/**
+ * Command with a given type and data, used to resend a packet that was
+ * recorded earlier (the packet data is sent as is)
+ *
+ * @author Nicklas Gavelin, nicklas.gavelin@gmail.com, Luleå University of Technology
+ */
+public class RawCommand extends CommandMessage
+{
+	private final byte[] data;
+
+
+	/**
+	 * Create a command with the given data
+	 *
+	 * @param type The command type
+	 * @param data The packet data (without header and checksum)
+	 */
+	public RawCommand( COMMAND_MESSAGE_TYPE type, byte[] data )
+	{
+		super( type );
+		this.data = data.clone();
+	}
+
+
+	/**
+	 * Create a command from a complete packet (header, data and checksum)
+	 *
+	 * @param packet The packet
+	 * @param offset The start of the packet
+	 *
+	 * @return The command or null if the packet isn't a known command
+	 */
+	public static RawCommand fromPacket( byte[] packet, int offset )
+	{
+		if ( packet.length - offset < 7 )
+			return null;
+
+		COMMAND_MESSAGE_TYPE type = COMMAND_MESSAGE_TYPE.valueOf( packet[offset + 3], packet[offset + 2] );
+		int length = ( packet[offset + 5] & 0xFF ) - 1;
+		if ( type == null || length < 0 || offset + 6 + length > packet.length )
+			return null;
+
+		byte[] data = new byte[ length ];
+		System.arraycopy( packet, offset + 6, data, 0, length );
+		return new RawCommand( type, data );
+	}
+
+
+	@Override
+	protected byte[] getPacketData()
+	{
+		return this.data;
+	}
+}
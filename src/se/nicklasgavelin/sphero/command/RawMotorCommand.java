@@ -1,8 +1,11 @@
 package se.nicklasgavelin.sphero.command;
 
+import java.nio.ByteBuffer;
+
 /**
  * Command to steer the direction and speed of the internal motors of the
- * Sphero.
+ * Sphero. The values may be changed with set so that a single instance can
+ * be reused.
  * 
  * NOTICE: Sending this command will result in some future commands to fail
  * to execute on the Sphero for some reason. Has something to do with the logic
@@ -75,11 +78,29 @@ public class RawMotorCommand extends CommandMessage
 	public RawMotorCommand( MOTOR_MODE leftMode, int leftSpeed, MOTOR_MODE rightMode, int rightSpeed )
 	{
 		super( COMMAND_MESSAGE_TYPE.RAW_MOTOR );
+		this.set( leftMode, leftSpeed, rightMode, rightSpeed );
+	}
 
+	/**
+	 * Change the values of the command. Takes effect the next time the
+	 * command is written.
+	 * 
+	 * @param leftMode The left mode
+	 * @param leftSpeed The left speed (0-255)
+	 * @param rightMode The right mode
+	 * @param rightSpeed The right speed (0-255)
+	 * 
+	 * @return This command
+	 */
+	public synchronized RawMotorCommand set( MOTOR_MODE leftMode, int leftSpeed, MOTOR_MODE rightMode, int rightSpeed )
+	{
 		this.leftMode = leftMode;
 		this.rightMode = rightMode;
 		this.leftSpeed = leftSpeed;
 		this.rightSpeed = rightSpeed;
+		this.invalidatePacket();
+
+		return this;
 	}
 
 	/**
@@ -87,7 +108,7 @@ public class RawMotorCommand extends CommandMessage
 	 * 
 	 * @return The left motor mode
 	 */
-	public MOTOR_MODE getLeftMode()
+	public synchronized MOTOR_MODE getLeftMode()
 	{
 		return leftMode;
 	}
@@ -97,7 +118,7 @@ public class RawMotorCommand extends CommandMessage
 	 * 
 	 * @return The right motor mode
 	 */
-	public MOTOR_MODE getRightMode()
+	public synchronized MOTOR_MODE getRightMode()
 	{
 		return rightMode;
 	}
@@ -107,7 +128,7 @@ public class RawMotorCommand extends CommandMessage
 	 * 
 	 * @return The left motor speed
 	 */
-	public int getLeftSpeed()
+	public synchronized int getLeftSpeed()
 	{
 		return leftSpeed;
 	}
@@ -117,7 +138,7 @@ public class RawMotorCommand extends CommandMessage
 	 * 
 	 * @return The right motor speed
 	 */
-	public int getRightSpeed()
+	public synchronized int getRightSpeed()
 	{
 		return rightSpeed;
 	}
@@ -134,4 +155,19 @@ public class RawMotorCommand extends CommandMessage
 
 		return data;
 	}
+
+	@Override
+	protected int getPacketDataLength()
+	{
+		return 4;
+	}
+
+	@Override
+	protected void writePacketData( ByteBuffer buffer )
+	{
+		buffer.put( (byte) leftMode.getValue() );
+		buffer.put( (byte) leftSpeed );
+		buffer.put( (byte) rightMode.getValue() );
+		buffer.put( (byte) rightSpeed );
+	}
 }
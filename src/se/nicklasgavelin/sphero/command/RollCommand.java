@@ -3,15 +3,19 @@ package se.nicklasgavelin.sphero.command;
 import se.nicklasgavelin.sphero.command.CommandMessage.COMMAND_MESSAGE_TYPE;
 import se.nicklasgavelin.util.Value;
 
+import java.nio.ByteBuffer;
+
 /**
  * Command to roll the robot in a given heading with a given speed.
+ * The values may be changed with set so that a single instance can be sent
+ * over and over (by a control loop) without creating new commands.
  * 
  * @author Nicklas Gavelin, nicklas.gavelin@gmail.com, Luleå University of Technology
  */
 public class RollCommand extends CommandMessage
 {
-	private final float heading, velocity;
-	private final boolean stop;
+	private float heading, velocity;
+	private boolean stop;
 
 	/**
 	 * Create a roll command with a given heading, velocity and stop flag
@@ -23,10 +27,27 @@ public class RollCommand extends CommandMessage
 	public RollCommand( float heading, float velocity, boolean stop )
 	{
 		super( COMMAND_MESSAGE_TYPE.ROLL );
+		this.set( heading, velocity, stop );
+	}
 
+	/**
+	 * Change the values of the command. Takes effect the next time the
+	 * command is written.
+	 * 
+	 * @param heading The new heading
+	 * @param velocity The new velocity (0-1)
+	 * @param stop The new stop flag (false = don't stop, true = stop)
+	 * 
+	 * @return This command
+	 */
+	public synchronized RollCommand set( float heading, float velocity, boolean stop )
+	{
 		this.heading = (int) heading % 360;
 		this.velocity = (float) Value.clamp( velocity, 0.0D, 1.0D );
 		this.stop = stop;
+		this.invalidatePacket();
+
+		return this;
 	}
 
 	/**
@@ -34,7 +55,7 @@ public class RollCommand extends CommandMessage
 	 * 
 	 * @return The set heading
 	 */
-	public float getHeading()
+	public synchronized float getHeading()
 	{
 		return this.heading;
 	}
@@ -44,7 +65,7 @@ public class RollCommand extends CommandMessage
 	 * 
 	 * @return The set velocity
 	 */
-	public float getVelocity()
+	public synchronized float getVelocity()
 	{
 		return this.velocity;
 	}
@@ -54,7 +75,7 @@ public class RollCommand extends CommandMessage
 	 * 
 	 * @return True if set to stop the Sphero, false otherwise
 	 */
-	public boolean getStopped()
+	public synchronized boolean getStopped()
 	{
 		return this.stop;
 	}
@@ -71,4 +92,19 @@ public class RollCommand extends CommandMessage
 
 		return data;
 	}
+
+	@Override
+	protected int getPacketDataLength()
+	{
+		return 4;
+	}
+
+	@Override
+	protected void writePacketData( ByteBuffer buffer )
+	{
+		buffer.put( (byte) (int) (this.velocity * 255.0D ) );
+		buffer.put( (byte) ( (int) this.heading >> 8 ) );
+		buffer.put( (byte) (int) this.heading );
+		buffer.put( (byte) (this.stop ? 0 : 1 ) );
+	}
 }
@@ -54,6 +54,26 @@ public class SaveMacroCommand extends CommandMessage
 		this( (byte) flags, (byte) destination, macro );
 	}
 
+	/**
+	 * Returns the macro id the macro is saved to
+	 * 
+	 * @return The macro destination id
+	 */
+	public int getDestination()
+	{
+		return this.destination & 0xFF;
+	}
+
+	/**
+	 * Returns the macro that is saved
+	 * 
+	 * @return The macro as a byte array
+	 */
+	public byte[] getMacroData()
+	{
+		return this.macroData;
+	}
+
 	@Override
 	protected byte[] getPacketData()
 	{
@@ -0,0 +1,522 @@
+package se.nicklasgavelin.sphero.emulator;
+
+import se.nicklasgavelin.bluetooth.LocalBluetoothDevice;
+import se.nicklasgavelin.log.Logging;
+import se.nicklasgavelin.sphero.command.CommandMessage.COMMAND_MESSAGE_TYPE;
+import se.nicklasgavelin.sphero.command.SaveMacroCommand;
+import se.nicklasgavelin.sphero.macro.MacroCommand.MACRO_COMMAND;
+import se.nicklasgavelin.sphero.response.InformationResponseMessage.INFORMATION_RESPONSE_CODE;
+import se.nicklasgavelin.sphero.response.ResponseMessage.RESPONSE_CODE;
+import se.nicklasgavelin.sphero.response.ResponseMessage.ResponseHeader.RESPONSE_TYPE;
+import se.nicklasgavelin.util.ByteArrayBuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emulates the protocol side of a Sphero so that robots can be run without
+ * hardware. Connect a Robot to getDevice() to use it.
+ *
+ * Every command is answered (after the response delay) with CODE_OK,
+ * except for commands that return data (versioning, diagnostics, etc.)
+ * which are answered with CODE_ERROR_UNSUPPORTED. Data streaming sends
+ * synthetic sensor frames at the rate that was set up (400 Hz / divisor)
+ * and streamed macro pieces are "played" by sending their emit markers when
+ * the delays of the piece have passed.
+ *
+ * Commands are handled on the thread that writes them, streaming, emits and
+ * delayed responses are sent from a scheduler that is shared by all virtual
+ * robots.
+ */
+public class VirtualRobot implements LocalBluetoothDevice.Peer
+{
+    // Sensor sample rate of the robot (Hz)
+    private static final int SAMPLE_RATE = 400;
+    // Largest payload of a packet (the length includes the checksum)
+    private static final int MAX_PAYLOAD_LENGTH = 126;
+    private static final byte START_1 = (byte) 0xFF, START_2 = (byte) 0xFF, START_2_NO_ANSWER = (byte) 0xFE;
+    private static final int COMMAND_HEADER_LENGTH = 6;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2), r -> {
+                Thread t = new Thread(r, "VirtualRobot-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final LocalBluetoothDevice device;
+    private volatile long responseDelay;
+    private final AtomicLong commands, badPackets, sensorPackets, emits;
+    private Session session;
+
+    /**
+     * Create a virtual robot
+     *
+     * @param address The address of the robot
+     */
+    public VirtualRobot(String address)
+    {
+        this.device = new LocalBluetoothDevice(address, this);
+        this.commands = new AtomicLong();
+        this.badPackets = new AtomicLong();
+        this.sensorPackets = new AtomicLong();
+        this.emits = new AtomicLong();
+    }
+
+    /**
+     * Returns the device to connect a Robot to
+     *
+     * @return The device
+     */
+    public LocalBluetoothDevice getDevice()
+    {
+        return device;
+    }
+
+    /**
+     * Set the time between receiving a command and sending its response
+     * (emulates the latency of the link and the robot)
+     *
+     * @param delay The response delay
+     * @param unit The unit of the delay
+     */
+    public void setResponseDelay(long delay, TimeUnit unit)
+    {
+        this.responseDelay = unit.toNanos(delay);
+    }
+
+    /**
+     * Returns the number of commands received
+     *
+     * @return The number of commands
+     */
+    public long getCommandsReceived()
+    {
+        return commands.get();
+    }
+
+    /**
+     * Returns the number of packets that were dropped due to a bad checksum
+     *
+     * @return The number of bad packets
+     */
+    public long getBadPackets()
+    {
+        return badPackets.get();
+    }
+
+    /**
+     * Returns the number of sensor data packets sent
+     *
+     * @return The number of sensor packets
+     */
+    public long getSensorPackets()
+    {
+        return sensorPackets.get();
+    }
+
+    /**
+     * Returns the number of macro emit markers sent
+     *
+     * @return The number of emits
+     */
+    public long getEmits()
+    {
+        return emits.get();
+    }
+
+    @Override
+    public synchronized OutputStream connect(OutputStream toHost)
+    {
+        // A new connection replaces the old one, like on the real robot
+        if (session != null)
+            session.close();
+        session = new Session(toHost);
+        return session.fromHost;
+    }
+
+    /**
+     * A single connection to the robot
+     */
+    private final class Session
+    {
+        private final OutputStream toHost;
+        private final ByteArrayBuffer received;
+        private volatile boolean closed;
+
+        // Guarded by this
+        private ScheduledFuture<?> streaming;
+        private Streamer streamer;
+        private long macroEnd;
+        private int macroGeneration, systemDelay1, systemDelay2;
+
+        private final OutputStream fromHost = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                if (closed)
+                    throw new IOException("Connection closed");
+                received(b, off, len);
+            }
+
+            @Override
+            public void close()
+            {
+                Session.this.close();
+            }
+        };
+
+        Session(OutputStream toHost)
+        {
+            this.toHost = toHost;
+            this.received = new ByteArrayBuffer(256, true);
+        }
+
+        /**
+         * Handle all complete command packets that have been received
+         */
+        private synchronized void received(byte[] b, int off, int len)
+        {
+            received.append(b, off, len);
+
+            while (received.remaining() >= COMMAND_HEADER_LENGTH + 1)
+            {
+                int p = received.readPosition();
+                if (received.byteAt(p) != START_1 || (received.byteAt(p + 1) != START_2 && received.byteAt(p + 1) != START_2_NO_ANSWER))
+                {
+                    // Out of sync, look for the next start of a packet
+                    received.skip(1);
+                    badPackets.incrementAndGet();
+                    continue;
+                }
+
+                int length = received.byteAt(p + 5) & 0xFF;
+                if (received.remaining() < COMMAND_HEADER_LENGTH + length)
+                    break;
+
+                byte checksum = 0;
+                for (int i = p + 2; i < p + COMMAND_HEADER_LENGTH + length - 1; i++)
+                    checksum += received.byteAt(i);
+
+                byte sequence = received.byteAt(p + 4);
+                if ((byte) ~checksum != received.byteAt(p + COMMAND_HEADER_LENGTH + length - 1))
+                {
+                    badPackets.incrementAndGet();
+                    respond(RESPONSE_CODE.CODE_ERROR_CHECKSUM, sequence);
+                }
+                else
+                {
+                    commands.incrementAndGet();
+                    RESPONSE_CODE code = handle(received.byteAt(p + 2), received.byteAt(p + 3), p + COMMAND_HEADER_LENGTH, length - 1);
+                    if (received.byteAt(p + 1) == START_2)
+                        respond(code, sequence);
+                }
+                received.skip(COMMAND_HEADER_LENGTH + length);
+            }
+            received.compact();
+        }
+
+        /**
+         * Execute a command
+         *
+         * @param deviceId The device id of the command
+         * @param commandId The command id of the command
+         * @param data The index of the command data in the received buffer
+         * @param length The length of the command data
+         *
+         * @return The response code
+         */
+        private RESPONSE_CODE handle(byte deviceId, byte commandId, int data, int length)
+        {
+            COMMAND_MESSAGE_TYPE type = COMMAND_MESSAGE_TYPE.valueOf(commandId, deviceId);
+            if (type == null)
+                return RESPONSE_CODE.CODE_ERROR_BAD_COMMAND;
+
+            switch (type)
+            {
+                case SET_DATA_STREAMING:
+                    if (length < 9)
+                        return RESPONSE_CODE.CODE_ERROR_PARAMETER;
+                    startStreaming(readShort(data), readShort(data + 2),
+                                   readShort(data + 4) << 16 | readShort(data + 6), received.byteAt(data + 8) & 0xFF);
+                    return RESPONSE_CODE.CODE_OK;
+
+                case SAVE_MACRO:
+                    if (length >= 2 && received.byteAt(data) == SaveMacroCommand.MACRO_STREAMING_DESTINATION)
+                        playMacro(data + 2, length - 2);
+                    return RESPONSE_CODE.CODE_OK;
+
+                case ABORT_MACRO:
+                    macroGeneration++;
+                    macroEnd = 0;
+                    return RESPONSE_CODE.CODE_OK;
+
+                // Commands that answer with data are not emulated
+                case VERSIONING:
+                case GET_BLUETOOTH_INFO:
+                case LEVEL_1_DIAGNOSTICS:
+                case GET_CONFIGURATION_BLOCK:
+                case JUMP_TO_BOOTLOADER:
+                case JUMP_TO_MAIN:
+                case GO_TO_SLEEP:
+                    return RESPONSE_CODE.CODE_ERROR_UNSUPPORTED;
+
+                default:
+                    return RESPONSE_CODE.CODE_OK;
+            }
+        }
+
+        private int readShort(int index)
+        {
+            return (received.byteAt(index) & 0xFF) << 8 | received.byteAt(index + 1) & 0xFF;
+        }
+
+        /**
+         * Start (or stop) sending sensor data
+         */
+        private void startStreaming(int divisor, int frames, int mask, int count)
+        {
+            if (streaming != null)
+                streaming.cancel(false);
+            streaming = null;
+
+            int frameLength = 2 * Integer.bitCount(mask);
+            if (mask == 0 || divisor == 0 || frames == 0 || frameLength > MAX_PAYLOAD_LENGTH - 1)
+                return;
+
+            // Packets that don't fit are sent with fewer frames
+            int sent = Math.min(frames, (MAX_PAYLOAD_LENGTH - 1) / frameLength);
+            long period = TimeUnit.SECONDS.toNanos(1) * divisor * frames / SAMPLE_RATE;
+            streamer = new Streamer(sent * frameLength, count);
+            streaming = scheduler.scheduleAtFixedRate(streamer, period, period, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Stop streaming after the last packet was sent
+         */
+        private synchronized void stopStreaming(Streamer streamer)
+        {
+            if (streaming != null && this.streamer == streamer)
+            {
+                streaming.cancel(false);
+                streaming = null;
+            }
+        }
+
+        /**
+         * Play a streamed macro piece after the pieces that are already
+         * playing. Only the timing (command delays, system delays, fades
+         * and loops) and the emits of the piece are emulated.
+         */
+        private void playMacro(int start, int length)
+        {
+            long now = System.nanoTime();
+            long time = Math.max(now, macroEnd);
+            long loopStart = 0;
+            int loopCount = 0, generation = macroGeneration;
+
+            for (int i = start; i < start + length;)
+            {
+                MACRO_COMMAND command = MACRO_COMMAND.valueOf(received.byteAt(i) & 0xFF);
+                if (command == null || command.getLength() <= 0 || i + command.getLength() > start + length)
+                    break;
+
+                int delay = 0;
+                switch (command)
+                {
+                    case MAC_SD1:
+                        systemDelay1 = readShort(i + 1);
+                        break;
+                    case MAC_SD2:
+                        systemDelay2 = readShort(i + 1);
+                        break;
+                    case MAC_ROLL:
+                    case MAC_RGB:
+                    case MAC_RAW_MOTOR:
+                        // The last byte is the delay after the command
+                        delay = received.byteAt(i + command.getLength() - 1) & 0xFF;
+                        break;
+                    case MAC_ROLL_SD1:
+                    case MAC_ROLL_SPD1_SD1:
+                    case MAC_ROLL_SPD2_SD1:
+                        delay = systemDelay1;
+                        break;
+                    case MAC_RGB_SD2:
+                        delay = systemDelay2;
+                        break;
+                    case MAC_DELAY:
+                        delay = readShort(i + 1);
+                        break;
+                    case MAC_FADE:
+                        delay = readShort(i + 4);
+                        break;
+                    case MAC_LOOP_START:
+                        loopStart = time;
+                        loopCount = received.byteAt(i + 1) & 0xFF;
+                        break;
+                    case MAC_LOOP_END:
+                        // The body was played once, add the other rounds
+                        time += (time - loopStart) * Math.max(0, loopCount - 1);
+                        loopCount = 0;
+                        break;
+                    case MAC_EMIT:
+                        final byte identifier = received.byteAt(i + 1);
+                        scheduler.schedule(() -> emit(identifier, generation), time - now, TimeUnit.NANOSECONDS);
+                        break;
+                    default:
+                        break;
+                }
+                time += TimeUnit.MILLISECONDS.toNanos(delay);
+                i += command.getLength();
+            }
+            macroEnd = time;
+        }
+
+        private void emit(byte identifier, int generation)
+        {
+            synchronized (this)
+            {
+                // The macro was aborted
+                if (generation != macroGeneration)
+                    return;
+            }
+            emits.incrementAndGet();
+            send(information(INFORMATION_RESPONSE_CODE.EMIT, new byte[] { identifier }));
+        }
+
+        /**
+         * Send the response to a command
+         */
+        private void respond(RESPONSE_CODE code, byte sequence)
+        {
+            byte[] packet = { START_1, START_2, code.getCode(RESPONSE_TYPE.REGULAR), sequence, 1, 0 };
+            packet[5] = checksum(packet);
+
+            long delay = responseDelay;
+            if (delay > 0)
+                scheduler.schedule(() -> send(packet), delay, TimeUnit.NANOSECONDS);
+            else
+                send(packet);
+        }
+
+        /**
+         * Write a packet to the host
+         */
+        private void send(byte[] packet)
+        {
+            if (closed)
+                return;
+
+            try
+            {
+                synchronized (toHost)
+                {
+                    toHost.write(packet, 0, packet.length);
+                }
+            }
+            catch (IOException e)
+            {
+                if (!closed)
+                    Logging.debug("Virtual robot " + device.getAddress() + " failed to write: " + e.getMessage());
+                close();
+            }
+        }
+
+        void close()
+        {
+            closed = true;
+            synchronized (this)
+            {
+                if (streaming != null)
+                    streaming.cancel(false);
+                streaming = null;
+                macroGeneration++;
+            }
+
+            try
+            {
+                toHost.close();
+            }
+            catch (IOException e)
+            {
+                // Already closed
+            }
+        }
+
+        /**
+         * Sends sensor data packets with synthetic values
+         */
+        private final class Streamer implements Runnable
+        {
+            private final byte[] data;
+            private final int count;
+            private int sent, sample;
+
+            Streamer(int length, int count)
+            {
+                this.data = new byte[ length ];
+                this.count = count;
+            }
+
+            @Override
+            public void run()
+            {
+                for (int i = 0; i + 1 < data.length; i += 2)
+                {
+                    int value = (sample + i) % 360;
+                    data[i] = (byte) (value >> 8);
+                    data[i + 1] = (byte) value;
+                }
+                sample++;
+
+                sensorPackets.incrementAndGet();
+                send(information(INFORMATION_RESPONSE_CODE.DATA, data));
+
+                if (count > 0 && ++sent >= count)
+                    stopStreaming(this);
+            }
+        }
+    }
+
+    /**
+     * Create an information (asynchronous) packet
+     */
+    private static byte[] information(INFORMATION_RESPONSE_CODE code, byte[] data)
+    {
+        byte[] packet = new byte[ 6 + data.length ];
+        packet[0] = START_1;
+        packet[1] = START_2_NO_ANSWER;
+        packet[2] = code.getCode();
+        packet[3] = RESPONSE_CODE.CODE_OK.getCode(RESPONSE_TYPE.INFORMATION);
+        packet[4] = (byte) (data.length + 1);
+        System.arraycopy(data, 0, packet, 5, data.length);
+        packet[packet.length - 1] = checksum(packet);
+        return packet;
+    }
+
+    /**
+     * Returns the checksum of a packet (all bytes but the start bytes and
+     * the checksum itself)
+     */
+    private static byte checksum(byte[] packet)
+    {
+        byte sum = 0;
+        for (int i = 2; i < packet.length - 1; i++)
+            sum += packet[i];
+        return (byte) ~sum;
+    }
+}
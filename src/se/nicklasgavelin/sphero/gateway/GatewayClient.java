@@ -0,0 +1,149 @@
+package se.nicklasgavelin.sphero.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client connected to the gateway. Frames for the client are queued by
+ * any thread and written by the selector thread, commands from the client
+ * are limited by a token bucket.
+ */
+final class GatewayClient
+{
+    final SocketChannel channel;
+    final ByteBuffer in;
+    // Robots that the client receives sensor data for
+    final Set<Integer> subscriptions;
+
+    private final Queue<ByteBuffer> out;
+    private final AtomicInteger queuedBytes;
+    private final int maxQueuedBytes;
+
+    // Command rate limit, only used by the selector thread
+    private final double rate, burst;
+    private double tokens;
+    private long refilled;
+
+    /**
+     * Create a client
+     *
+     * @param channel The client channel
+     * @param rate The number of commands allowed per second
+     * @param burst The number of commands that may be sent at once
+     * @param maxQueuedBytes The maximum number of bytes waiting to be written
+     *            before sensor data is dropped and the client is closed
+     */
+    GatewayClient(SocketChannel channel, double rate, int burst, int maxQueuedBytes)
+    {
+        this.channel = channel;
+        this.in = ByteBuffer.allocate(GatewayProtocol.HEADER_LENGTH + GatewayProtocol.MAX_FRAME_LENGTH);
+        this.subscriptions = ConcurrentHashMap.newKeySet();
+        this.out = new ConcurrentLinkedQueue<>();
+        this.queuedBytes = new AtomicInteger();
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Take a token for a command
+     *
+     * @return True if the command may be sent, false if the client exceeds
+     *         its rate limit
+     */
+    boolean tryAcquire()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+        refilled = now;
+
+        if (tokens < 1)
+            return false;
+
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Queue a frame for the client. The frame content may be shared with
+     * other clients, only the position and limit of the buffer are owned by
+     * this client.
+     *
+     * @param frame The frame to queue
+     * @param droppable True if the frame may be dropped when the client is
+     *            too slow, a client that is too slow for a frame that may not
+     *            be dropped is closed
+     *
+     * @return True if the queue was empty before (the selector needs to be
+     *         told that the client has data to write)
+     */
+    boolean offer(ByteBuffer frame, boolean droppable)
+    {
+        if (!channel.isOpen())
+            return false;
+
+        int length = frame.remaining();
+        if (queuedBytes.get() + length > maxQueuedBytes)
+        {
+            // A client that doesn't read its replies and events would make
+            // them queue up without limit
+            if (!droppable)
+                close();
+            return false;
+        }
+
+        boolean wasEmpty = queuedBytes.getAndAdd(length) == 0;
+        out.add(frame);
+        return wasEmpty;
+    }
+
+    /**
+     * Write as much of the queued frames as the channel accepts
+     *
+     * @return True if everything was written and nothing more is queued
+     *
+     * @throws IOException If the write fails
+     */
+    boolean flush() throws IOException
+    {
+        ByteBuffer frame;
+        while ((frame = out.peek()) != null)
+        {
+            int before = frame.remaining();
+            channel.write(frame);
+            queuedBytes.addAndGet(frame.remaining() - before);
+
+            if (frame.hasRemaining())
+                return false;
+            out.poll();
+        }
+
+        // A frame may be in the middle of being queued
+        return queuedBytes.get() == 0;
+    }
+
+    /**
+     * Close the connection to the client
+     */
+    void close()
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            // Closing anyway
+        }
+        out.clear();
+        subscriptions.clear();
+    }
+}
@@ -0,0 +1,61 @@
+package se.nicklasgavelin.sphero.gateway;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame types and helpers of the gateway protocol (see RobotGateway for the
+ * frame layout)
+ */
+final class GatewayProtocol
+{
+    // Frame header: 2 bytes length (type + body), 1 byte type
+    static final int LENGTH_FIELD = 2, HEADER_LENGTH = 3;
+    static final int MAX_FRAME_LENGTH = 1024;
+
+    // Client requests
+    static final byte LIST = 0x01, SUBSCRIBE = 0x02, UNSUBSCRIBE = 0x03;
+    static final byte ROLL = 0x10, STOP = 0x11, RGB = 0x12, FRONT_LED = 0x13, CALIBRATE = 0x14;
+
+    // Gateway messages
+    static final byte ROBOTS = (byte) 0x81, SENSOR_DATA = (byte) 0x82, EVENT = (byte) 0x83, ERROR = (byte) 0x8F;
+
+    // Error codes
+    static final byte ERROR_MALFORMED = 1, ERROR_UNKNOWN_ROBOT = 2, ERROR_NOT_CONNECTED = 3, ERROR_RATE_LIMITED = 4;
+
+    private GatewayProtocol()
+    {
+    }
+
+    /**
+     * Create a frame with room for the given body, the header is already
+     * written
+     *
+     * @param type The frame type
+     * @param bodyLength The length of the body
+     *
+     * @return The frame positioned at the start of the body
+     */
+    static ByteBuffer frame(byte type, int bodyLength)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+        frame.putShort((short) (1 + bodyLength));
+        frame.put(type);
+        return frame;
+    }
+
+    /**
+     * Create an error frame
+     *
+     * @param code The error code
+     * @param requestType The type of the request that failed
+     *
+     * @return The frame ready to be written
+     */
+    static ByteBuffer error(byte code, byte requestType)
+    {
+        ByteBuffer frame = frame(ERROR, 2);
+        frame.put(code).put(requestType);
+        frame.flip();
+        return frame;
+    }
+}
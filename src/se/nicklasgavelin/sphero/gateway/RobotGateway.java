@@ -0,0 +1,526 @@
+package se.nicklasgavelin.sphero.gateway;
+
+import se.nicklasgavelin.log.Logging;
+import se.nicklasgavelin.sphero.Robot;
+import se.nicklasgavelin.sphero.RobotFleet;
+import se.nicklasgavelin.sphero.RobotListener;
+import se.nicklasgavelin.sphero.command.CalibrateCommand;
+import se.nicklasgavelin.sphero.command.CommandMessage;
+import se.nicklasgavelin.sphero.command.FrontLEDCommand;
+import se.nicklasgavelin.sphero.command.RGBLEDCommand;
+import se.nicklasgavelin.sphero.command.RollCommand;
+import se.nicklasgavelin.sphero.response.InformationResponseMessage;
+import se.nicklasgavelin.sphero.response.ResponseMessage;
+import se.nicklasgavelin.sphero.response.information.DataResponse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Exposes the robots of a fleet to remote clients over TCP. All clients are
+ * served by a single selector thread, commands from the clients are sent
+ * through the sending queues of the robots and sensor data is sent to the
+ * clients that subscribed to it.
+ *
+ * Every frame starts with a 2 byte length (big endian, the length of the
+ * type and the body) followed by a 1 byte type and the body. Robots are
+ * identified by a 2 byte id that is listed by a LIST request.
+ * <pre>
+ * Client requests
+ * 0x01 LIST                               -> ROBOTS
+ * 0x02 SUBSCRIBE   id                     (receive SENSOR_DATA for the robot)
+ * 0x03 UNSUBSCRIBE id
+ * 0x10 ROLL        id heading(2) speed(1) (speed 0-255)
+ * 0x11 STOP        id
+ * 0x12 RGB         id red(1) green(1) blue(1)
+ * 0x13 FRONT_LED   id brightness(1)       (brightness 0-255)
+ * 0x14 CALIBRATE   id heading(2)
+ *
+ * Gateway messages
+ * 0x81 ROBOTS      count(2) { id(2) connected(1) length(1) address }
+ * 0x82 SENSOR_DATA id data                (the payload of the data response)
+ * 0x83 EVENT       id code(1)             (RobotListener.EVENT_CODE ordinal)
+ * 0x8F ERROR       code(1) request(1)     (1 malformed, 2 unknown robot,
+ *                                          3 not connected, 4 rate limited)
+ * </pre>
+ * A sensor frame is created once and shared by all subscribers, clients
+ * that can't keep up lose sensor frames instead of buffering them. A client
+ * that doesn't read its replies and events is disconnected once they reach
+ * the same limit. The number of commands of each client is limited by a
+ * token bucket.
+ */
+public class RobotGateway implements RobotListener, Runnable
+{
+    // Default command rate limit (commands per second and burst)
+    private static final double COMMAND_RATE = 20;
+    private static final int COMMAND_BURST = 40;
+
+    // Bytes that may wait for a slow client before sensor data is dropped
+    // (or the client is disconnected for other frames)
+    private static final int MAX_QUEUED_BYTES = 64 * 1024;
+
+    private final RobotFleet fleet;
+    private final InetSocketAddress address;
+    private final double commandRate;
+    private final int commandBurst;
+
+    // Robot id = index in the list
+    private final List<Robot> robots;
+    private final Set<GatewayClient> clients;
+    // Clients that got something to write since the last select
+    private final Queue<GatewayClient> writable;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Create a gateway for a fleet listening on the given port
+     *
+     * @param fleet The robots to expose
+     * @param port The port to listen on
+     */
+    public RobotGateway(RobotFleet fleet, int port)
+    {
+        this(fleet, new InetSocketAddress(port), COMMAND_RATE, COMMAND_BURST);
+    }
+
+    /**
+     * Create a gateway for a fleet
+     *
+     * @param fleet The robots to expose
+     * @param address The address to listen on
+     * @param commandRate The number of commands per second that each client
+     *            may send
+     * @param commandBurst The number of commands that each client may send
+     *            at once
+     */
+    public RobotGateway(RobotFleet fleet, InetSocketAddress address, double commandRate, int commandBurst)
+    {
+        this.fleet = fleet;
+        this.address = address;
+        this.commandRate = commandRate;
+        this.commandBurst = commandBurst;
+        this.robots = new CopyOnWriteArrayList<>();
+        this.clients = ConcurrentHashMap.newKeySet();
+        this.writable = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Start accepting clients
+     *
+     * @throws IOException If the server socket can't be opened
+     */
+    public synchronized void start() throws IOException
+    {
+        if (running)
+            return;
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(address);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        updateRobots();
+
+        running = true;
+        thread = new Thread(this, "RobotGateway");
+        thread.setDaemon(true);
+        thread.start();
+
+        Logging.info("Robot gateway listening on " + server.getLocalAddress());
+    }
+
+    /**
+     * Returns the port that the gateway listens on
+     *
+     * @return The port or -1 if not started
+     */
+    public int getPort()
+    {
+        ServerSocketChannel s = server;
+        return s == null ? -1 : s.socket().getLocalPort();
+    }
+
+    /**
+     * Disconnect all clients and stop accepting new ones (the robots stay
+     * connected)
+     */
+    public synchronized void stop()
+    {
+        if (!running)
+            return;
+
+        running = false;
+        selector.wakeup();
+        try
+        {
+            thread.join(1000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        // Forget the robots so that they are registered again on restart
+        for (Robot robot : robots)
+            robot.removeListener(this);
+        robots.clear();
+    }
+
+    /**
+     * Add the robots that joined the fleet since the last update
+     */
+    private void updateRobots()
+    {
+        for (Robot robot : fleet.getRobots())
+            if (!robots.contains(robot))
+            {
+                robots.add(robot);
+                robot.addListener(this);
+            }
+    }
+
+    /**
+     * Runs the selector loop
+     */
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                selector.select();
+
+                // Clients that have new frames to write
+                GatewayClient client;
+                while ((client = writable.poll()) != null)
+                {
+                    SelectionKey key = client.channel.keyFor(selector);
+                    if (key != null && key.isValid())
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext())
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    try
+                    {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        if (key.isValid() && key.isReadable())
+                            read(key);
+                        if (key.isValid() && key.isWritable())
+                            write(key);
+                    }
+                    catch (IOException e)
+                    {
+                        Logging.debug("Gateway client failed: " + e.getMessage());
+                        close(key);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            Logging.error("Robot gateway stopped", e);
+        }
+        finally
+        {
+            for (GatewayClient client : clients)
+                client.close();
+            clients.clear();
+
+            try
+            {
+                server.close();
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Accept a new client
+     */
+    private void accept() throws IOException
+    {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        GatewayClient client = new GatewayClient(channel, commandRate, commandBurst, MAX_QUEUED_BYTES);
+        channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+        Logging.debug("Gateway client connected from " + channel.getRemoteAddress());
+    }
+
+    /**
+     * Read and handle all complete frames from a client
+     */
+    private void read(SelectionKey key) throws IOException
+    {
+        GatewayClient client = (GatewayClient) key.attachment();
+        ByteBuffer in = client.in;
+
+        if (client.channel.read(in) < 0)
+        {
+            close(key);
+            return;
+        }
+
+        in.flip();
+        while (in.remaining() >= GatewayProtocol.LENGTH_FIELD)
+        {
+            int length = in.getShort(in.position()) & 0xFFFF;
+            if (length == 0 || length > GatewayProtocol.MAX_FRAME_LENGTH)
+            {
+                Logging.debug("Malformed gateway frame, closing client");
+                close(key);
+                return;
+            }
+            if (in.remaining() < GatewayProtocol.LENGTH_FIELD + length)
+                break;
+
+            int end = in.position() + GatewayProtocol.LENGTH_FIELD + length;
+            in.position(in.position() + GatewayProtocol.LENGTH_FIELD);
+            byte type = in.get();
+
+            ByteBuffer body = in.slice();
+            body.limit(length - 1);
+            handle(client, type, body);
+
+            in.position(end);
+        }
+        in.compact();
+    }
+
+    /**
+     * Write queued frames to a client
+     */
+    private void write(SelectionKey key) throws IOException
+    {
+        GatewayClient client = (GatewayClient) key.attachment();
+        if (client.flush())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Disconnect a client
+     */
+    private void close(SelectionKey key)
+    {
+        key.cancel();
+        if (key.attachment() instanceof GatewayClient)
+        {
+            GatewayClient client = (GatewayClient) key.attachment();
+            clients.remove(client);
+            client.close();
+        }
+    }
+
+    /**
+     * Handle a request from a client
+     *
+     * @param client The client
+     * @param type The request type
+     * @param body The request body
+     */
+    private void handle(GatewayClient client, byte type, ByteBuffer body)
+    {
+        if (type == GatewayProtocol.LIST)
+        {
+            updateRobots();
+            send(client, robotList(), false);
+            return;
+        }
+
+        if (body.remaining() < 2)
+        {
+            send(client, GatewayProtocol.error(GatewayProtocol.ERROR_MALFORMED, type), false);
+            return;
+        }
+
+        int id = body.getShort() & 0xFFFF;
+        Robot robot = id < robots.size() ? robots.get(id) : null;
+        if (robot == null)
+        {
+            send(client, GatewayProtocol.error(GatewayProtocol.ERROR_UNKNOWN_ROBOT, type), false);
+            return;
+        }
+
+        try
+        {
+            CommandMessage command;
+            switch (type)
+            {
+                case GatewayProtocol.SUBSCRIBE:
+                    client.subscriptions.add(id);
+                    return;
+                case GatewayProtocol.UNSUBSCRIBE:
+                    client.subscriptions.remove(id);
+                    return;
+                case GatewayProtocol.ROLL:
+                    command = new RollCommand(body.getShort() & 0xFFFF, (body.get() & 0xFF) / 255f, false);
+                    break;
+                case GatewayProtocol.STOP:
+                    command = new RollCommand(robot.getRobotMovement().getHeading(), 0, true);
+                    break;
+                case GatewayProtocol.RGB:
+                    command = new RGBLEDCommand(body.get() & 0xFF, body.get() & 0xFF, body.get() & 0xFF);
+                    break;
+                case GatewayProtocol.FRONT_LED:
+                    command = new FrontLEDCommand((body.get() & 0xFF) / 255f);
+                    break;
+                case GatewayProtocol.CALIBRATE:
+                    command = new CalibrateCommand(body.getShort() & 0xFFFF);
+                    break;
+                default:
+                    send(client, GatewayProtocol.error(GatewayProtocol.ERROR_MALFORMED, type), false);
+                    return;
+            }
+
+            if (!robot.isConnected())
+                send(client, GatewayProtocol.error(GatewayProtocol.ERROR_NOT_CONNECTED, type), false);
+            else if (!client.tryAcquire())
+                send(client, GatewayProtocol.error(GatewayProtocol.ERROR_RATE_LIMITED, type), false);
+            else
+                robot.sendCommand(command);
+        }
+        catch (RuntimeException e)
+        {
+            // Body too short
+            send(client, GatewayProtocol.error(GatewayProtocol.ERROR_MALFORMED, type), false);
+        }
+    }
+
+    /**
+     * Create the list of robots
+     *
+     * @return The ROBOTS frame
+     */
+    private ByteBuffer robotList()
+    {
+        byte[][] addresses = new byte[ robots.size() ][];
+        int length = 2;
+        for (int i = 0; i < addresses.length; i++)
+        {
+            addresses[i] = robots.get(i).getAddress().getBytes(StandardCharsets.US_ASCII);
+            length += 4 + addresses[i].length;
+        }
+
+        ByteBuffer frame = GatewayProtocol.frame(GatewayProtocol.ROBOTS, length);
+        frame.putShort((short) addresses.length);
+        for (int i = 0; i < addresses.length; i++)
+        {
+            frame.putShort((short) i);
+            frame.put((byte) (robots.get(i).isConnected() ? 1 : 0));
+            frame.put((byte) addresses[i].length);
+            frame.put(addresses[i]);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Queue a frame for a client and wake the selector if needed
+     *
+     * @param client The client
+     * @param frame The frame
+     * @param droppable True if the frame may be dropped for a slow client
+     */
+    private void send(GatewayClient client, ByteBuffer frame, boolean droppable)
+    {
+        if (client.offer(frame, droppable))
+        {
+            writable.add(client);
+            selector.wakeup();
+        }
+        else if (!client.channel.isOpen())
+        {
+            // Closed for not reading its frames
+            clients.remove(client);
+        }
+    }
+
+    /*
+     * *****************************************************
+     * ROBOT LISTENER
+     * ****************************************************
+     */
+
+    @Override
+    public void responseReceived(Robot r, ResponseMessage response, CommandMessage dc)
+    {
+        // Command responses are not forwarded
+    }
+
+    @Override
+    public void event(Robot r, EVENT_CODE code)
+    {
+        int id = robots.indexOf(r);
+        if (id < 0)
+            return;
+
+        ByteBuffer frame = GatewayProtocol.frame(GatewayProtocol.EVENT, 3);
+        frame.putShort((short) id).put((byte) code.ordinal());
+        frame.flip();
+
+        for (GatewayClient client : clients)
+            send(client, frame.duplicate(), false);
+    }
+
+    @Override
+    public void informationResponseReceived(Robot r, InformationResponseMessage response)
+    {
+        if (!(response instanceof DataResponse))
+            return;
+
+        int id = robots.indexOf(r);
+        if (id < 0)
+            return;
+
+        // One frame shared by all subscribers
+        byte[] data = ((DataResponse) response).getSensorData();
+        ByteBuffer frame = null;
+        for (GatewayClient client : clients)
+        {
+            if (!client.subscriptions.contains(id))
+                continue;
+
+            if (frame == null)
+            {
+                frame = GatewayProtocol.frame(GatewayProtocol.SENSOR_DATA, 2 + data.length);
+                frame.putShort((short) id).put(data);
+                frame.flip();
+            }
+            send(client, frame.duplicate(), true);
+        }
+    }
+}
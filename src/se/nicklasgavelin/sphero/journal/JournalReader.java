@@ -0,0 +1,211 @@
+package se.nicklasgavelin.sphero.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a journal written by RobotJournal. The file is memory mapped and
+ * indexed once (offset, time and robot of every record), records are only
+ * decoded when they are requested. A journal that ends with an incomplete
+ * record (the process stopped while writing) is read up to the last
+ * complete record.
+ */
+public class JournalReader
+{
+    private final ByteBuffer data;
+    private final long startTime;
+    private final List<String> robots;
+    // Index, sorted by time
+    private int size;
+    private int[] offsets;
+    private long[] times;
+    private short[] robotIds;
+
+    /**
+     * Read and index a journal
+     *
+     * @param file The journal file
+     *
+     * @throws IOException If the file can't be read or isn't a journal
+     */
+    public JournalReader(File file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (data.remaining() < RobotJournal.FILE_HEADER_LENGTH || data.getInt(0) != RobotJournal.MAGIC)
+            throw new IOException(file + " is not a journal");
+        if (data.getShort(4) != RobotJournal.VERSION)
+            throw new IOException("Unsupported journal version " + data.getShort(4));
+
+        this.startTime = data.getLong(6);
+        this.robots = new ArrayList<>();
+        this.offsets = new int[ 1024 ];
+        this.times = new long[ 1024 ];
+        this.robotIds = new short[ 1024 ];
+        index();
+    }
+
+    /**
+     * Build the index
+     */
+    private void index()
+    {
+        ByteBuffer b = data.duplicate();
+        b.position(RobotJournal.FILE_HEADER_LENGTH);
+
+        try
+        {
+            while (b.remaining() >= RobotJournal.RECORD_HEADER_LENGTH)
+            {
+                int offset = b.position();
+                byte type = b.get();
+                int robot = b.getShort() & 0xFFFF;
+                long time = b.getLong();
+                int length = b.getShort() & 0xFFFF;
+                if (b.remaining() < length)
+                    break;
+
+                if (type == RobotJournal.ROBOT)
+                {
+                    byte[] address = new byte[ length ];
+                    b.get(address);
+                    while (robots.size() <= robot)
+                        robots.add(null);
+                    robots.set(robot, new String(address, StandardCharsets.UTF_8));
+                    continue;
+                }
+
+                b.position(b.position() + length);
+                if (size == offsets.length)
+                {
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                    times = Arrays.copyOf(times, size * 2);
+                    robotIds = Arrays.copyOf(robotIds, size * 2);
+                }
+                offsets[size] = offset;
+                times[size] = time;
+                robotIds[size] = (short) robot;
+                size++;
+            }
+        }
+        catch (BufferUnderflowException e)
+        {
+            // Incomplete last record
+        }
+    }
+
+    /**
+     * Returns the wall clock time the journal was started at
+     *
+     * @return The start time (ms since the epoch)
+     */
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+    /**
+     * Returns the addresses of the robots in the journal
+     *
+     * @return The robot addresses
+     */
+    public List<String> getRobots()
+    {
+        return Collections.unmodifiableList(robots);
+    }
+
+    /**
+     * Returns the number of records (robot declarations not included)
+     *
+     * @return The number of records
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns a record
+     *
+     * @param index The index of the record (0 - size-1)
+     *
+     * @return The record
+     */
+    public JournalRecord get(int index)
+    {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Record " + index + " of " + size);
+
+        int offset = offsets[index];
+        int length = data.getShort(offset + 11) & 0xFFFF;
+        byte[] body = new byte[ length ];
+        ByteBuffer b = data.duplicate();
+        b.position(offset + RobotJournal.RECORD_HEADER_LENGTH);
+        b.get(body);
+
+        return new JournalRecord(data.get(offset), robots.get(robotIds[index]), times[index], body);
+    }
+
+    /**
+     * Returns all records
+     *
+     * @return The records
+     */
+    public List<JournalRecord> getRecords()
+    {
+        return getRecords(null, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the records of a robot within a time range
+     *
+     * @param robot The robot address or null for all robots
+     * @param from The start of the range (ns since the start of the
+     *            journal, inclusive)
+     * @param to The end of the range (ns since the start of the journal,
+     *            exclusive)
+     *
+     * @return The records in time order
+     */
+    public List<JournalRecord> getRecords(String robot, long from, long to)
+    {
+        int id = robot == null ? -1 : robots.indexOf(robot);
+        if (robot != null && id < 0)
+            return Collections.emptyList();
+
+        List<JournalRecord> records = new ArrayList<>();
+        for (int i = firstAt(from); i < size && times[i] < to; i++)
+            if (id < 0 || robotIds[i] == id)
+                records.add(get(i));
+        return records;
+    }
+
+    /**
+     * Returns the index of the first record at or after a time
+     */
+    private int firstAt(long time)
+    {
+        int low = 0, high = size;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,120 @@
+package se.nicklasgavelin.sphero.journal;
+
+import se.nicklasgavelin.sphero.command.CommandMessage.COMMAND_MESSAGE_TYPE;
+import se.nicklasgavelin.sphero.command.RawCommand;
+
+/**
+ * A single record of a journal, see RobotJournal for the record types
+ */
+public final class JournalRecord
+{
+    private final byte type;
+    private final String robot;
+    private final long time;
+    private final byte[] body;
+
+    JournalRecord(byte type, String robot, long time, byte[] body)
+    {
+        this.type = type;
+        this.robot = robot;
+        this.time = time;
+        this.body = body;
+    }
+
+    /**
+     * Returns the record type (RobotJournal.COMMAND_QUEUED etc.)
+     *
+     * @return The record type
+     */
+    public byte getType()
+    {
+        return type;
+    }
+
+    /**
+     * Returns the address of the robot
+     *
+     * @return The robot address
+     */
+    public String getRobot()
+    {
+        return robot;
+    }
+
+    /**
+     * Returns the time of the record
+     *
+     * @return The time since the start of the journal (ns)
+     */
+    public long getTime()
+    {
+        return time;
+    }
+
+    /**
+     * Returns the body of the record
+     *
+     * @return A copy of the body
+     */
+    public byte[] getBody()
+    {
+        return body.clone();
+    }
+
+    /**
+     * Returns the sequence number of the command of a COMMAND_QUEUED,
+     * COMMAND_WRITTEN or RESPONSE record
+     *
+     * @return The sequence number or -1 for other records
+     */
+    public int getSequenceNumber()
+    {
+        switch (type)
+        {
+            case RobotJournal.COMMAND_QUEUED:
+            case RobotJournal.RESPONSE:
+                return body[0] & 0xFF;
+            case RobotJournal.COMMAND_WRITTEN:
+                return body[4] & 0xFF;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns the command type of a COMMAND_QUEUED, COMMAND_WRITTEN or
+     * RESPONSE record
+     *
+     * @return The command type or null for other records
+     */
+    public COMMAND_MESSAGE_TYPE getCommandType()
+    {
+        switch (type)
+        {
+            case RobotJournal.COMMAND_QUEUED:
+            case RobotJournal.RESPONSE:
+                return COMMAND_MESSAGE_TYPE.valueOf(body[2], body[1]);
+            case RobotJournal.COMMAND_WRITTEN:
+                return COMMAND_MESSAGE_TYPE.valueOf(body[3], body[2]);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Create a command that sends the same packet data as a COMMAND_WRITTEN
+     * record
+     *
+     * @return The command or null if the record isn't a known command
+     */
+    public RawCommand toCommand()
+    {
+        return type == RobotJournal.COMMAND_WRITTEN ? RawCommand.fromPacket(body, 0) : null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JournalRecord[type=" + type + ", robot=" + robot + ", time=" + time + ", length=" + body.length + "]";
+    }
+}
@@ -0,0 +1,109 @@
+package se.nicklasgavelin.sphero.journal;
+
+import se.nicklasgavelin.log.Logging;
+import se.nicklasgavelin.sphero.Robot;
+import se.nicklasgavelin.sphero.command.RawCommand;
+
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the commands that were written to a robot in a journal to another
+ * (or the same) robot with the same timing. Commands are sent at the time
+ * they were written in the recording, relative to the first command and
+ * scaled by the speed.
+ *
+ * Usage:
+ * <pre>
+ * JournalReader journal = new JournalReader( new File( "session.journal" ) );
+ * new JournalReplay( journal, journal.getRobots().get( 0 ) ).replay( robot, 1.0 );
+ * </pre>
+ */
+public class JournalReplay
+{
+    private final List<JournalRecord> commands;
+
+    /**
+     * Create a replay of all commands written to a robot
+     *
+     * @param journal The journal
+     * @param robot The address of the recorded robot
+     */
+    public JournalReplay(JournalReader journal, String robot)
+    {
+        this(journal, robot, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a replay of the commands written to a robot within a time range
+     *
+     * @param journal The journal
+     * @param robot The address of the recorded robot
+     * @param from The start of the range (ns since the start of the journal)
+     * @param to The end of the range (ns since the start of the journal)
+     */
+    public JournalReplay(JournalReader journal, String robot, long from, long to)
+    {
+        this.commands = journal.getRecords(robot, from, to);
+        this.commands.removeIf(r -> r.getType() != RobotJournal.COMMAND_WRITTEN);
+    }
+
+    /**
+     * Returns the number of commands in the replay
+     *
+     * @return The number of commands
+     */
+    public int size()
+    {
+        return commands.size();
+    }
+
+    /**
+     * Send the commands to a robot, blocks until all commands have been
+     * queued. The commands are sent as regular commands so the listeners of
+     * the robot receive the responses.
+     *
+     * @param robot The robot to send to
+     * @param speed The replay speed (1 = recorded speed, 2 = twice as fast)
+     *
+     * @return The number of commands that were sent
+     *
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public int replay(Robot robot, double speed) throws InterruptedException
+    {
+        if (commands.isEmpty())
+            return 0;
+
+        double scale = speed > 0 ? 1 / speed : 1;
+        long first = commands.get(0).getTime();
+        long start = System.nanoTime();
+        int sent = 0;
+
+        for (JournalRecord record : commands)
+        {
+            long due = start + (long) ((record.getTime() - first) * scale);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0)
+            {
+                LockSupport.parkNanos(wait);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+
+            if (!robot.isConnected())
+                break;
+
+            RawCommand command = record.toCommand();
+            if (command == null)
+            {
+                Logging.warn("Skipping unknown command " + record);
+                continue;
+            }
+
+            robot.sendCommand(command);
+            sent++;
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,444 @@
+package se.nicklasgavelin.sphero.journal;
+
+import se.nicklasgavelin.log.Logging;
+import se.nicklasgavelin.sphero.Robot;
+import se.nicklasgavelin.sphero.RobotListener;
+import se.nicklasgavelin.sphero.command.CommandMessage;
+import se.nicklasgavelin.sphero.response.InformationResponseMessage;
+import se.nicklasgavelin.sphero.response.ResponseMessage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append only binary journal of the commands sent to and the responses and
+ * events received from one or more robots. Attach it with
+ * Robot.setJournal, read it with JournalReader and replay the commands with
+ * JournalReplay.
+ *
+ * Records are collected in an off-heap buffer. When the buffer is full or
+ * when the journal is synced it is swapped for a spare buffer and the
+ * records are written to the file (and fsynced) on a background thread,
+ * outside the lock that the sending and listening threads append under, so
+ * that they never wait for the disk. Records that have not been synced are
+ * lost if the process crashes. If the disk falls behind by more than
+ * MAX_FULL_BUFFERS buffers new records are dropped and counted (see
+ * getDroppedRecords) instead of buffered.
+ * <pre>
+ * File header
+ * magic(4) "SPHJ" version(2) start(8)     (wall clock time, ms)
+ *
+ * Records
+ * type(1) robot(2) time(8) length(2) body  (time in ns since the start)
+ *
+ * 0x01 ROBOT           address (UTF-8)     (declares the robot id)
+ * 0x02 COMMAND_QUEUED  sequence(1) device(1) command(1)
+ * 0x03 COMMAND_WRITTEN packet              (the bytes sent to the robot)
+ * 0x04 RESPONSE        sequence(1) device(1) command(1) code(1) packet
+ *                                          (the command it answers and the
+ *                                           RESPONSE_CODE ordinal)
+ * 0x05 INFORMATION     packet
+ * 0x06 EVENT           code(1)             (RobotListener.EVENT_CODE ordinal)
+ * </pre>
+ * Multi byte values are big endian. Times are taken when the record is
+ * appended and never decrease within a journal.
+ */
+public class RobotJournal implements Closeable
+{
+    public static final int MAGIC = 0x5350484A;
+    public static final short VERSION = 1;
+    public static final int FILE_HEADER_LENGTH = 14, RECORD_HEADER_LENGTH = 13;
+    public static final int MAX_BODY_LENGTH = 0xFFFF;
+
+    public static final byte ROBOT = 0x01, COMMAND_QUEUED = 0x02, COMMAND_WRITTEN = 0x03,
+            RESPONSE = 0x04, INFORMATION = 0x05, EVENT = 0x06;
+
+    // Default time between two syncs (ms)
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Largest body that fits in a buffer together with its header
+    private static final int MAX_BUFFERED_BODY_LENGTH = Math.min(MAX_BODY_LENGTH, BUFFER_SIZE - RECORD_HEADER_LENGTH);
+    // Number of written buffers that are kept for reuse
+    private static final int SPARE_BUFFERS = 2;
+    // Number of filled buffers that may wait for the disk
+    private static final int MAX_FULL_BUFFERS = 16;
+
+    private final FileChannel channel;
+    private final long start;
+    private final Map<Robot, Integer> robots;
+    private final ScheduledExecutorService syncer;
+    // Held while writing to the channel, taken before this
+    private final Object writeLock = new Object();
+    // Guarded by this
+    private ByteBuffer buffer;
+    private final Deque<ByteBuffer> full = new ArrayDeque<>(), spare = new ArrayDeque<>();
+    private long lastTime, dropped;
+    private boolean dirty, closed;
+
+    /**
+     * Create a journal that is synced every DEFAULT_SYNC_INTERVAL ms
+     *
+     * @param file The file to write to, replaced if it exists
+     *
+     * @throws IOException If the file can't be created
+     */
+    public RobotJournal(File file) throws IOException
+    {
+        this(file, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * Create a journal
+     *
+     * @param file The file to write to, replaced if it exists
+     * @param syncInterval The time between two syncs (ms)
+     *
+     * @throws IOException If the file can't be created
+     */
+    public RobotJournal(File file, long syncInterval) throws IOException
+    {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.start = System.nanoTime();
+        this.robots = new IdentityHashMap<>();
+
+        buffer.putInt(MAGIC).putShort(VERSION).putLong(System.currentTimeMillis());
+        dirty = true;
+
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "RobotJournal");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(1, syncInterval);
+        syncer.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record that a command was queued for sending
+     *
+     * @param robot The robot
+     * @param command The command
+     */
+    public void commandQueued(Robot robot, CommandMessage command)
+    {
+        int sequence = command.getSequenceNumber();
+        synchronized (this)
+        {
+            if (begin(robot, COMMAND_QUEUED, 3))
+            {
+                buffer.put((byte) sequence);
+                buffer.put(command.getCommand().getDeviceId());
+                buffer.put(command.getCommand().getCommandId());
+            }
+        }
+    }
+
+    /**
+     * Record the bytes of a command that were written to the robot
+     *
+     * @param robot The robot
+     * @param packet The array that holds the packet
+     * @param offset The start of the packet
+     * @param length The length of the packet
+     */
+    public synchronized void commandWritten(Robot robot, byte[] packet, int offset, int length)
+    {
+        if (begin(robot, COMMAND_WRITTEN, length))
+            buffer.put(packet, offset, length);
+    }
+
+    /**
+     * Record a response to a command
+     *
+     * @param robot The robot
+     * @param command The command that the response answers
+     * @param response The response
+     */
+    public void responseReceived(Robot robot, CommandMessage command, ResponseMessage response)
+    {
+        int sequence = command.getSequenceNumber();
+        byte[] packet = response.getMessageHeader().getRawPacket();
+        synchronized (this)
+        {
+            if (begin(robot, RESPONSE, 4 + packet.length))
+            {
+                buffer.put((byte) sequence);
+                buffer.put(command.getCommand().getDeviceId());
+                buffer.put(command.getCommand().getCommandId());
+                buffer.put((byte) response.getResponseCode().ordinal());
+                buffer.put(packet);
+            }
+        }
+    }
+
+    /**
+     * Record an information response (sensor data, emitted macro markers)
+     *
+     * @param robot The robot
+     * @param response The information response
+     */
+    public void informationReceived(Robot robot, InformationResponseMessage response)
+    {
+        byte[] packet = response.getMessageHeader().getRawPacket();
+        synchronized (this)
+        {
+            if (begin(robot, INFORMATION, packet.length))
+                buffer.put(packet);
+        }
+    }
+
+    /**
+     * Record an event
+     *
+     * @param robot The robot
+     * @param code The event
+     */
+    public synchronized void event(Robot robot, RobotListener.EVENT_CODE code)
+    {
+        if (begin(robot, EVENT, 1))
+            buffer.put((byte) code.ordinal());
+    }
+
+    /**
+     * Write the header of a record, the caller writes the body
+     *
+     * @param robot The robot the record belongs to
+     * @param type The record type
+     * @param length The length of the body
+     *
+     * @return False if the record can't be written
+     */
+    private boolean begin(Robot robot, byte type, int length)
+    {
+        if (closed)
+            return false;
+
+        if (length > MAX_BUFFERED_BODY_LENGTH)
+        {
+            Logging.warn("Journal record of " + length + " bytes is too large, skipped");
+            return false;
+        }
+
+        Integer id = robots.get(robot);
+        byte[] address = id == null ? robot.getAddress().getBytes(StandardCharsets.UTF_8) : null;
+        int needed = RECORD_HEADER_LENGTH + length + (address != null ? RECORD_HEADER_LENGTH + address.length : 0);
+        if (buffer.remaining() < needed && full.size() >= MAX_FULL_BUFFERS)
+        {
+            // The disk doesn't keep up, drop the record instead of
+            // buffering without limit
+            if (dropped++ == 0)
+                Logging.warn("Journal writes fall behind, dropping records");
+            return false;
+        }
+
+        if (id == null)
+        {
+            id = robots.size();
+            robots.put(robot, id);
+
+            reserve(RECORD_HEADER_LENGTH + address.length);
+            header(ROBOT, id, address.length);
+            buffer.put(address);
+        }
+
+        reserve(RECORD_HEADER_LENGTH + length);
+        header(type, id, length);
+        return true;
+    }
+
+    private void header(byte type, int robot, int length)
+    {
+        // Keep the time monotonic even if records of different threads
+        // are appended out of order
+        lastTime = Math.max(lastTime, System.nanoTime() - start);
+        buffer.put(type).putShort((short) robot).putLong(lastTime).putShort((short) length);
+        dirty = true;
+    }
+
+    /**
+     * Make room for a record in the buffer, a full buffer is handed to the
+     * background thread
+     *
+     * @param length The length of the record
+     */
+    private void reserve(int length)
+    {
+        if (buffer.remaining() >= length)
+            return;
+
+        swap();
+        syncer.execute(this::writeFull);
+    }
+
+    /**
+     * Queue the current buffer for writing and continue in a spare buffer,
+     * must hold this
+     */
+    private void swap()
+    {
+        buffer.flip();
+        full.add(buffer);
+        buffer = spare.isEmpty() ? ByteBuffer.allocateDirect(BUFFER_SIZE) : spare.poll();
+    }
+
+    /**
+     * Take the buffers that are queued for writing, must hold this
+     *
+     * @return The buffers in the order they were filled
+     */
+    private List<ByteBuffer> takeFull()
+    {
+        List<ByteBuffer> buffers = new ArrayList<>(full);
+        full.clear();
+        return buffers;
+    }
+
+    /**
+     * Write the buffers that were filled to the file
+     */
+    private void writeFull()
+    {
+        synchronized (writeLock)
+        {
+            List<ByteBuffer> buffers;
+            synchronized (this)
+            {
+                if (closed)
+                    return;
+                buffers = takeFull();
+            }
+            write(buffers, false);
+        }
+    }
+
+    /**
+     * Write the buffers to the file and return them as spare buffers, must
+     * hold writeLock but not this
+     *
+     * @param buffers The buffers to write
+     * @param force True to force the written records to the disk
+     *
+     * @return False if the write failed
+     */
+    private boolean write(List<ByteBuffer> buffers, boolean force)
+    {
+        try
+        {
+            for (ByteBuffer b : buffers)
+                while (b.hasRemaining())
+                    channel.write(b);
+            if (force)
+                channel.force(false);
+        }
+        catch (IOException e)
+        {
+            synchronized (this)
+            {
+                fail(e);
+            }
+            return false;
+        }
+
+        synchronized (this)
+        {
+            for (ByteBuffer b : buffers)
+            {
+                b.clear();
+                if (spare.size() < SPARE_BUFFERS)
+                    spare.add(b);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write all records to the file and force them to the disk
+     */
+    public void sync()
+    {
+        synchronized (writeLock)
+        {
+            List<ByteBuffer> buffers;
+            synchronized (this)
+            {
+                if (closed || !dirty)
+                    return;
+                if (buffer.position() > 0)
+                    swap();
+                buffers = takeFull();
+                dirty = false;
+            }
+            write(buffers, true);
+        }
+    }
+
+    /**
+     * Stop journaling after a write error, must hold this
+     */
+    private void fail(IOException e)
+    {
+        Logging.error("Failed to write the journal, journaling stopped", e);
+        closed = true;
+        syncer.shutdown();
+    }
+
+    /**
+     * Returns the number of records that were dropped because the disk did
+     * not keep up
+     *
+     * @return The number of dropped records
+     */
+    public synchronized long getDroppedRecords()
+    {
+        return dropped;
+    }
+
+    /**
+     * Sync and close the journal, records appended after this are ignored
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (writeLock)
+        {
+            List<ByteBuffer> buffers = null;
+            synchronized (this)
+            {
+                if (!closed)
+                {
+                    if (buffer.position() > 0)
+                        swap();
+                    buffers = takeFull();
+                    closed = true;
+                }
+            }
+            syncer.shutdown();
+
+            try
+            {
+                if (buffers != null)
+                    write(buffers, true);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package se.nicklasgavelin.sphero.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in microseconds. Values are counted in
+ * buckets of 1/16 of a power of two (exact below 16 us), so percentiles are
+ * within about 6% of the recorded values no matter how many values are
+ * recorded.
+ */
+final class LatencyHistogram
+{
+    private static final int SUB_BUCKETS = 16, SUB_BUCKET_BITS = 4;
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count, sum, max;
+
+    LatencyHistogram()
+    {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param micros The latency (us)
+     */
+    void record(long micros)
+    {
+        long v = Math.max(0, micros);
+        counts.incrementAndGet(index(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    /**
+     * Add all values of another histogram
+     *
+     * @param other The histogram to add
+     */
+    void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean latency
+     *
+     * @return The mean (us) or 0 if nothing was recorded
+     */
+    double getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Returns a percentile
+     *
+     * @param percentile The percentile (0-100)
+     *
+     * @return The latency (us, the middle of its bucket) or 0 if nothing was
+     *         recorded
+     */
+    long getPercentile(double percentile)
+    {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank && i + 1 < BUCKETS)
+                return Math.min(max.get(), (lowerBound(i) + lowerBound(i + 1) - 1) / 2);
+        }
+        return max.get();
+    }
+
+    private static int index(long v)
+    {
+        if (v < SUB_BUCKETS)
+            return (int) v;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+}
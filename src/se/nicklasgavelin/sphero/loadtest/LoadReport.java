@@ -0,0 +1,132 @@
+package se.nicklasgavelin.sphero.loadtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Result of a load test: the settings, totals over the measured period and
+ * one sample per sample interval. toJson returns the report in a stable
+ * machine readable form so that runs can be compared between releases.
+ */
+public final class LoadReport
+{
+    /**
+     * Values measured during one sample interval
+     */
+    public static final class Sample
+    {
+        private final Map<String, Object> values;
+
+        Sample(Map<String, Object> values)
+        {
+            this.values = Collections.unmodifiableMap(new LinkedHashMap<>(values));
+        }
+
+        /**
+         * Returns the values of the sample (time, throughput, latency
+         * percentiles, gc, threads and heap)
+         *
+         * @return The values by name
+         */
+        public Map<String, Object> getValues()
+        {
+            return values;
+        }
+    }
+
+    private final Map<String, Object> settings, summary;
+    private final List<Sample> samples;
+
+    LoadReport(Map<String, Object> settings, Map<String, Object> summary, List<Sample> samples)
+    {
+        this.settings = Collections.unmodifiableMap(new LinkedHashMap<>(settings));
+        this.summary = Collections.unmodifiableMap(new LinkedHashMap<>(summary));
+        this.samples = Collections.unmodifiableList(new ArrayList<>(samples));
+    }
+
+    /**
+     * Returns the settings of the test
+     *
+     * @return The settings by name
+     */
+    public Map<String, Object> getSettings()
+    {
+        return settings;
+    }
+
+    /**
+     * Returns the totals of the measured period
+     *
+     * @return The totals by name
+     */
+    public Map<String, Object> getSummary()
+    {
+        return summary;
+    }
+
+    /**
+     * Returns the samples in time order
+     *
+     * @return The samples
+     */
+    public List<Sample> getSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * Returns the report as JSON
+     *
+     * @return The JSON report
+     */
+    public String toJson()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"settings\": ");
+        append(json, settings);
+        json.append(",\n  \"summary\": ");
+        append(json, summary);
+        json.append(",\n  \"samples\": [");
+        for (int i = 0; i < samples.size(); i++)
+        {
+            json.append(i == 0 ? "\n    " : ",\n    ");
+            append(json, samples.get(i).values);
+        }
+        json.append(samples.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        return json.toString();
+    }
+
+    private static void append(StringBuilder json, Map<String, Object> values)
+    {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Object> value : values.entrySet())
+        {
+            if (!first)
+                json.append(", ");
+            first = false;
+
+            json.append('"').append(value.getKey()).append("\": ");
+            Object v = value.getValue();
+            if (v instanceof Double || v instanceof Float)
+                json.append(String.format(Locale.ROOT, "%.3f", ((Number) v).doubleValue()));
+            else if (v instanceof Number || v instanceof Boolean)
+                json.append(v);
+            else if (v == null)
+                json.append("null");
+            else
+                json.append('"').append(v.toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        json.append('}');
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LoadReport" + summary;
+    }
+}
@@ -0,0 +1,604 @@
+package se.nicklasgavelin.sphero.loadtest;
+
+import se.nicklasgavelin.configuration.ExecutionMode;
+import se.nicklasgavelin.log.Logging;
+import se.nicklasgavelin.sphero.ConnectionTiming;
+import se.nicklasgavelin.sphero.Robot;
+import se.nicklasgavelin.sphero.RobotFleet;
+import se.nicklasgavelin.sphero.RobotListener;
+import se.nicklasgavelin.sphero.command.CommandMessage;
+import se.nicklasgavelin.sphero.command.RollCommand;
+import se.nicklasgavelin.sphero.command.SetDataStreamingCommand;
+import se.nicklasgavelin.sphero.emulator.VirtualRobot;
+import se.nicklasgavelin.sphero.exception.RobotBluetoothException;
+import se.nicklasgavelin.sphero.macro.MacroObject;
+import se.nicklasgavelin.sphero.macro.command.Delay;
+import se.nicklasgavelin.sphero.macro.command.RGB;
+import se.nicklasgavelin.sphero.response.InformationResponseMessage;
+import se.nicklasgavelin.sphero.response.ResponseMessage;
+import se.nicklasgavelin.sphero.response.information.DataResponse;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Drives a number of robots connected to virtual robots (in-process, no
+ * Bluetooth) with a configurable workload and measures how the host keeps
+ * up: command throughput, latency from sendCommand until the response is
+ * delivered to the listeners, sensor and macro throughput, garbage
+ * collection, threads and heap over time.
+ *
+ * The workload per robot is a roll command at a fixed rate, data streaming
+ * with a sensor mask and streamed macros started at a fixed interval (each
+ * one can be turned off). The first part of the run is a warm up that is
+ * not part of the report.
+ *
+ * Usage:
+ * <pre>
+ * LoadReport report = new LoadTest().setRobots( 50 ).setRollRate( 20 ).setDuration( 60000 ).run();
+ * System.out.println( report.toJson() );
+ * </pre>
+ * or from the command line (all options are optional):
+ * <pre>
+ * java se.nicklasgavelin.sphero.loadtest.LoadTest --robots 50 --threads 4 --mode VIRTUAL
+ *      --roll-rate 20 --sensor-mask 0x00070000 --sensor-divisor 40 --sensor-frames 1
+ *      --macro-interval 2000 --macro-steps 20 --response-delay 2000
+ *      --duration 60 --warmup 5 --sample-interval 1 --report load.json
+ * </pre>
+ */
+public class LoadTest
+{
+    // Robots connected at the same time and the time to wait for all of
+    // them (ms)
+    private static final int CONNECT_PARALLELISM = 16;
+    private static final long CONNECT_TIMEOUT = 60000;
+    // Address prefix of the virtual robots
+    private static final String ADDRESS_PREFIX = "000666";
+
+    // Settings
+    private int robots = 10, threads = Runtime.getRuntime().availableProcessors();
+    private ExecutionMode mode = ExecutionMode.PLATFORM;
+    private double rollRate = 10;
+    private int sensorMask = SetDataStreamingCommand.DATA_STREAMING_MASKS.OFF, sensorDivisor = 40, sensorFrames = 1;
+    private long macroInterval, responseDelay;
+    private int macroSteps = 20;
+    private long duration = 60000, warmup = 5000, sampleInterval = 1000;
+
+    // Measurements of a run
+    private final Map<CommandMessage, Long> pending = new ConcurrentHashMap<>();
+    private final Map<Robot, Long> macroStarts = new ConcurrentHashMap<>();
+    private final AtomicReference<LatencyHistogram> latencies = new AtomicReference<>(new LatencyHistogram());
+    private final AtomicReference<LatencyHistogram> macroLatencies = new AtomicReference<>(new LatencyHistogram());
+    private final AtomicLong sent = new AtomicLong(), responses = new AtomicLong(), errors = new AtomicLong(),
+            sensorPackets = new AtomicLong(), macrosStarted = new AtomicLong(), macrosDone = new AtomicLong(),
+            disconnects = new AtomicLong();
+
+    /**
+     * Set the number of robots
+     *
+     * @param robots The number of robots
+     *
+     * @return This test
+     */
+    public LoadTest setRobots(int robots)
+    {
+        this.robots = Math.max(1, robots);
+        return this;
+    }
+
+    /**
+     * Set the threads of the fleet
+     *
+     * @param threads The number of writer and listener threads
+     * @param mode How the robot I/O is run
+     *
+     * @return This test
+     */
+    public LoadTest setThreads(int threads, ExecutionMode mode)
+    {
+        this.threads = Math.max(1, threads);
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * Set the rate of roll commands sent to every robot
+     *
+     * @param rollRate The rate (Hz), 0 to send no roll commands
+     *
+     * @return This test
+     */
+    public LoadTest setRollRate(double rollRate)
+    {
+        this.rollRate = Math.max(0, rollRate);
+        return this;
+    }
+
+    /**
+     * Set up data streaming on every robot
+     *
+     * @param mask The sensor mask (SetDataStreamingCommand.DATA_STREAMING_MASKS),
+     *            OFF for no streaming
+     * @param divisor The divisor of the sample rate (400 Hz)
+     * @param frames The number of frames per packet
+     *
+     * @return This test
+     */
+    public LoadTest setSensorStreaming(int mask, int divisor, int frames)
+    {
+        this.sensorMask = mask;
+        this.sensorDivisor = Math.max(1, divisor);
+        this.sensorFrames = Math.max(1, frames);
+        return this;
+    }
+
+    /**
+     * Stream a macro to every robot at an interval, a new macro is only
+     * started when the previous one is done
+     *
+     * @param interval The time between two macros (ms), 0 for no macros
+     * @param steps The number of color steps of a macro (each one is a color
+     *            change and a 10 ms delay)
+     *
+     * @return This test
+     */
+    public LoadTest setMacros(long interval, int steps)
+    {
+        this.macroInterval = Math.max(0, interval);
+        this.macroSteps = Math.max(1, steps);
+        return this;
+    }
+
+    /**
+     * Set the time the virtual robots take to answer a command
+     *
+     * @param responseDelay The response delay (us)
+     *
+     * @return This test
+     */
+    public LoadTest setResponseDelay(long responseDelay)
+    {
+        this.responseDelay = Math.max(0, responseDelay);
+        return this;
+    }
+
+    /**
+     * Set the length of the run
+     *
+     * @param duration The measured time (ms)
+     * @param warmup The time before the measurement starts (ms)
+     * @param sampleInterval The time between two samples (ms)
+     *
+     * @return This test
+     */
+    public LoadTest setDuration(long duration, long warmup, long sampleInterval)
+    {
+        this.duration = Math.max(1, duration);
+        this.warmup = Math.max(0, warmup);
+        this.sampleInterval = Math.max(1, sampleInterval);
+        return this;
+    }
+
+    /**
+     * Set the measured time of the run
+     *
+     * @param duration The measured time (ms)
+     *
+     * @return This test
+     */
+    public LoadTest setDuration(long duration)
+    {
+        return setDuration(duration, warmup, sampleInterval);
+    }
+
+    /**
+     * Run the test, blocks until the test is done and all robots are
+     * disconnected
+     *
+     * @return The report
+     *
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public synchronized LoadReport run() throws InterruptedException
+    {
+        reset();
+
+        RobotFleet fleet = new RobotFleet(threads, mode);
+        ScheduledExecutorService generator = Executors.newScheduledThreadPool(
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2), new DaemonThreadFactory("LoadGenerator"));
+        Listener listener = new Listener();
+
+        try
+        {
+            for (int i = 0; i < robots; i++)
+            {
+                VirtualRobot virtual = new VirtualRobot(String.format("%s%06d", ADDRESS_PREFIX, i));
+                virtual.setResponseDelay(responseDelay, TimeUnit.MICROSECONDS);
+                fleet.add(virtual.getDevice()).addListener(listener);
+            }
+
+            Map<Robot, ConnectionTiming> timing = fleet.connectAll(CONNECT_PARALLELISM, CONNECT_TIMEOUT);
+            List<Robot> connected = new ArrayList<>();
+            LatencyHistogram connectTimes = new LatencyHistogram();
+            for (Map.Entry<Robot, ConnectionTiming> robot : timing.entrySet())
+                if (robot.getKey().isConnected())
+                {
+                    connected.add(robot.getKey());
+                    if (robot.getValue().getTotalTime() >= 0)
+                        connectTimes.record(robot.getValue().getTotalTime() * 1000);
+                }
+
+            if (connected.size() < robots)
+                Logging.warn("Only " + connected.size() + " of " + robots + " robots connected");
+
+            startWorkload(connected, generator);
+
+            List<LoadReport.Sample> samples = new ArrayList<>();
+            Map<String, Object> summary = measure(samples, connected);
+            summary.put("connected", connected.size());
+            summary.put("connectMeanMs", connectTimes.getMean() / 1000);
+            summary.put("connectMaxMs", connectTimes.getMax() / 1000.0);
+
+            return new LoadReport(getSettings(), summary, samples);
+        }
+        catch (RobotBluetoothException e)
+        {
+            throw new IllegalStateException("Failed to create a virtual robot", e);
+        }
+        finally
+        {
+            generator.shutdownNow();
+            fleet.shutdown();
+        }
+    }
+
+    /**
+     * Clear the measurements of an earlier run
+     */
+    private void reset()
+    {
+        pending.clear();
+        macroStarts.clear();
+        latencies.set(new LatencyHistogram());
+        macroLatencies.set(new LatencyHistogram());
+        for (AtomicLong counter : new AtomicLong[] { sent, responses, errors, sensorPackets, macrosStarted, macrosDone, disconnects })
+            counter.set(0);
+    }
+
+    /**
+     * Start sending the workload to the robots
+     */
+    private void startWorkload(List<Robot> connected, ScheduledExecutorService generator)
+    {
+        for (final Robot robot : connected)
+        {
+            if (sensorMask != SetDataStreamingCommand.DATA_STREAMING_MASKS.OFF)
+                robot.sendCommand(new SetDataStreamingCommand(sensorDivisor, sensorFrames, sensorMask, 0));
+
+            // Spread the robots over the period so that the commands are not
+            // sent in bursts
+            if (rollRate > 0)
+            {
+                long period = Math.max(1, (long) (1e6 / rollRate));
+                final AtomicInteger heading = new AtomicInteger(ThreadLocalRandom.current().nextInt(360));
+                generator.scheduleAtFixedRate(() -> send(robot, new RollCommand(heading.getAndAdd(7) % 360, 0.5f, false)),
+                                              ThreadLocalRandom.current().nextLong(period), period, TimeUnit.MICROSECONDS);
+            }
+
+            if (macroInterval > 0)
+                generator.scheduleAtFixedRate(() -> playMacro(robot),
+                                              ThreadLocalRandom.current().nextLong(macroInterval), macroInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void send(Robot robot, CommandMessage command)
+    {
+        if (!robot.isConnected())
+            return;
+
+        pending.put(command, System.nanoTime());
+        sent.incrementAndGet();
+        robot.sendCommand(command);
+    }
+
+    private void playMacro(Robot robot)
+    {
+        if (!robot.isConnected() || macroStarts.putIfAbsent(robot, System.nanoTime()) != null)
+            return;
+
+        MacroObject macro = new MacroObject();
+        for (int i = 0; i < macroSteps; i++)
+        {
+            macro.addCommand(new RGB(i * 13 % 256, 255 - i * 13 % 256, 128, 0));
+            macro.addCommand(new Delay(10));
+        }
+        macro.setMode(MacroObject.MacroObjectMode.CachedStreaming);
+
+        macrosStarted.incrementAndGet();
+        robot.sendCommand(macro);
+    }
+
+    /**
+     * Take samples until the run is done
+     *
+     * @return The totals of the measured period
+     */
+    private Map<String, Object> measure(List<LoadReport.Sample> samples, List<Robot> connected) throws InterruptedException
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+
+        LatencyHistogram total = new LatencyHistogram(), macroTotal = new LatencyHistogram();
+        long start = System.nanoTime(), measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmup);
+        long end = measureStart + TimeUnit.MILLISECONDS.toNanos(duration);
+        long[] last = counters(gcBeans), first = null;
+        long next = start, lastSample = start, maxGcTime = 0, peakHeap = 0;
+        int peakThreads = 0;
+
+        while (true)
+        {
+            next += TimeUnit.MILLISECONDS.toNanos(sampleInterval);
+            long wait = Math.min(next, end) - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+
+            long now = System.nanoTime();
+            LatencyHistogram interval = latencies.getAndSet(new LatencyHistogram());
+            LatencyHistogram macroInterval = macroLatencies.getAndSet(new LatencyHistogram());
+            long[] current = counters(gcBeans);
+
+            if (now > measureStart)
+            {
+                if (first == null)
+                    first = last;
+
+                double seconds = (now - lastSample) / 1e9;
+                int threadCount = threadBean.getThreadCount();
+                long heap = memoryBean.getHeapMemoryUsage().getUsed();
+                total.add(interval);
+                macroTotal.add(macroInterval);
+                maxGcTime = Math.max(maxGcTime, current[7] - last[7]);
+                peakHeap = Math.max(peakHeap, heap);
+                peakThreads = Math.max(peakThreads, threadCount);
+
+                Map<String, Object> sample = new LinkedHashMap<>();
+                sample.put("timeMs", TimeUnit.NANOSECONDS.toMillis(now - measureStart));
+                sample.put("sent", current[0] - last[0]);
+                sample.put("responses", current[1] - last[1]);
+                sample.put("errors", current[2] - last[2]);
+                sample.put("responsesPerSecond", (current[1] - last[1]) / seconds);
+                sample.put("latencyP50Ms", interval.getPercentile(50) / 1000.0);
+                sample.put("latencyP99Ms", interval.getPercentile(99) / 1000.0);
+                sample.put("latencyMaxMs", interval.getMax() / 1000.0);
+                sample.put("sensorPackets", current[3] - last[3]);
+                sample.put("macrosDone", current[5] - last[5]);
+                sample.put("gcCount", current[6] - last[6]);
+                sample.put("gcTimeMs", current[7] - last[7]);
+                sample.put("threads", threadCount);
+                sample.put("heapUsedBytes", heap);
+                samples.add(new LoadReport.Sample(sample));
+            }
+            last = current;
+            lastSample = now;
+
+            if (now >= end)
+                break;
+        }
+
+        if (first == null)
+            first = last;
+
+        double seconds = duration / 1000.0;
+        long lost = 0, timeout = System.nanoTime() - TimeUnit.SECONDS.toNanos(5);
+        for (Long sentAt : pending.values())
+            if (sentAt < timeout)
+                lost++;
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("durationMs", duration);
+        summary.put("sent", last[0] - first[0]);
+        summary.put("responses", last[1] - first[1]);
+        summary.put("errors", last[2] - first[2]);
+        summary.put("lost", lost);
+        summary.put("disconnects", disconnects.get());
+        summary.put("sentPerSecond", (last[0] - first[0]) / seconds);
+        summary.put("responsesPerSecond", (last[1] - first[1]) / seconds);
+        summary.put("latencyMeanMs", total.getMean() / 1000);
+        summary.put("latencyP50Ms", total.getPercentile(50) / 1000.0);
+        summary.put("latencyP90Ms", total.getPercentile(90) / 1000.0);
+        summary.put("latencyP99Ms", total.getPercentile(99) / 1000.0);
+        summary.put("latencyP999Ms", total.getPercentile(99.9) / 1000.0);
+        summary.put("latencyMaxMs", total.getMax() / 1000.0);
+        summary.put("sensorPacketsPerSecond", (last[3] - first[3]) / seconds);
+        summary.put("macrosStarted", last[4] - first[4]);
+        summary.put("macrosDone", last[5] - first[5]);
+        summary.put("macroP50Ms", macroTotal.getPercentile(50) / 1000.0);
+        summary.put("macroP99Ms", macroTotal.getPercentile(99) / 1000.0);
+        summary.put("gcCount", last[6] - first[6]);
+        summary.put("gcTimeMs", last[7] - first[7]);
+        summary.put("gcMaxTimePerSampleMs", maxGcTime);
+        summary.put("threadsPeak", peakThreads);
+        summary.put("heapPeakBytes", peakHeap);
+        return summary;
+    }
+
+    /**
+     * Returns the current counters: sent, responses, errors, sensor
+     * packets, macros started, macros done, gc count and gc time (ms)
+     */
+    private long[] counters(List<GarbageCollectorMXBean> gcBeans)
+    {
+        long gcCount = 0, gcTime = 0;
+        for (GarbageCollectorMXBean gc : gcBeans)
+        {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcTime += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] { sent.get(), responses.get(), errors.get(), sensorPackets.get(),
+                            macrosStarted.get(), macrosDone.get(), gcCount, gcTime };
+    }
+
+    private Map<String, Object> getSettings()
+    {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("robots", robots);
+        settings.put("threads", threads);
+        settings.put("mode", mode.name());
+        settings.put("rollRate", rollRate);
+        settings.put("sensorMask", String.format("0x%08X", sensorMask));
+        settings.put("sensorDivisor", sensorDivisor);
+        settings.put("sensorFrames", sensorFrames);
+        settings.put("macroInterval", macroInterval);
+        settings.put("macroSteps", macroSteps);
+        settings.put("responseDelayUs", responseDelay);
+        settings.put("durationMs", duration);
+        settings.put("warmupMs", warmup);
+        settings.put("sampleIntervalMs", sampleInterval);
+        settings.put("processors", Runtime.getRuntime().availableProcessors());
+        settings.put("javaVersion", System.getProperty("java.version"));
+        settings.put("startedAt", System.currentTimeMillis());
+        return settings;
+    }
+
+    /**
+     * Collects the responses, sensor data and events of all robots
+     */
+    private final class Listener implements RobotListener
+    {
+        @Override
+        public void responseReceived(Robot r, ResponseMessage response, CommandMessage dc)
+        {
+            Long sentAt = pending.remove(dc);
+            if (sentAt == null)
+                return;
+
+            responses.incrementAndGet();
+            if (response == null || response.getResponseCode() != ResponseMessage.RESPONSE_CODE.CODE_OK)
+                errors.incrementAndGet();
+            latencies.get().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt));
+        }
+
+        @Override
+        public void informationResponseReceived(Robot r, InformationResponseMessage response)
+        {
+            if (response instanceof DataResponse)
+                sensorPackets.incrementAndGet();
+        }
+
+        @Override
+        public void event(Robot r, EVENT_CODE code)
+        {
+            switch (code)
+            {
+                case MACRO_DONE:
+                    Long started = macroStarts.remove(r);
+                    if (started != null)
+                    {
+                        macrosDone.incrementAndGet();
+                        macroLatencies.get().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+                    }
+                    break;
+
+                case CONNECTION_CLOSED_UNEXPECTED:
+                    disconnects.incrementAndGet();
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Creates daemon threads with a name prefix
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Run a load test from the command line and print or write the report
+     *
+     * @param args The options, see the class documentation
+     *
+     * @throws Exception If the test fails or the report can't be written
+     */
+    public static void main(String[] args) throws Exception
+    {
+        LoadTest test = new LoadTest();
+        String report = null;
+        int threads = test.threads;
+        ExecutionMode mode = test.mode;
+        int mask = test.sensorMask, divisor = test.sensorDivisor, frames = test.sensorFrames;
+        long macroInterval = test.macroInterval, duration = test.duration, warmup = test.warmup, sampleInterval = test.sampleInterval;
+        int macroSteps = test.macroSteps;
+
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            String value = args[i + 1];
+            switch (args[i])
+            {
+                case "--robots": test.setRobots(Integer.parseInt(value)); break;
+                case "--threads": threads = Integer.parseInt(value); break;
+                case "--mode": mode = ExecutionMode.valueOf(value.toUpperCase()); break;
+                case "--roll-rate": test.setRollRate(Double.parseDouble(value)); break;
+                case "--sensor-mask": mask = (int) Long.decode(value).longValue(); break;
+                case "--sensor-divisor": divisor = Integer.parseInt(value); break;
+                case "--sensor-frames": frames = Integer.parseInt(value); break;
+                case "--macro-interval": macroInterval = Long.parseLong(value); break;
+                case "--macro-steps": macroSteps = Integer.parseInt(value); break;
+                case "--response-delay": test.setResponseDelay(Long.parseLong(value)); break;
+                case "--duration": duration = (long) (Double.parseDouble(value) * 1000); break;
+                case "--warmup": warmup = (long) (Double.parseDouble(value) * 1000); break;
+                case "--sample-interval": sampleInterval = (long) (Double.parseDouble(value) * 1000); break;
+                case "--report": report = value; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        test.setThreads(threads, mode)
+            .setSensorStreaming(mask, divisor, frames)
+            .setMacros(macroInterval, macroSteps)
+            .setDuration(duration, warmup, sampleInterval);
+
+        String json = test.run().toJson();
+        if (report == null)
+            System.out.print(json);
+        else
+            Files.write(new File(report).toPath(), json.getBytes(StandardCharsets.UTF_8));
+    }
+}
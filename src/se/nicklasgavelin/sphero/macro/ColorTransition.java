@@ -0,0 +1,296 @@
+package se.nicklasgavelin.sphero.macro;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import se.nicklasgavelin.sphero.macro.command.Delay;
+import se.nicklasgavelin.sphero.macro.command.Fade;
+import se.nicklasgavelin.sphero.macro.command.RGB;
+
+/**
+ * A precompiled color transition for the RGB LED. The transition is
+ * interpolated in gamma corrected (perceptual) space using precomputed
+ * tables so that the brightness changes evenly, and is compiled into
+ * either a few Fade commands (smooth, linear on the robot) or one RGB
+ * command per step, depending on which is smaller while staying within
+ * FADE_TOLERANCE of the gamma corrected path.
+ *
+ * Transitions are immutable and shared, creating the same transition
+ * again (for instance for every robot in a group) returns the already
+ * compiled transition.
+ */
+public final class ColorTransition
+{
+	/**
+	 * Maximum allowed difference (in perceptual 0-255 units) between a
+	 * linear Fade on the robot and the gamma corrected path
+	 */
+	public static final int FADE_TOLERANCE = 6;
+
+	// Gamma of the LED output
+	private static final double GAMMA = 2.2;
+
+	// Resolution of the perceptual to output table
+	private static final int LUT_SIZE = 1024;
+
+	// Output value to perceptual value (0-1) and perceptual to output value
+	private static final float[] ENCODE = new float[ 256 ];
+	private static final int[] DECODE = new int[ LUT_SIZE + 1 ];
+
+	static
+	{
+		for( int i = 0; i < ENCODE.length; i++ )
+			ENCODE[i] = (float) Math.pow( i / 255.0, 1 / GAMMA );
+		for( int i = 0; i < DECODE.length; i++ )
+			DECODE[i] = (int) Math.round( 255 * Math.pow( i / (double) LUT_SIZE, GAMMA ) );
+	}
+
+	// Shared compiled transitions
+	private static final int MAX_CACHED = 64;
+	private static final Map<String, ColorTransition> CACHE = new LinkedHashMap<String, ColorTransition>( 16, 0.75f, true ) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, ColorTransition> eldest )
+		{
+			return size() > MAX_CACHED;
+		}
+	};
+
+	private final MacroCompiler.Result compiled;
+	private final boolean faded;
+
+	private ColorTransition( List<MacroCommand> commands, boolean faded )
+	{
+		this.compiled = MacroCompiler.compile( commands );
+		this.faded = faded;
+	}
+
+	/**
+	 * Returns the transition between two colors
+	 *
+	 * @param from The color to go from
+	 * @param to The color to end up with
+	 * @param steps The number of steps between the colors
+	 * @param delay The delay of each step (ms)
+	 *
+	 * @return The compiled transition
+	 */
+	public static ColorTransition get( Color from, Color to, int steps, int delay )
+	{
+		return lookup( from, to, Math.max( 1, steps ), Math.max( 0, delay ), false );
+	}
+
+	/**
+	 * Returns a breathing transition, going from one color to another and
+	 * back again. Each direction takes half of the steps with half of the
+	 * delay.
+	 *
+	 * @param from The color to go from (and return to)
+	 * @param to The color to go to
+	 * @param steps The total number of steps
+	 * @param delay The delay (ms), each step is half of this delay
+	 *
+	 * @return The compiled transition
+	 */
+	public static ColorTransition breath( Color from, Color to, int steps, int delay )
+	{
+		return lookup( from, to, Math.max( 1, steps / 2 ), Math.max( 0, delay / 2 ), true );
+	}
+
+	/**
+	 * Returns a shared transition or compiles a new one
+	 */
+	private static ColorTransition lookup( Color from, Color to, int steps, int delay, boolean breath )
+	{
+		String key = from.getRGB() + ":" + to.getRGB() + ":" + steps + ":" + delay + ":" + breath;
+		synchronized( CACHE )
+		{
+			ColorTransition transition = CACHE.get( key );
+			if( transition == null )
+			{
+				transition = create( from, to, steps, delay, breath );
+				CACHE.put( key, transition );
+			}
+			return transition;
+		}
+	}
+
+	/**
+	 * Compile a new transition
+	 */
+	private static ColorTransition create( Color from, Color to, int steps, int delay, boolean breath )
+	{
+		int[][] path = path( from, to, steps );
+
+		List<MacroCommand> stepped = new ArrayList<>();
+		addStepped( stepped, path, delay );
+		if( breath )
+			addStepped( stepped, reverse( path ), delay );
+		ColorTransition best = new ColorTransition( stepped, false );
+
+		// Fade only if it is smaller than the stepped version
+		List<MacroCommand> fades = new ArrayList<>();
+		if( addFades( fades, path, delay, best.getLength(), true ) && (!breath || addFades( fades, reverse( path ), delay, best.getLength(), false )) )
+		{
+			ColorTransition faded = new ColorTransition( fades, true );
+			if( faded.getLength() < best.getLength() )
+				best = faded;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Interpolate the colors of all steps in perceptual space
+	 *
+	 * @return The color of every step, including both end colors
+	 */
+	private static int[][] path( Color from, Color to, int steps )
+	{
+		int[] f = { from.getRed(), from.getGreen(), from.getBlue() }, t = { to.getRed(), to.getGreen(), to.getBlue() };
+		int[][] path = new int[ steps + 1 ][ 3 ];
+
+		for( int i = 0; i <= steps; i++ )
+			for( int c = 0; c < 3; c++ )
+			{
+				float p = ENCODE[f[c]] + (ENCODE[t[c]] - ENCODE[f[c]]) * i / steps;
+				path[i][c] = DECODE[Math.round( p * LUT_SIZE )];
+			}
+
+		// Keep the end colors exact
+		path[0] = f;
+		path[steps] = t;
+		return path;
+	}
+
+	/**
+	 * Returns the path in the reversed order
+	 */
+	private static int[][] reverse( int[][] path )
+	{
+		int[][] r = new int[ path.length ][];
+		for( int i = 0; i < path.length; i++ )
+			r[i] = path[path.length - 1 - i];
+		return r;
+	}
+
+	/**
+	 * Add one RGB command per step
+	 */
+	private static void addStepped( List<MacroCommand> out, int[][] path, int delay )
+	{
+		int steps = path.length - 1;
+		for( int i = 0; i < steps; i++ )
+		{
+			out.add( new RGB( path[i][0], path[i][1], path[i][2], 0 ) );
+			out.add( new Delay( delay ) );
+		}
+		out.add( new RGB( path[steps][0], path[steps][1], path[steps][2], 0 ) );
+	}
+
+	/**
+	 * Add the smallest number of Fade commands that stay within the
+	 * tolerance
+	 *
+	 * @param out The list to add the commands to
+	 * @param path The color path
+	 * @param delay The delay of each step
+	 * @param limit The size in bytes that the fades need to stay below
+	 * @param setStart True to set the start color before fading (the robot
+	 *            fades from its current color)
+	 *
+	 * @return True if fades smaller than the limit could be created
+	 */
+	private static boolean addFades( List<MacroCommand> out, int[][] path, int delay, int limit, boolean setStart )
+	{
+		int steps = path.length - 1, length = setStart ? MacroCommand.MACRO_COMMAND.MAC_RGB.getLength() : 0;
+		int fadeLength = MacroCommand.MACRO_COMMAND.MAC_FADE.getLength();
+
+		for( int segments = 1; length + segments * fadeLength < limit && segments <= steps; segments++ )
+		{
+			if( (steps / segments + 1) * delay > Fade.MAX_DELAY_VALUE || !withinTolerance( path, segments ) )
+				continue;
+
+			if( setStart )
+				out.add( new RGB( path[0][0], path[0][1], path[0][2], 0 ) );
+			for( int s = 0; s < segments; s++ )
+			{
+				int a = s * steps / segments, b = (s + 1) * steps / segments;
+				out.add( new Fade( path[b][0], path[b][1], path[b][2], (b - a) * delay ) );
+			}
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Check if a linear fade over each segment stays close enough to the
+	 * path
+	 */
+	private static boolean withinTolerance( int[][] path, int segments )
+	{
+		int steps = path.length - 1;
+		for( int s = 0; s < segments; s++ )
+		{
+			int a = s * steps / segments, b = (s + 1) * steps / segments;
+			for( int i = a + 1; i < b; i++ )
+				for( int c = 0; c < 3; c++ )
+				{
+					int linear = path[a][c] + (path[b][c] - path[a][c]) * (i - a) / (b - a);
+					if( Math.abs( ENCODE[linear] - ENCODE[path[i][c]] ) * 255 > FADE_TOLERANCE )
+						return false;
+				}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the compiled macro commands. The commands are shared and
+	 * must not be modified.
+	 *
+	 * @return The compiled macro commands
+	 */
+	public List<MacroCommand> getCommands()
+	{
+		return this.compiled.getCommands();
+	}
+
+	/**
+	 * Returns the length of the compiled commands (in bytes)
+	 *
+	 * @return The byte length
+	 */
+	public int getLength()
+	{
+		return this.compiled.getLength();
+	}
+
+	/**
+	 * Returns true if the transition uses Fade commands
+	 *
+	 * @return True if faded, false if stepped
+	 */
+	public boolean isFaded()
+	{
+		return this.faded;
+	}
+
+	/**
+	 * Create a macro object that plays the transition. Transitions that fit
+	 * in a single macro are sent as normal macros (and may be cached on the
+	 * robot), longer transitions are streamed. The macro object uses the
+	 * compiled commands as they are instead of compiling them again.
+	 *
+	 * @return A new macro object for the transition
+	 */
+	public MacroObject toMacroObject()
+	{
+		MacroObject mo = new MacroObject( this.compiled );
+		mo.setMode( this.compiled.getLength() <= MacroObject.MAX_TOTAL_COMMAND_LENGTH ? MacroObject.MacroObjectMode.Normal : MacroObject.MacroObjectMode.CachedStreaming );
+		return mo;
+	}
+}
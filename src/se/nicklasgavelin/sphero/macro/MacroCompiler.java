@@ -0,0 +1,762 @@
+package se.nicklasgavelin.sphero.macro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import se.nicklasgavelin.sphero.macro.command.Delay;
+import se.nicklasgavelin.sphero.macro.command.Loop;
+import se.nicklasgavelin.sphero.macro.command.LoopEnd;
+import se.nicklasgavelin.sphero.macro.command.LoopStart;
+import se.nicklasgavelin.sphero.macro.command.RGB;
+import se.nicklasgavelin.sphero.macro.command.RGBSD2;
+import se.nicklasgavelin.sphero.macro.command.Roll;
+import se.nicklasgavelin.sphero.macro.command.RollSD1;
+import se.nicklasgavelin.sphero.macro.command.RollSD1SPD1;
+import se.nicklasgavelin.sphero.macro.command.RollSD1SPD2;
+import se.nicklasgavelin.sphero.macro.command.SD1;
+import se.nicklasgavelin.sphero.macro.command.SD2;
+import se.nicklasgavelin.sphero.macro.command.SPD1;
+import se.nicklasgavelin.sphero.macro.command.SPD2;
+
+/**
+ * Optimizing compiler for macro commands. Rewrites a list of macro
+ * commands into an equivalent list that uses fewer bytes by
+ * <ul>
+ * <li>merging Delay commands into the preceding RGB/Roll command</li>
+ * <li>folding repeated command sequences into loops</li>
+ * <li>hoisting repeated delays into the SD1/SD2 registers and repeated
+ * speeds into the SPD1/SPD2 registers so that the compact RGBSD2, RollSD1,
+ * RollSD1SPD1 and RollSD1SPD2 commands can be used</li>
+ * </ul>
+ *
+ * Register values are never assumed at the start of the compiled macro,
+ * inside loops or after explicit LoopStart/LoopEnd commands, a register
+ * is always loaded before it is used. Compact commands in the input that
+ * read a register that has not been set earlier in the same macro are
+ * left untouched together with the registers they read.
+ */
+public final class MacroCompiler
+{
+	/**
+	 * Maximum length of a folded loop (in bytes). Loops are kept as a single
+	 * command when streaming so they need to fit into a single macro piece.
+	 */
+	public static final int MAX_LOOP_LENGTH = 96;
+
+	// Maximum number of commands in a loop body that are searched for
+	private static final int MAX_LOOP_BODY = 16;
+
+	// Loop start + loop end
+	private static final int LOOP_OVERHEAD = MacroCommand.MACRO_COMMAND.MAC_LOOP_START.getLength() + MacroCommand.MACRO_COMMAND.MAC_LOOP_END.getLength();
+
+	// Registers
+	private static final int SD1_REG = 0, SD2_REG = 1, SPD1_REG = 2, SPD2_REG = 3, REGISTERS = 4, UNKNOWN = -1;
+
+	// Operation kinds
+	private static final int COLOR = 0, ROLL = 1, DELAY = 2, RAW = 3;
+
+	private MacroCompiler()
+	{
+	}
+
+	/**
+	 * Compile the given macro commands
+	 *
+	 * @param commands The commands to compile
+	 *
+	 * @return The compile result
+	 */
+	public static Result compile( Collection<MacroCommand> commands )
+	{
+		int originalLength = 0;
+		for( MacroCommand cmd : commands )
+			originalLength += cmd.getLength();
+
+		int reserved = findReservedRegisters( commands );
+		List<Op> ops = normalize( commands, reserved );
+
+		// Compile every segment between explicit loop commands separately,
+		// segments inside an explicit loop are not folded as the firmware
+		// does not support nested loops
+		List<MacroCommand> out = new ArrayList<>();
+		int[] state = unknownState();
+		List<Op> segment = new ArrayList<>();
+		int depth = 0;
+		for( Op op : ops )
+		{
+			if( op.barrier )
+			{
+				emit( depth > 0 ? new ArrayList<Object>( segment ) : fold( segment ), state, reserved, out );
+				segment.clear();
+
+				out.add( op.raw );
+				state = unknownState();
+				if( op.raw instanceof LoopStart )
+					depth++;
+				else if( op.raw instanceof LoopEnd && depth > 0 )
+					depth--;
+			}
+			else
+				segment.add( op );
+		}
+		emit( depth > 0 ? new ArrayList<Object>( segment ) : fold( segment ), state, reserved, out );
+
+		return new Result( out, originalLength );
+	}
+
+	/**
+	 * Returns a register state where all values are unknown
+	 *
+	 * @return The new register state
+	 */
+	private static int[] unknownState()
+	{
+		int[] state = new int[ REGISTERS ];
+		Arrays.fill( state, UNKNOWN );
+		return state;
+	}
+
+	/**
+	 * Returns a bit mask for a register
+	 *
+	 * @param register The register
+	 *
+	 * @return The register bit
+	 */
+	private static int bit( int register )
+	{
+		return 1 << register;
+	}
+
+	/**
+	 * Returns the registers read by a compact command in the input or 0
+	 * if the command does not read any register
+	 *
+	 * @param cmd The command
+	 *
+	 * @return The registers read by the command (bit mask)
+	 */
+	private static int readRegisters( MacroCommand cmd )
+	{
+		if( cmd instanceof RGBSD2 )
+			return bit( SD2_REG );
+		if( cmd instanceof RollSD1 )
+			return bit( SD1_REG );
+		if( cmd instanceof RollSD1SPD1 )
+			return bit( SD1_REG ) | bit( SPD1_REG );
+		if( cmd instanceof RollSD1SPD2 )
+			return bit( SD1_REG ) | bit( SPD2_REG );
+		return 0;
+	}
+
+	/**
+	 * Returns the register written by a register command in the input or
+	 * -1 if the command does not write any register
+	 *
+	 * @param cmd The command
+	 *
+	 * @return The written register or -1
+	 */
+	private static int writtenRegister( MacroCommand cmd )
+	{
+		if( cmd instanceof SD1 )
+			return SD1_REG;
+		if( cmd instanceof SD2 )
+			return SD2_REG;
+		if( cmd instanceof SPD1 )
+			return SPD1_REG;
+		if( cmd instanceof SPD2 )
+			return SPD2_REG;
+		return UNKNOWN;
+	}
+
+	/**
+	 * Returns true if the command is an explicit loop command that the
+	 * compiler may not move anything across
+	 *
+	 * @param cmd The command
+	 *
+	 * @return True if the command is a barrier
+	 */
+	private static boolean isBarrier( MacroCommand cmd )
+	{
+		return cmd instanceof LoopStart || cmd instanceof LoopEnd || cmd instanceof Loop;
+	}
+
+	/**
+	 * Find the registers that are used by input commands in a way the
+	 * compiler can not resolve. These registers are left to the input
+	 * commands and never used by the compiler.
+	 *
+	 * @param commands The input commands
+	 *
+	 * @return The reserved registers (bit mask)
+	 */
+	private static int findReservedRegisters( Collection<MacroCommand> commands )
+	{
+		int reserved = 0, previous;
+		do
+		{
+			previous = reserved;
+			int known = 0;
+			for( MacroCommand cmd : commands )
+			{
+				if( isBarrier( cmd ) )
+					known = 0;
+				else if( writtenRegister( cmd ) != UNKNOWN )
+					known |= bit( writtenRegister( cmd ) );
+				else
+				{
+					int read = readRegisters( cmd );
+					if( (read & known) != read || (read & reserved) != 0 )
+						reserved |= read;
+				}
+			}
+		}
+		while( reserved != previous );
+
+		return reserved;
+	}
+
+	/**
+	 * Convert the input commands into operations, resolving register reads
+	 * and merging delays
+	 *
+	 * @param commands The input commands
+	 * @param reserved The reserved registers
+	 *
+	 * @return The operations
+	 */
+	private static List<Op> normalize( Collection<MacroCommand> commands, int reserved )
+	{
+		List<Op> ops = new ArrayList<>();
+		int[] delays = unknownState();
+		double[] speeds = new double[ REGISTERS ];
+
+		for( MacroCommand cmd : commands )
+		{
+			Op op;
+			int written = writtenRegister( cmd ), read = readRegisters( cmd );
+
+			if( isBarrier( cmd ) )
+			{
+				Arrays.fill( delays, UNKNOWN );
+				op = Op.raw( cmd, true );
+			}
+			else if( written != UNKNOWN )
+			{
+				if( cmd instanceof SD1 )
+					delays[written] = ((SD1) cmd).getDelay();
+				else if( cmd instanceof SD2 )
+					delays[written] = ((SD2) cmd).getDelay();
+				else if( cmd instanceof SPD1 )
+					speeds[written] = ((SPD1) cmd).getSpeed();
+				else
+					speeds[written] = ((SPD2) cmd).getSpeed();
+
+				// Loads of resolved registers are generated again when needed
+				if( (reserved & bit( written )) == 0 )
+					continue;
+				op = Op.raw( cmd, false );
+			}
+			else if( (read & reserved) != 0 )
+				op = Op.raw( cmd, false );
+			else if( cmd instanceof RGB )
+			{
+				RGB rgb = (RGB) cmd;
+				op = Op.color( rgb.getColorValues(), rgb.getDelay() );
+			}
+			else if( cmd instanceof RGBSD2 )
+				op = Op.color( ((RGBSD2) cmd).getColorValues(), delays[SD2_REG] );
+			else if( cmd instanceof Roll )
+			{
+				Roll roll = (Roll) cmd;
+				op = Op.roll( roll.getSpeed(), roll.getHeading(), roll.getDelay() );
+			}
+			else if( cmd instanceof RollSD1 )
+			{
+				RollSD1 roll = (RollSD1) cmd;
+				op = Op.roll( roll.getSpeed(), roll.getHeading(), delays[SD1_REG] );
+			}
+			else if( cmd instanceof RollSD1SPD1 )
+				op = Op.roll( speeds[SPD1_REG], ((RollSD1SPD1) cmd).getHeading(), delays[SD1_REG] );
+			else if( cmd instanceof RollSD1SPD2 )
+				op = Op.roll( speeds[SPD2_REG], ((RollSD1SPD2) cmd).getHeading(), delays[SD1_REG] );
+			else if( cmd instanceof Delay )
+			{
+				int delay = ((Delay) cmd).getDelay();
+				Op last = ops.isEmpty() ? null : ops.get( ops.size() - 1 );
+
+				// Merge the delay into the previous command if possible
+				if( last != null && last.kind != RAW && last.delay + delay <= Delay.MAX_DELAY )
+				{
+					last.delay += delay;
+					continue;
+				}
+				op = Op.delay( delay );
+			}
+			else
+				op = Op.raw( cmd, false );
+
+			ops.add( op );
+		}
+
+		return ops;
+	}
+
+	/**
+	 * Fold repeated sequences of operations into loops
+	 *
+	 * @param ops The operations
+	 *
+	 * @return A list of operations and loops
+	 */
+	private static List<Object> fold( List<Op> ops )
+	{
+		List<Object> items = new ArrayList<>();
+		int n = ops.size();
+
+		for( int i = 0; i < n; )
+		{
+			int bestLength = 0, bestCount = 0, bestBenefit = 0;
+
+			for( int length = 1; length <= MAX_LOOP_BODY && i + 2 * length <= n; length++ )
+			{
+				int cost = 0;
+				for( int j = i; j < i + length; j++ )
+					cost += ops.get( j ).plainCost();
+				if( cost + LOOP_OVERHEAD > MAX_LOOP_LENGTH )
+					break;
+
+				int count = 1;
+				while( count < LoopStart.MAX_LOOP_VALUE && i + (count + 1) * length <= n && sameSequence( ops, i, i + count * length, length ) )
+					count++;
+
+				int benefit = (count - 1) * cost - LOOP_OVERHEAD;
+				if( count > 1 && benefit > bestBenefit )
+				{
+					bestLength = length;
+					bestCount = count;
+					bestBenefit = benefit;
+				}
+			}
+
+			if( bestCount > 1 )
+			{
+				items.add( new LoopItem( bestCount, ops.subList( i, i + bestLength ) ) );
+				i += bestCount * bestLength;
+			}
+			else
+				items.add( ops.get( i++ ) );
+		}
+
+		return items;
+	}
+
+	/**
+	 * Check if two sequences of operations are equal
+	 *
+	 * @param ops The operations
+	 * @param a The start of the first sequence
+	 * @param b The start of the second sequence
+	 * @param length The sequence length
+	 *
+	 * @return True if the sequences are equal
+	 */
+	private static boolean sameSequence( List<Op> ops, int a, int b, int length )
+	{
+		for( int i = 0; i < length; i++ )
+			if( !ops.get( a + i ).sameAs( ops.get( b + i ) ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Emit macro commands for the given operations and loops
+	 *
+	 * @param items The operations and loops
+	 * @param state The register state, updated with the emitted loads
+	 * @param reserved The reserved registers
+	 * @param out The list to add the commands to
+	 */
+	private static void emit( List<Object> items, int[] state, int reserved, List<MacroCommand> out )
+	{
+		for( int i = 0; i < items.size(); i++ )
+		{
+			Object item = items.get( i );
+			if( item instanceof LoopItem )
+			{
+				LoopItem loop = (LoopItem) item;
+
+				// Every iteration has to load the registers it uses
+				int[] bodyState = unknownState();
+				List<MacroCommand> body = new ArrayList<>();
+				emit( new ArrayList<Object>( loop.body ), bodyState, reserved, body );
+				out.add( new Loop( loop.count, body ) );
+
+				for( int r = 0; r < REGISTERS; r++ )
+					if( bodyState[r] != UNKNOWN )
+						state[r] = bodyState[r];
+				continue;
+			}
+
+			Op op = (Op) item;
+			switch( op.kind )
+			{
+				case COLOR:
+					emitColor( items, i, op, state, reserved, out );
+					break;
+				case ROLL:
+					emitRoll( items, i, op, state, reserved, out );
+					break;
+				case DELAY:
+					out.add( new Delay( op.delay ) );
+					break;
+				default:
+					out.add( op.raw );
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Emit a color operation
+	 */
+	private static void emitColor( List<Object> items, int index, Op op, int[] state, int reserved, List<MacroCommand> out )
+	{
+		if( (reserved & bit( SD2_REG )) == 0 )
+		{
+			if( state[SD2_REG] != op.delay && delaySavings( items, index, COLOR, op.delay, state, reserved ) > MacroCommand.MACRO_COMMAND.MAC_SD2.getLength() )
+			{
+				out.add( new SD2( op.delay ) );
+				state[SD2_REG] = op.delay;
+			}
+
+			if( state[SD2_REG] == op.delay )
+			{
+				out.add( new RGBSD2( op.red, op.green, op.blue ) );
+				return;
+			}
+		}
+
+		if( op.delay <= RGB.MAX_DELAY )
+			out.add( new RGB( op.red, op.green, op.blue, op.delay ) );
+		else
+		{
+			out.add( new RGB( op.red, op.green, op.blue, 0 ) );
+			out.add( new Delay( op.delay ) );
+		}
+	}
+
+	/**
+	 * Emit a roll operation
+	 */
+	private static void emitRoll( List<Object> items, int index, Op op, int[] state, int reserved, List<MacroCommand> out )
+	{
+		if( (reserved & bit( SD1_REG )) == 0 )
+		{
+			if( state[SD1_REG] != op.delay && delaySavings( items, index, ROLL, op.delay, state, reserved ) > MacroCommand.MACRO_COMMAND.MAC_SD1.getLength() )
+			{
+				out.add( new SD1( op.delay ) );
+				state[SD1_REG] = op.delay;
+			}
+
+			if( state[SD1_REG] == op.delay )
+			{
+				int register = speedRegister( items, index, op, state, reserved, out );
+				if( register == SPD1_REG )
+					out.add( new RollSD1SPD1( op.heading ) );
+				else if( register == SPD2_REG )
+					out.add( new RollSD1SPD2( op.heading ) );
+				else
+					out.add( new RollSD1( op.speed, op.heading ) );
+				return;
+			}
+		}
+
+		if( op.delay <= Roll.MAX_DELAY )
+			out.add( new Roll( op.speed, op.heading, op.delay ) );
+		else
+		{
+			out.add( new Roll( op.speed, op.heading, 0 ) );
+			out.add( new Delay( op.delay ) );
+		}
+	}
+
+	/**
+	 * Find (or load) the speed register to use for a roll operation
+	 *
+	 * @return The speed register to use or -1 if no register should be used
+	 */
+	private static int speedRegister( List<Object> items, int index, Op op, int[] state, int reserved, List<MacroCommand> out )
+	{
+		for( int r = SPD1_REG; r <= SPD2_REG; r++ )
+			if( (reserved & bit( r )) == 0 && state[r] == op.speedValue )
+				return r;
+
+		// Each use of a speed register saves a single byte
+		int uses = speedUses( items, index, op.delay, op.speedValue );
+		if( uses <= MacroCommand.MACRO_COMMAND.MAC_SPD1.getLength() )
+			return UNKNOWN;
+
+		// Replace the register whose value is needed again last
+		int target = UNKNOWN, targetUses = Integer.MAX_VALUE;
+		for( int r = SPD1_REG; r <= SPD2_REG; r++ )
+		{
+			if( (reserved & bit( r )) != 0 )
+				continue;
+
+			int registerUses = state[r] == UNKNOWN ? 0 : speedUses( items, index, op.delay, state[r] );
+			if( registerUses < targetUses )
+			{
+				target = r;
+				targetUses = registerUses;
+			}
+		}
+
+		if( target == SPD1_REG )
+			out.add( new SPD1( op.speed ) );
+		else if( target == SPD2_REG )
+			out.add( new SPD2( op.speed ) );
+		else
+			return UNKNOWN;
+
+		state[target] = op.speedValue;
+		return target;
+	}
+
+	/**
+	 * Calculate the number of bytes saved by loading a delay register with
+	 * the given delay at the given position. Stops at the first command of
+	 * the same kind with another delay or at the next loop.
+	 */
+	private static int delaySavings( List<Object> items, int index, int kind, int delay, int[] state, int reserved )
+	{
+		int savings = 0;
+		for( int i = index; i < items.size() && items.get( i ) instanceof Op; i++ )
+		{
+			Op op = (Op) items.get( i );
+			if( op.kind != kind )
+				continue;
+			if( op.delay != delay )
+				break;
+
+			savings += op.plainCost() - compactLength( items, i, op, state, reserved );
+		}
+
+		return savings;
+	}
+
+	/**
+	 * Returns the length of the compact form of a color or roll operation
+	 * that reads its delay from a register. Rolls whose speed is (or will
+	 * be) kept in a speed register use the shorter RollSD1SPD1/RollSD1SPD2
+	 * form.
+	 */
+	private static int compactLength( List<Object> items, int index, Op op, int[] state, int reserved )
+	{
+		if( op.kind == COLOR )
+			return MacroCommand.MACRO_COMMAND.MAC_RGB_SD2.getLength();
+
+		int speedRegisters = bit( SPD1_REG ) | bit( SPD2_REG );
+		for( int r = SPD1_REG; r <= SPD2_REG; r++ )
+			if( (reserved & bit( r )) == 0 && state[r] == op.speedValue )
+				return MacroCommand.MACRO_COMMAND.MAC_ROLL_SPD1_SD1.getLength();
+
+		if( (reserved & speedRegisters) != speedRegisters && speedUses( items, index, op.delay, op.speedValue ) > MacroCommand.MACRO_COMMAND.MAC_SPD1.getLength() )
+			return MacroCommand.MACRO_COMMAND.MAC_ROLL_SPD1_SD1.getLength();
+
+		return MacroCommand.MACRO_COMMAND.MAC_ROLL_SD1.getLength();
+	}
+
+	/**
+	 * Count the upcoming roll operations with the given delay and speed,
+	 * stops at the first roll with another delay or at the next loop
+	 */
+	private static int speedUses( List<Object> items, int index, int delay, int speed )
+	{
+		int uses = 0;
+		for( int i = index; i < items.size() && items.get( i ) instanceof Op; i++ )
+		{
+			Op op = (Op) items.get( i );
+			if( op.kind != ROLL )
+				continue;
+			if( op.delay != delay )
+				break;
+			if( op.speedValue == speed )
+				uses++;
+		}
+
+		return uses;
+	}
+
+	/**
+	 * A single normalized macro operation
+	 */
+	private static final class Op
+	{
+		private int kind, red, green, blue, heading, delay, speedValue;
+		private double speed;
+		private MacroCommand raw;
+		private byte[] rawBytes;
+		private boolean barrier;
+
+		private static Op color( int[] rgb, int delay )
+		{
+			Op op = new Op();
+			op.kind = COLOR;
+			op.red = rgb[0];
+			op.green = rgb[1];
+			op.blue = rgb[2];
+			op.delay = delay;
+			return op;
+		}
+
+		private static Op roll( double speed, int heading, int delay )
+		{
+			Op op = new Op();
+			op.kind = ROLL;
+			op.speed = speed;
+			op.speedValue = (int) (speed * 255.0D);
+			op.heading = heading;
+			op.delay = delay;
+			return op;
+		}
+
+		private static Op delay( int delay )
+		{
+			Op op = new Op();
+			op.kind = DELAY;
+			op.delay = delay;
+			return op;
+		}
+
+		private static Op raw( MacroCommand cmd, boolean barrier )
+		{
+			Op op = new Op();
+			op.kind = RAW;
+			op.raw = cmd;
+			op.rawBytes = cmd.getByteRepresentation();
+			op.barrier = barrier;
+			return op;
+		}
+
+		/**
+		 * Returns the length of the operation without any register use
+		 *
+		 * @return The uncompressed length
+		 */
+		private int plainCost()
+		{
+			switch( kind )
+			{
+				case COLOR:
+				case ROLL:
+					// Long delays need an extra delay command
+					return delay <= RGB.MAX_DELAY ? 5 : 8;
+				case DELAY:
+					return 3;
+				default:
+					return raw.getLength();
+			}
+		}
+
+		/**
+		 * Check if two operations produce the same result
+		 *
+		 * @param o The other operation
+		 *
+		 * @return True if the operations are equal
+		 */
+		private boolean sameAs( Op o )
+		{
+			if( kind != o.kind || delay != o.delay )
+				return false;
+
+			switch( kind )
+			{
+				case COLOR:
+					return red == o.red && green == o.green && blue == o.blue;
+				case ROLL:
+					return speedValue == o.speedValue && heading == o.heading;
+				case DELAY:
+					return true;
+				default:
+					return Arrays.equals( rawBytes, o.rawBytes );
+			}
+		}
+	}
+
+	/**
+	 * A folded loop of operations
+	 */
+	private static final class LoopItem
+	{
+		private final int count;
+		private final List<Op> body;
+
+		private LoopItem( int count, List<Op> body )
+		{
+			this.count = count;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * The result of a macro compilation
+	 */
+	public static final class Result
+	{
+		private final List<MacroCommand> commands;
+		private final int originalLength, length;
+
+		private Result( List<MacroCommand> commands, int originalLength )
+		{
+			this.commands = Collections.unmodifiableList( commands );
+			this.originalLength = originalLength;
+
+			int total = 0;
+			for( MacroCommand cmd : commands )
+				total += cmd.getLength();
+			this.length = total;
+		}
+
+		/**
+		 * Returns the compiled commands
+		 *
+		 * @return The compiled commands
+		 */
+		public List<MacroCommand> getCommands()
+		{
+			return this.commands;
+		}
+
+		/**
+		 * Returns the length of the input commands (in bytes)
+		 *
+		 * @return The original length
+		 */
+		public int getOriginalLength()
+		{
+			return this.originalLength;
+		}
+
+		/**
+		 * Returns the length of the compiled commands (in bytes)
+		 *
+		 * @return The compiled length
+		 */
+		public int getLength()
+		{
+			return this.length;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "MacroCompiler.Result{commands=" + commands.size() + ", originalLength=" + originalLength + ", length=" + length + '}';
+		}
+	}
+}
@@ -3,6 +3,7 @@ package se.nicklasgavelin.sphero.macro;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import se.nicklasgavelin.log.Logging;
 import se.nicklasgavelin.sphero.macro.MacroCommand.MACRO_COMMAND;
 import se.nicklasgavelin.sphero.macro.command.Emit;
 import se.nicklasgavelin.util.ByteArrayBuffer;
@@ -18,9 +19,13 @@ public class MacroObject
 {
 	private Collection<MacroCommand> commands;
 	private MacroObjectMode mode = MacroObjectMode.Normal;
+	// The commands if they are already compiled, null otherwise
+	private MacroCompiler.Result compiled;
 
-	private static final int MAX_MACRO_LENGTH = 256,
-			MAX_TOTAL_COMMAND_LENGTH = 240; // x | (248);
+	private static final int MAX_MACRO_LENGTH = 256;
+
+	// Maximum length of the commands in a single (non streamed) macro
+	static final int MAX_TOTAL_COMMAND_LENGTH = 240; // x | (248);
 
 	public MacroObject()
 	{
@@ -29,7 +34,19 @@ public class MacroObject
 
 	public MacroObject( Collection<MacroCommand> _commands )
 	{
-        this.commands.addAll(_commands);
+        this.commands = new ArrayList<>(_commands);
+	}
+
+	/**
+	 * Create a macro object from commands that are already compiled, the
+	 * commands are not compiled again unless more commands are added
+	 * 
+	 * @param _compiled The compiled commands
+	 */
+	MacroObject( MacroCompiler.Result _compiled )
+	{
+		this( _compiled.getCommands() );
+		this.compiled = _compiled;
 	}
 
 	/**
@@ -50,24 +67,39 @@ public class MacroObject
 	public void addCommand( MacroCommand command )
 	{
         this.commands.add(command);
+		this.compiled = null;
+	}
+
+	/**
+	 * Compile the stored commands into an equivalent, smaller, set of
+	 * commands (see MacroCompiler)
+	 * 
+	 * @return The compile result
+	 */
+	public MacroCompiler.Result compile()
+	{
+		if( this.compiled != null )
+			return this.compiled;
+		return MacroCompiler.compile( this.commands );
 	}
 
 	/**
 	 * Generate the data for all the commands,
-	 * the maximum size of the macro is 256 and a Roll stop command will be
-	 * appended
-	 * if the size of the concatenated commands exceed 248 bytes
+	 * the maximum size of the macro is 256. The commands are compiled
+	 * before the data is generated, commands that do not fit after
+	 * compilation are dropped.
 	 * 
 	 * @return The macro commands as a byte array
 	 */
 	public byte[] generateMacroData()
 	{
-		// Create a buffer
-		ByteArrayBuffer data = new ByteArrayBuffer(MAX_MACRO_LENGTH);
+		// Take a buffer from the pool of the current thread
+		ByteArrayBuffer data = ByteArrayBuffer.acquire(MAX_MACRO_LENGTH);
 		int currentLength = 0;
 
-		// Go through all our commands that we got
-        for (MacroCommand command : this.commands) {
+		// Go through all our compiled commands
+		MacroCompiler.Result compiled = compile();
+        for (MacroCommand command : compiled.getCommands()) {
             // Fetch the next command
             // Check if we still got space left
             if (command.getLength() + currentLength > MAX_TOTAL_COMMAND_LENGTH) {
@@ -76,6 +108,7 @@ public class MacroObject
                 // Roll stop = new Roll( Double.valueOf( 0.0D ), Integer.valueOf( 0 ),
                 // Integer.valueOf( 0 ) );
                 // data.append( stop.getByteRepresentation(), 0, stop.getLength() );
+                Logging.warn( "Macro too long (" + compiled.getLength() + " bytes), dropping commands after byte " + currentLength );
                 break;
             }
 
@@ -91,8 +124,10 @@ public class MacroObject
 		data.append( MACRO_COMMAND.MAC_END.getValue() );
 
 		// Return the created macro data
+		byte[] macro = data.toByteArray();
+		data.release();
 
-		return data.toByteArray();
+		return macro;
 	}
 
 	/**
@@ -12,8 +12,19 @@ import se.nicklasgavelin.util.Value;
  */
 public class Emit extends MacroCommand
 {
-	private static final int DEFAULT_IDENTIFIER = 1, MAX_IDENTIFIER = 255,
-			MIN_IDENTIFIER = 0;
+	private static final int DEFAULT_IDENTIFIER = 1, MIN_IDENTIFIER = 0;
+
+	/**
+	 * Highest identifier
+	 */
+	public static final int MAX_IDENTIFIER = 255;
+
+	/**
+	 * Identifiers from this value up to MAX_IDENTIFIER are used to mark the
+	 * end of streamed macro pieces and should not be used in macros that
+	 * are streamed
+	 */
+	public static final int FIRST_RESERVED_IDENTIFIER = 192;
 	private Integer identifier = DEFAULT_IDENTIFIER;
 
 	// public Emit( byte[] data )
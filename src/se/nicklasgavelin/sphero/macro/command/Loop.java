@@ -0,0 +1,83 @@
+package se.nicklasgavelin.sphero.macro.command;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import se.nicklasgavelin.sphero.macro.MacroCommand;
+import se.nicklasgavelin.util.ByteArrayBuffer;
+
+/**
+ * A complete macro loop (LoopStart, body and LoopEnd) kept together as a
+ * single command so that it is never split when a macro is divided into
+ * several pieces for streaming
+ */
+public class Loop extends MacroCommand
+{
+	private final LoopStart start;
+	private final List<MacroCommand> body;
+	private final int length;
+
+	/**
+	 * Create a loop that repeats the given body a number of times
+	 *
+	 * @param count The number of times to run the body
+	 *            (LoopStart.MIN_LOOP_VALUE - LoopStart.MAX_LOOP_VALUE)
+	 * @param body The commands to repeat
+	 */
+	public Loop( int count, Collection<MacroCommand> body )
+	{
+		super( MACRO_COMMAND.MAC_LOOP_START );
+		this.start = new LoopStart( count );
+		this.body = new ArrayList<>( body );
+
+		int bodyLength = 0;
+		for( MacroCommand cmd : this.body )
+			bodyLength += cmd.getLength();
+		this.length = this.start.getLength() + bodyLength + MACRO_COMMAND.MAC_LOOP_END.getLength();
+	}
+
+	/**
+	 * Returns the number of times the body is run
+	 *
+	 * @return The loop count
+	 */
+	public int getCount()
+	{
+		return this.start.getCount();
+	}
+
+	/**
+	 * Returns the repeated commands
+	 *
+	 * @return The loop body
+	 */
+	public List<MacroCommand> getBody()
+	{
+		return Collections.unmodifiableList( this.body );
+	}
+
+	/**
+	 * Returns the total length of the loop, including the loop start and
+	 * end commands
+	 *
+	 * @return The byte length of the loop
+	 */
+	@Override
+	public int getLength()
+	{
+		return this.length;
+	}
+
+	@Override
+	public byte[] getByteRepresentation()
+	{
+		ByteArrayBuffer bytes = new ByteArrayBuffer( getLength() );
+		bytes.append( this.start.getByteRepresentation() );
+		for( MacroCommand cmd : this.body )
+			bytes.append( cmd.getByteRepresentation() );
+		bytes.append( MACRO_COMMAND.MAC_LOOP_END.getValue() );
+
+		return bytes.toByteArray();
+	}
+}
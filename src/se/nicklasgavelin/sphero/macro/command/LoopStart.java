@@ -12,7 +12,7 @@ import se.nicklasgavelin.util.Value;
  * @author Sebastian Garn, sgarn@cs.tu-berlin.de, Technical University of Berlin
  */
 public class LoopStart extends MacroCommand {
-    public static final int MIN_LOOP_VALUE = 1, MAX_LOOP_VALUE = 65535;
+    public static final int MIN_LOOP_VALUE = 1, MAX_LOOP_VALUE = 255;
     private int mCount;
 
 	public LoopStart(int count) {
@@ -13,7 +13,7 @@ import se.nicklasgavelin.util.Value;
 public class RollSD1SPD1 extends MacroCommand
 {
 	private int heading;
-	public static final int MIN_HEADING = 0, MAX_HEADING = 0;
+	public static final int MIN_HEADING = 0, MAX_HEADING = 359;
 
 	// public RollSD1SPD1( byte[] data )
 	// {
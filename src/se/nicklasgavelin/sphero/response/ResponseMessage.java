@@ -341,10 +341,21 @@ public class ResponseMessage
 		 */
 		public byte[] getPacketPayload()
 		{
-			byte[] d = new byte[this.payloadLength];
-			System.arraycopy(this.data.toByteArray(), this.payloadStart, d, 0, this.payloadLength);
+			return this.data.toByteArray( this.payloadStart, this.payloadLength );
+		}
 
-			return d;
+		/**
+		 * Returns a single byte of the packet data without copying the data
+		 * 
+		 * @param index The index in the packet data
+		 * 
+		 * @return The byte at the given index
+		 */
+		public byte getPayloadByte( int index )
+		{
+			if( index < 0 || index >= this.payloadLength )
+				throw new IndexOutOfBoundsException( "Index: " + index + ", length: " + this.payloadLength );
+			return this.data.byteAt( this.payloadStart + index );
 		}
 
 		/**
@@ -442,7 +453,7 @@ public class ResponseMessage
 			{
 				RESPONSE_TYPE[] res = RESPONSE_TYPE.values();
 				for( RESPONSE_TYPE r : res )
-					if( !r.isUnkown() && r.getHeaderType()[0] == i && r.getHeaderType()[1] == j)
+					if( !r.isUnkown() && r.first == i && r.second == j )
 						return r;
 				return UNKOWN;
 			}
@@ -40,6 +40,67 @@ public class DataResponse extends InformationResponseMessage
 	 */
 	public int getSensorDataLength()
 	{
-		return this.getPacketPayload().length;
+		return this.getMessageHeader().getPayloadLength();
+	}
+
+	/**
+	 * Returns the length of a single sensor frame for the given streaming
+	 * mask. Every channel in the mask is sent as a signed 16 bit value.
+	 * 
+	 * @param mask The sensor mask the data streaming was set up with
+	 * 
+	 * @return The frame length in bytes
+	 */
+	public static int getFrameLength( int mask )
+	{
+		return 2 * Integer.bitCount( mask );
+	}
+
+	/**
+	 * Returns the byte offset of a channel inside a sensor frame or -1 if
+	 * the channel is not part of the mask. Channels are sent in the order of
+	 * their mask bit, starting with the most significant bit.
+	 * 
+	 * @param mask The sensor mask the data streaming was set up with
+	 * @param channel The single channel mask to look up (one of the
+	 *            SetDataStreamingCommand.DATA_STREAMING_MASKS values)
+	 * 
+	 * @return The byte offset of the channel or -1 if not streamed
+	 */
+	public static int getChannelOffset( int mask, int channel )
+	{
+		if( (mask & channel) == 0 )
+			return -1;
+
+		// Count the channels that are sent before the given one
+		return 2 * Integer.bitCount( mask & ~( (channel << 1) - 1 ) );
+	}
+
+	/**
+	 * Returns the signed 16 bit sensor value located at the given offset
+	 * 
+	 * @param data The sensor data (as returned by getSensorData)
+	 * @param offset The byte offset of the value
+	 * 
+	 * @return The sensor value
+	 */
+	public static int getSensorValue( byte[] data, int offset )
+	{
+		return (short) ( (data[offset] << 8) | (data[offset + 1] & 0xFF) );
+	}
+
+	/**
+	 * Returns the signed 16 bit sensor value located at the given offset
+	 * of the sensor data. Reads the received packet directly so nothing is
+	 * allocated, prefer this over getSensorData for every sample
+	 * 
+	 * @param offset The byte offset of the value
+	 * 
+	 * @return The sensor value
+	 */
+	public int getSensorValue( int offset )
+	{
+		ResponseHeader rh = this.getMessageHeader();
+		return (short) ( (rh.getPayloadByte( offset ) << 8) | (rh.getPayloadByte( offset + 1 ) & 0xFF) );
 	}
 }
@@ -1,16 +1,39 @@
 package se.nicklasgavelin.util;
 
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
 /**
  * A byte array buffer that stores bytes and gives the ability to append new
  * bytes easily. Based upon the Apache library ByteArrayBuffer.
  * 
+ * Bytes are appended at the end of the buffer (the write cursor) and may be
+ * read from the start with the read methods (the read cursor). A buffer is
+ * either fixed, in which case appending more than the capacity throws a
+ * BufferOverflowException, or growable. Slices and ByteBuffer views share
+ * the underlying array instead of copying it.
+ * 
+ * Short lived buffers may be taken from a per thread pool with acquire and
+ * given back with release.
+ * 
  * @author Nicklas Gavelin, nicklas.gavelin@gmail.com, Luleå University of
  *         Technology
  */
 public class ByteArrayBuffer
 {
+	// Pooled buffers larger than this are not kept
+	private static final int MAX_POOLED_CAPACITY = 4096;
+	private static final ThreadLocal<ByteArrayBuffer> pool = ThreadLocal.withInitial( () -> new ByteArrayBuffer( 256, true, true ) );
+
 	private byte[] buffer;
-	private int length;
+	// Start of the buffer in the array (non zero for slices)
+	private int offset;
+	private int length, readPosition;
+	private final boolean growable, pooled;
+	// True while the array is shared with a slice or a wrapped array
+	private boolean view;
+	private boolean inUse;
 
 	/**
 	 * Create a byte array buffer with a given capacity.
@@ -20,11 +43,112 @@ public class ByteArrayBuffer
 	 */
 	public ByteArrayBuffer( int capacity )
 	{
-		if( capacity == 0 )
+		this( capacity, false );
+	}
+
+	/**
+	 * Create a byte array buffer with a given (initial) capacity
+	 * 
+	 * @param capacity The capacity of the buffer
+	 * @param growable True if the buffer grows when the capacity is reached
+	 */
+	public ByteArrayBuffer( int capacity, boolean growable )
+	{
+		this( capacity, growable, false );
+	}
+
+	private ByteArrayBuffer( int capacity, boolean growable, boolean pooled )
+	{
+		if( capacity <= 0 )
 			throw new IllegalCapacityException();
 
         this.buffer = new byte[ capacity ];
-        this.length = 0;
+		this.growable = growable;
+		this.pooled = pooled;
+	}
+
+	private ByteArrayBuffer( byte[] buffer, int offset, int length )
+	{
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+		this.growable = false;
+		this.pooled = false;
+		this.view = true;
+	}
+
+	/**
+	 * Create a buffer that contains the given part of an array. The array is
+	 * not copied, changes to the array are visible in the buffer.
+	 * 
+	 * @param data The array
+	 * @param offset The start of the content
+	 * @param length The length of the content
+	 * 
+	 * @return A full buffer with the given content
+	 */
+	public static ByteArrayBuffer wrap( byte[] data, int offset, int length )
+	{
+		if( offset < 0 || length < 0 || offset + length > data.length )
+			throw new IndexOutOfBoundsException();
+		return new ByteArrayBuffer( data, offset, length );
+	}
+
+	/**
+	 * Take an empty growable buffer from the pool of the current thread.
+	 * The buffer should be given back with release when it's no longer used,
+	 * the content of the buffer (and any array returned by buffer) may be
+	 * overwritten after that.
+	 * 
+	 * @param capacity The minimum capacity needed
+	 * 
+	 * @return An empty buffer
+	 */
+	public static ByteArrayBuffer acquire( int capacity )
+	{
+		ByteArrayBuffer b = pool.get();
+
+		// Already taken further up the stack
+		if( b.inUse )
+			return new ByteArrayBuffer( capacity, true );
+
+		b.inUse = true;
+		b.clear();
+		b.ensureCapacity( capacity );
+		return b;
+	}
+
+	/**
+	 * Give a buffer taken with acquire back to the pool. Does nothing for
+	 * buffers that were not taken from the pool.
+	 */
+	public void release()
+	{
+		if( !this.pooled )
+			return;
+
+		this.inUse = false;
+		if( this.buffer.length > MAX_POOLED_CAPACITY )
+			this.buffer = new byte[ MAX_POOLED_CAPACITY ];
+	}
+
+	/**
+	 * Make sure that the buffer can hold the given number of bytes in total
+	 * 
+	 * @param capacity The capacity needed
+	 * 
+	 * @throws BufferOverflowException If the buffer isn't growable and too
+	 *             small
+	 */
+	private void ensureCapacity( int capacity )
+	{
+		if( capacity <= capacity() )
+			return;
+
+		if( !this.growable )
+			throw new BufferOverflowException();
+
+		setCapacity( Math.max( capacity, 2 * capacity() ) );
 	}
 
 	/**
@@ -46,9 +170,7 @@ public class ByteArrayBuffer
 	 */
 	public ByteArrayBuffer append( byte... b )
 	{
-        for (byte aB : b) this.append(aB);
-
-		return this;
+		return this.append( b, 0, b.length );
 	}
 
 	/**
@@ -58,9 +180,8 @@ public class ByteArrayBuffer
 	 */
 	public ByteArrayBuffer append( byte b )
 	{
-		// Check if we have any more space to use
-		if(this.length < this.buffer.length )
-            this.buffer[this.length++] = b;
+		ensureCapacity( this.length + 1 );
+		this.buffer[this.offset + this.length++] = b;
 
 		return this;
 	}
@@ -75,42 +196,165 @@ public class ByteArrayBuffer
 	 */
 	public ByteArrayBuffer append( byte[] b, int offset, int length )
 	{
-		for( int i = offset; i < length + offset; i++ )
-            this.append( b[i] );
+		ensureCapacity( this.length + length );
+		System.arraycopy( b, offset, this.buffer, this.offset + this.length, length );
+		this.length += length;
 
 		return this;
 	}
 
 	/**
-	 * Returns the reference to the underlying byte array
+	 * Append the remaining bytes of a ByteBuffer, the position of the
+	 * ByteBuffer is moved to its limit
+	 * 
+	 * @param b The bytes to append
+	 */
+	public ByteArrayBuffer append( ByteBuffer b )
+	{
+		int n = b.remaining();
+		ensureCapacity( this.length + n );
+		b.get( this.buffer, this.offset + this.length, n );
+		this.length += n;
+
+		return this;
+	}
+
+	/**
+	 * Read the next byte
+	 * 
+	 * @return The byte at the read cursor
+	 * 
+	 * @throws BufferUnderflowException If all bytes have been read
+	 */
+	public byte read()
+	{
+		if( this.readPosition >= this.length )
+			throw new BufferUnderflowException();
+		return this.buffer[this.offset + this.readPosition++];
+	}
+
+	/**
+	 * Read bytes into an array
+	 * 
+	 * @param b The array to read into
+	 * @param offset The index in the array to start at
+	 * @param length The number of bytes to read
+	 * 
+	 * @throws BufferUnderflowException If less than length bytes remain
+	 */
+	public void read( byte[] b, int offset, int length )
+	{
+		if( length > remaining() )
+			throw new BufferUnderflowException();
+		System.arraycopy( this.buffer, this.offset + this.readPosition, b, offset, length );
+		this.readPosition += length;
+	}
+
+	/**
+	 * Skip bytes without reading them
+	 * 
+	 * @param n The number of bytes to skip (at most remaining)
+	 */
+	public void skip( int n )
+	{
+		this.readPosition = Math.min( this.length, this.readPosition + Math.max( 0, n ) );
+	}
+
+	/**
+	 * Returns the number of bytes that have not been read
+	 * 
+	 * @return The number of unread bytes
+	 */
+	public int remaining()
+	{
+		return this.length - this.readPosition;
+	}
+
+	/**
+	 * Returns the position of the read cursor
+	 * 
+	 * @return The index of the next byte to read
+	 */
+	public int readPosition()
+	{
+		return this.readPosition;
+	}
+
+	/**
+	 * Remove the bytes that have been read, the unread bytes are moved to
+	 * the start of the buffer
+	 */
+	public ByteArrayBuffer compact()
+	{
+		int n = remaining();
+		System.arraycopy( this.buffer, this.offset + this.readPosition, this.buffer, this.offset, n );
+		this.length = n;
+		this.readPosition = 0;
+
+		return this;
+	}
+
+	/**
+	 * Returns the reference to the underlying byte array. The content starts
+	 * at arrayOffset.
 	 */
 	public byte[] buffer()
 	{
 		return this.buffer;
 	}
 
+	/**
+	 * Returns the index in the underlying byte array where the content of
+	 * the buffer starts (0 except for slices)
+	 */
+	public int arrayOffset()
+	{
+		return this.offset;
+	}
+
 	/**
 	 * Returns the converted buffer as a byte array
 	 */
 	public byte[] toByteArray()
 	{
-		// Create a new byte array with our current length
-		byte[] ret = new byte[this.length];
+		return toByteArray( 0, this.length );
+	}
 
-		// Copy our values to our new correctly sized array
-		System.arraycopy(this.buffer, 0, ret, 0, this.length);
+	/**
+	 * Returns a part of the buffer that shares the underlying array. The
+	 * slice is full and not growable.
+	 * 
+	 * @param offset The offset to start at
+	 * @param length The length of the slice
+	 * 
+	 * @return The slice
+	 */
+	public ByteArrayBuffer slice( int offset, int length )
+	{
+		if( offset < 0 || length < 0 || offset + length > this.length )
+			throw new IndexOutOfBoundsException();
+		return new ByteArrayBuffer( this.buffer, this.offset + offset, length );
+	}
 
-		// Return the newly created array
-		return ret;
+	/**
+	 * Returns a ByteBuffer view of the unread content. The view shares the
+	 * underlying array.
+	 * 
+	 * @return A ByteBuffer positioned at the read cursor
+	 */
+	public ByteBuffer asByteBuffer()
+	{
+		return ByteBuffer.wrap( this.buffer, this.offset + this.readPosition, remaining() ).slice();
 	}
 
 	/**
 	 * Clear the data in the buffer,
-	 * will only set the length to 0
+	 * will only set the length (and the read cursor) to 0
 	 */
 	public ByteArrayBuffer clear()
 	{
         this.length = 0;
+		this.readPosition = 0;
 
 		return this;
 	}
@@ -120,12 +364,15 @@ public class ByteArrayBuffer
 	 * 
 	 * @param index The index to return
 	 * 
-	 * @return The byte at the given index (null if the index is outside the
-	 *         available range)
+	 * @return The byte at the given index
+	 * 
+	 * @throws IndexOutOfBoundsException If the index is outside the content
 	 */
 	public byte byteAt( int index )
 	{
-		return index < this.length ? this.buffer[index] : null;
+		if( index < 0 || index >= this.length )
+			throw new IndexOutOfBoundsException( "Index: " + index + ", length: " + this.length );
+		return this.buffer[this.offset + index];
 	}
 
 	/**
@@ -137,10 +384,11 @@ public class ByteArrayBuffer
 	public ByteArrayBuffer clone()
 	{
 		// Create a buffer with the same capacity
-		ByteArrayBuffer clone = new ByteArrayBuffer(this.buffer.length );
+		ByteArrayBuffer clone = new ByteArrayBuffer( capacity(), this.growable );
 
 		// Copy our current data
-		clone.append(this.toByteArray() );
+		clone.append( this.buffer, this.offset, this.length );
+		clone.readPosition = this.readPosition;
 
 		// Return the clone
 		return clone;
@@ -156,8 +404,11 @@ public class ByteArrayBuffer
 	 */
 	public byte[] toByteArray( int offset, int length )
 	{
+		if( offset < 0 || offset + length > capacity() )
+			throw new IndexOutOfBoundsException();
+
 		byte[] ret = new byte[ length ];
-		System.arraycopy(this.buffer, offset, ret, 0, length );
+		System.arraycopy(this.buffer, this.offset + offset, ret, 0, length );
 
 		return ret;
 	}
@@ -174,7 +425,7 @@ public class ByteArrayBuffer
 	{
 		// Go through all bytes
 		for( int i = 0; i < this.length; i++ )
-			if(this.buffer[i] == b )
+			if(this.buffer[this.offset + i] == b )
 				return i;
 		return -1;
 	}
@@ -191,7 +442,17 @@ public class ByteArrayBuffer
 
 	public boolean isFull()
 	{
-		return this.length == this.buffer.length;
+		return this.length == capacity();
+	}
+
+	/**
+	 * Returns true if the buffer grows when the capacity is reached
+	 * 
+	 * @return True if growable, false otherwise
+	 */
+	public boolean isGrowable()
+	{
+		return this.growable;
 	}
 
 	/**
@@ -212,13 +473,16 @@ public class ByteArrayBuffer
 		int newLength = this.length > newBuffer.length ? newBuffer.length : this.length;
 
 		// Copy our old data to our new buffer
-		System.arraycopy(this.buffer, 0, newBuffer, 0, newLength );
+		System.arraycopy(this.buffer, this.offset, newBuffer, 0, newLength );
 
 		// Check if we need to remove data
         this.length = newLength;
+		this.readPosition = Math.min( this.readPosition, newLength );
 
 		// Replace our old buffer with our new one
         this.buffer = newBuffer;
+		this.offset = 0;
+		this.view = false;
 
 		return this;
 	}
@@ -228,7 +492,8 @@ public class ByteArrayBuffer
 	 */
 	public int capacity()
 	{
-		return this.buffer.length;
+		// A slice can't grow into the rest of the array
+		return this.view ? this.length : this.buffer.length;
 	}
 
 	/**
@@ -254,12 +519,13 @@ public class ByteArrayBuffer
 	@Override
 	public String toString()
 	{
-		String s = "";
-		if(this.length() == 0 )
-			return s;
-
+		StringBuilder s = new StringBuilder( this.length * 4 );
 		for( int i = 0; i < this.length(); i++ )
-			s += this.buffer[i] + " ";
-		return s.substring( 0, s.length() - 1 );
+		{
+			if( i > 0 )
+				s.append( ' ' );
+			s.append( this.buffer[this.offset + i] );
+		}
+		return s.toString();
 	}
 }
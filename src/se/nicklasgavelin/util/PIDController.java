@@ -0,0 +1,64 @@
+package se.nicklasgavelin.util;
+
+/**
+ * A PID controller with a clamped integral (anti windup) and a clamped
+ * output. Not thread safe, every controller should be updated by a single
+ * thread.
+ */
+public class PIDController
+{
+	private final double kp, ki, kd;
+	private final double maxIntegral, maxOutput;
+	private double integral, lastError;
+	private boolean hasLastError;
+
+	/**
+	 * Create a PID controller
+	 * 
+	 * @param kp The proportional gain
+	 * @param ki The integral gain
+	 * @param kd The derivative gain
+	 * @param maxOutput The maximum absolute output, the integral term is
+	 *            limited to the same value
+	 */
+	public PIDController( double kp, double ki, double kd, double maxOutput )
+	{
+		this.kp = kp;
+		this.ki = ki;
+		this.kd = kd;
+		this.maxOutput = maxOutput;
+		this.maxIntegral = ki != 0 ? maxOutput / Math.abs( ki ) : 0;
+	}
+
+	/**
+	 * Calculate the next output
+	 * 
+	 * @param error The difference between the set point and the measured
+	 *            value
+	 * @param dt The time since the last update (seconds)
+	 * 
+	 * @return The controller output (-maxOutput to maxOutput)
+	 */
+	public double update( double error, double dt )
+	{
+		if( dt <= 0 )
+			return Value.clamp( kp * error + ki * integral, -maxOutput, maxOutput );
+
+		integral = Value.clamp( integral + error * dt, -maxIntegral, maxIntegral );
+		double derivative = hasLastError ? ( error - lastError ) / dt : 0;
+		lastError = error;
+		hasLastError = true;
+
+		return Value.clamp( kp * error + ki * integral + kd * derivative, -maxOutput, maxOutput );
+	}
+
+	/**
+	 * Clear the integral and derivative state
+	 */
+	public void reset()
+	{
+		integral = 0;
+		lastError = 0;
+		hasLastError = false;
+	}
+}
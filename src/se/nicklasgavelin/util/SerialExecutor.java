@@ -0,0 +1,74 @@
+package se.nicklasgavelin.util;
+
+import se.nicklasgavelin.log.Logging;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on top of a
+ * (possibly shared) executor. Many serial executors may share the same
+ * underlying thread pool while still keeping the order of their own tasks.
+ */
+public class SerialExecutor implements Executor
+{
+	private final Queue<Runnable> tasks = new ArrayDeque<>();
+	private final Executor executor;
+	private Runnable active;
+
+	/**
+	 * Create a serial executor running its tasks on the given executor
+	 *
+	 * @param executor The executor to run the tasks on
+	 */
+	public SerialExecutor( Executor executor )
+	{
+		this.executor = executor;
+	}
+
+	@Override
+	public synchronized void execute( final Runnable r )
+	{
+		tasks.add( () -> {
+			try
+			{
+				r.run();
+			}
+			catch( RuntimeException e )
+			{
+				// A failing task may not stop the tasks after it
+				Logging.error( "Task failed", e );
+			}
+			finally
+			{
+				scheduleNext();
+			}
+		} );
+
+		if( active == null )
+			scheduleNext();
+	}
+
+	/**
+	 * Run the next task (if any). Once the underlying executor has been shut
+	 * down the remaining tasks are dropped instead of failing the caller.
+	 */
+	private synchronized void scheduleNext()
+	{
+		if( (active = tasks.poll()) != null )
+		{
+			try
+			{
+				executor.execute( active );
+			}
+			catch( RejectedExecutionException e )
+			{
+				Logging.debug( "Executor shut down, dropping " + (tasks.size() + 1) + " tasks" );
+				tasks.clear();
+				active = null;
+			}
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package se.nicklasgavelin.util;
 
 /**
+ * Mutable 2D vector. All operations work in place and return the vector
+ * itself so that one instance can be reused for every sensor sample.
+ *
  * @author Orbotix
  */
 public class Vector2D
@@ -13,6 +16,15 @@ public class Vector2D
 		return Math.sqrt( x * x + y * y );
 	}
 
+	public static double magnitudeSquared( double x, double y )
+	{
+		return x * x + y * y;
+	}
+
+	public Vector2D()
+	{
+	}
+
 	public Vector2D( double x, double y )
 	{
 		this.x = x;
@@ -23,4 +35,61 @@ public class Vector2D
 	{
 		return Math.sqrt(this.x * this.x + this.y * this.y);
 	}
-}
\ No newline at end of file
+
+	public double magnitudeSquared()
+	{
+		return this.x * this.x + this.y * this.y;
+	}
+
+	public Vector2D set( double x, double y )
+	{
+		this.x = x;
+		this.y = y;
+		return this;
+	}
+
+	public Vector2D set( Vector2D v )
+	{
+		return this.set( v.x, v.y );
+	}
+
+	public Vector2D add( double x, double y )
+	{
+		this.x += x;
+		this.y += y;
+		return this;
+	}
+
+	public Vector2D add( Vector2D v )
+	{
+		return this.add( v.x, v.y );
+	}
+
+	public Vector2D subtract( Vector2D v )
+	{
+		return this.add( -v.x, -v.y );
+	}
+
+	public Vector2D scale( double s )
+	{
+		this.x *= s;
+		this.y *= s;
+		return this;
+	}
+
+	public double dot( Vector2D v )
+	{
+		return this.x * v.x + this.y * v.y;
+	}
+
+	/**
+	 * Scale the vector to unit length, a zero vector is left unchanged
+	 *
+	 * @return This vector
+	 */
+	public Vector2D normalize()
+	{
+		double m = this.magnitude();
+		return m == 0 ? this : this.scale( 1 / m );
+	}
+}
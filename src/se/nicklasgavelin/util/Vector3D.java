@@ -1,6 +1,9 @@
 package se.nicklasgavelin.util;
 
 /**
+ * Mutable 3D vector. All operations work in place and return the vector
+ * itself so that one instance can be reused for every sensor sample.
+ *
  * @author Orbotix
  */
 public class Vector3D
@@ -12,6 +15,15 @@ public class Vector3D
 		return Math.sqrt( x * x + y * y + z * z );
 	}
 
+	public static double magnitudeSquared( double x, double y, double z )
+	{
+		return x * x + y * y + z * z;
+	}
+
+	public Vector3D()
+	{
+	}
+
 	public Vector3D( double x, double y, double z )
 	{
 		this.x = x;
@@ -23,4 +35,64 @@ public class Vector3D
 	{
 		return Math.sqrt(this.x * this.x + this.y * this.y + this.z * this.z);
 	}
-}
\ No newline at end of file
+
+	public double magnitudeSquared()
+	{
+		return this.x * this.x + this.y * this.y + this.z * this.z;
+	}
+
+	public Vector3D set( double x, double y, double z )
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	public Vector3D set( Vector3D v )
+	{
+		return this.set( v.x, v.y, v.z );
+	}
+
+	public Vector3D add( double x, double y, double z )
+	{
+		this.x += x;
+		this.y += y;
+		this.z += z;
+		return this;
+	}
+
+	public Vector3D add( Vector3D v )
+	{
+		return this.add( v.x, v.y, v.z );
+	}
+
+	public Vector3D subtract( Vector3D v )
+	{
+		return this.add( -v.x, -v.y, -v.z );
+	}
+
+	public Vector3D scale( double s )
+	{
+		this.x *= s;
+		this.y *= s;
+		this.z *= s;
+		return this;
+	}
+
+	public double dot( Vector3D v )
+	{
+		return this.x * v.x + this.y * v.y + this.z * v.z;
+	}
+
+	/**
+	 * Scale the vector to unit length, a zero vector is left unchanged
+	 *
+	 * @return This vector
+	 */
+	public Vector3D normalize()
+	{
+		double m = this.magnitude();
+		return m == 0 ? this : this.scale( 1 / m );
+	}
+}